@@ -0,0 +1,188 @@
+/*
+ * Adapted from the Wizardry License
+ *
+ * Copyright (c) 2019-2019 DaPorkchop_ and contributors
+ *
+ * Permission is hereby granted to any persons and/or organizations using this software to copy, modify, merge, publish, and distribute it. Said persons and/or organizations are not allowed to use the software or any derivatives of the work for commercial use or any other means to generate income, nor are they allowed to claim this software as their own.
+ *
+ * The persons and/or organizations are also disallowed from sub-licensing and/or trademarking this software without explicit permission from DaPorkchop_.
+ *
+ * Any persons and/or organizations using this software must disclose their source code and have it publicly available, include this license, provide sufficient credit to the original authors of the project (IE: DaPorkchop_), as well as provide a link to the original project.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON INFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ */
+
+package net.daporkchop.common.io;
+
+import lombok.Getter;
+import lombok.NonNull;
+import lombok.experimental.Accessors;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+
+/**
+ * Processes files with a fixed number of reader threads ("lanes") per storage device, and a separate pool of threads
+ * for CPU-bound work.
+ * <p>
+ * On spinning disks, having many threads read different files at once makes the heads seek back and forth constantly,
+ * which is far slower than reading one file after the other. Here, all reading is done by the lanes, which work
+ * through the files on their device in on-disk order (approximated by inode number). The result of every read is
+ * then handed off to the CPU pool, so that the lanes can immediately move on to the next file.
+ * <p>
+ * At most {@link #maxPending()} files may be read but not yet processed at any time, which keeps memory usage bounded
+ * if the CPU pool can't keep up with the lanes.
+ *
+ * @author DaPorkchop_
+ */
+@Getter
+@Accessors(fluent = true)
+public final class IOScheduler {
+    private final int lanesPerDevice;
+    private final int cpuThreads;
+    private final int maxPending;
+
+    public IOScheduler(int lanesPerDevice, int cpuThreads, int maxPending) {
+        if (lanesPerDevice < 1 || cpuThreads < 1 || maxPending < 1) {
+            throw new IllegalArgumentException(String.format("Invalid scheduler settings: lanesPerDevice=%d, cpuThreads=%d, maxPending=%d", lanesPerDevice, cpuThreads, maxPending));
+        }
+        this.lanesPerDevice = lanesPerDevice;
+        this.cpuThreads = cpuThreads;
+        this.maxPending = maxPending;
+    }
+
+    /**
+     * Creates a new instance configured via system properties.
+     * <p>
+     * The properties are {@code <prefix>.lanesPerDevice} (default 1), {@code <prefix>.cpuThreads} (default: the number
+     * of cores) and {@code <prefix>.maxPending} (default: twice the number of CPU threads).
+     */
+    public static IOScheduler fromProperties(@NonNull String prefix) {
+        int cpuThreads = Integer.getInteger(prefix + ".cpuThreads", Runtime.getRuntime().availableProcessors());
+        return new IOScheduler(
+                Integer.getInteger(prefix + ".lanesPerDevice", 1),
+                cpuThreads,
+                Integer.getInteger(prefix + ".maxPending", cpuThreads << 1)
+        );
+    }
+
+    /**
+     * Reads every file on the lane threads of its device, then passes the result to the given processor on the CPU
+     * pool.
+     *
+     * @param reader    does all of the reading for a single file. Any CPU-heavy work should be left to the processor
+     * @param processor processes the result of a single read
+     */
+    public <T> void forEach(@NonNull Collection<Path> paths, @NonNull Reader<T> reader, @NonNull Consumer<T> processor) {
+        if (paths.isEmpty()) {
+            return;
+        }
+
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        Semaphore pending = new Semaphore(this.maxPending);
+        AtomicInteger cpuThreadCounter = new AtomicInteger();
+        ExecutorService cpu = Executors.newFixedThreadPool(this.cpuThreads, r -> new Thread(r, "cpu worker #" + cpuThreadCounter.getAndIncrement()));
+
+        List<Thread> lanes = new ArrayList<>();
+        for (Map.Entry<Object, List<Path>> entry : groupByDevice(paths).entrySet()) {
+            Queue<Path> queue = new ConcurrentLinkedQueue<>(entry.getValue());
+            for (int i = 0; i < this.lanesPerDevice; i++) {
+                Thread lane = new Thread(() -> {
+                    Path path;
+                    while (failure.get() == null && (path = queue.poll()) != null) {
+                        pending.acquireUninterruptibly();
+                        try {
+                            T value = reader.read(path);
+                            cpu.execute(() -> {
+                                try {
+                                    processor.accept(value);
+                                } catch (Throwable t) {
+                                    failure.compareAndSet(null, t);
+                                } finally {
+                                    pending.release();
+                                }
+                            });
+                        } catch (Throwable t) {
+                            failure.compareAndSet(null, t);
+                            pending.release();
+                        }
+                    }
+                }, String.format("io lane #%d for device %s", i, entry.getKey()));
+                lane.start();
+                lanes.add(lane);
+            }
+        }
+
+        try {
+            for (Thread lane : lanes) {
+                lane.join();
+            }
+            cpu.shutdown();
+            cpu.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+        } catch (InterruptedException e) {
+            throw new RuntimeException(e);
+        } finally {
+            cpu.shutdownNow();
+        }
+
+        Throwable t = failure.get();
+        if (t instanceof RuntimeException) {
+            throw (RuntimeException) t;
+        } else if (t instanceof Error) {
+            throw (Error) t;
+        } else if (t != null) {
+            throw new RuntimeException(t);
+        }
+    }
+
+    /**
+     * Groups the given files by the device they're stored on, with the files for each device sorted by inode number.
+     */
+    private static Map<Object, List<Path>> groupByDevice(@NonNull Collection<Path> paths) {
+        Map<Object, List<Path>> devices = new HashMap<>();
+        Map<Path, Long> inodes = new HashMap<>();
+        for (Path path : paths) {
+            Object device;
+            long inode;
+            try {
+                try {
+                    device = Files.getAttribute(path, "unix:dev");
+                    inode = ((Number) Files.getAttribute(path, "unix:ino")).longValue();
+                } catch (UnsupportedOperationException | IllegalArgumentException e) {
+                    device = Files.getFileStore(path).name();
+                    inode = 0L;
+                }
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+            devices.computeIfAbsent(device, d -> new ArrayList<>()).add(path);
+            inodes.put(path, inode);
+        }
+
+        Comparator<Path> order = Comparator.<Path>comparingLong(inodes::get).thenComparing(Comparator.naturalOrder());
+        devices.values().forEach(list -> list.sort(order));
+        return devices;
+    }
+
+    @FunctionalInterface
+    public interface Reader<T> {
+        T read(@NonNull Path path) throws IOException;
+    }
+}
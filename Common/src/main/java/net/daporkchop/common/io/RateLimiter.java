@@ -0,0 +1,81 @@
+/*
+ * Adapted from the Wizardry License
+ *
+ * Copyright (c) 2019-2019 DaPorkchop_ and contributors
+ *
+ * Permission is hereby granted to any persons and/or organizations using this software to copy, modify, merge, publish, and distribute it. Said persons and/or organizations are not allowed to use the software or any derivatives of the work for commercial use or any other means to generate income, nor are they allowed to claim this software as their own.
+ *
+ * The persons and/or organizations are also disallowed from sub-licensing and/or trademarking this software without explicit permission from DaPorkchop_.
+ *
+ * Any persons and/or organizations using this software must disclose their source code and have it publicly available, include this license, provide sufficient credit to the original authors of the project (IE: DaPorkchop_), as well as provide a link to the original project.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON INFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ */
+
+package net.daporkchop.common.io;
+
+import lombok.Getter;
+import lombok.NonNull;
+import lombok.experimental.Accessors;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Limits the rate at which bytes are processed across any number of threads.
+ * <p>
+ * Every call to {@link #acquire(long)} reserves the time needed to process the given number of bytes at the configured
+ * rate, and waits until all earlier reservations have elapsed.
+ *
+ * @author DaPorkchop_
+ */
+@Accessors(fluent = true)
+public final class RateLimiter {
+    /**
+     * The maximum number of bytes per second, or {@code 0} if the rate isn't limited.
+     */
+    @Getter
+    private final long bytesPerSecond;
+
+    private long nextFree = System.nanoTime();
+
+    public RateLimiter(long bytesPerSecond) {
+        if (bytesPerSecond < 0L) {
+            throw new IllegalArgumentException(String.format("Invalid rate: %d bytes/s", bytesPerSecond));
+        }
+        this.bytesPerSecond = bytesPerSecond;
+    }
+
+    /**
+     * Creates a new instance configured via system properties.
+     * <p>
+     * The property is {@code <prefix>.rateLimit}, in MB/s (default 0, meaning unlimited).
+     */
+    public static RateLimiter fromProperties(@NonNull String prefix) {
+        return new RateLimiter((long) (Double.parseDouble(System.getProperty(prefix + ".rateLimit", "0")) * 1000000.0d));
+    }
+
+    /**
+     * Waits until the given number of bytes may be processed.
+     */
+    public void acquire(long bytes) {
+        if (this.bytesPerSecond == 0L || bytes <= 0L) {
+            return;
+        }
+
+        long start;
+        long now;
+        synchronized (this) {
+            now = System.nanoTime();
+            start = Math.max(this.nextFree, now);
+            this.nextFree = start + (long) (bytes * (double) TimeUnit.SECONDS.toNanos(1L) / this.bytesPerSecond);
+        }
+        if (start > now) {
+            try {
+                TimeUnit.NANOSECONDS.sleep(start - now);
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            }
+        }
+    }
+}
@@ -0,0 +1,255 @@
+/*
+ * Adapted from the Wizardry License
+ *
+ * Copyright (c) 2019-2019 DaPorkchop_ and contributors
+ *
+ * Permission is hereby granted to any persons and/or organizations using this software to copy, modify, merge, publish, and distribute it. Said persons and/or organizations are not allowed to use the software or any derivatives of the work for commercial use or any other means to generate income, nor are they allowed to claim this software as their own.
+ *
+ * The persons and/or organizations are also disallowed from sub-licensing and/or trademarking this software without explicit permission from DaPorkchop_.
+ *
+ * Any persons and/or organizations using this software must disclose their source code and have it publicly available, include this license, provide sufficient credit to the original authors of the project (IE: DaPorkchop_), as well as provide a link to the original project.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON INFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ */
+
+package net.daporkchop.common.parallel;
+
+import lombok.Getter;
+import lombok.NonNull;
+import lombok.experimental.Accessors;
+import net.daporkchop.lib.logging.Logger;
+
+import java.util.Collection;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+import java.util.function.LongConsumer;
+import java.util.function.ToLongBiFunction;
+import java.util.function.ToLongFunction;
+
+/**
+ * Runs tasks in parallel, periodically adjusting the number of worker threads based on the measured throughput.
+ * <p>
+ * The worker count is tuned with a simple hill-climbing loop: as long as throughput keeps improving, the count keeps
+ * moving in the same direction, and as soon as it gets noticeably worse, the direction is reversed. This allows I/O
+ * bound phases (e.g. over NFS) to use far more threads than there are cores, while CPU bound phases settle somewhere
+ * around the core count.
+ * <p>
+ * The best worker count found for a phase is remembered and used as the starting point the next time a phase with the
+ * same name is run.
+ *
+ * @author DaPorkchop_
+ */
+@Accessors(fluent = true)
+public final class AdaptiveParallelism {
+    /**
+     * Relative throughput changes smaller than this are considered noise.
+     */
+    private static final double TOLERANCE = 0.05d;
+
+    @Getter
+    private final Logger logger;
+    @Getter
+    private final int    minThreads;
+    @Getter
+    private final int    maxThreads;
+    @Getter
+    private final long   interval;
+
+    private final Map<String, Integer> phaseThreads = new ConcurrentHashMap<>();
+
+    public AdaptiveParallelism(@NonNull Logger logger, int minThreads, int maxThreads, long interval, @NonNull TimeUnit unit) {
+        if (minThreads < 1 || maxThreads < minThreads) {
+            throw new IllegalArgumentException(String.format("Invalid thread bounds: [%d,%d]", minThreads, maxThreads));
+        }
+        this.logger = logger;
+        this.minThreads = minThreads;
+        this.maxThreads = maxThreads;
+        this.interval = unit.toMillis(interval);
+    }
+
+    /**
+     * Creates a new instance using bounds configured via system properties.
+     * <p>
+     * The properties are {@code <prefix>.minThreads}, {@code <prefix>.maxThreads} and {@code <prefix>.interval} (in
+     * milliseconds).
+     */
+    public static AdaptiveParallelism fromProperties(@NonNull Logger logger, @NonNull String prefix) {
+        int cpus = Runtime.getRuntime().availableProcessors();
+        return new AdaptiveParallelism(
+                logger,
+                Integer.getInteger(prefix + ".minThreads", 1),
+                Integer.getInteger(prefix + ".maxThreads", cpus << 2),
+                Long.getLong(prefix + ".interval", 5000L),
+                TimeUnit.MILLISECONDS
+        );
+    }
+
+    /**
+     * Runs the given action for every item, measuring throughput in items per second.
+     */
+    public <T> void forEach(@NonNull String phase, @NonNull Collection<T> items, @NonNull Consumer<T> action) {
+        this.forEach(phase, "items", items, item -> {
+            action.accept(item);
+            return 1L;
+        });
+    }
+
+    /**
+     * Runs the given action for every item.
+     *
+     * @param unit   the name of the unit that throughput is measured in, only used for logging
+     * @param action the action to run. Returns the number of units processed
+     */
+    public <T> void forEach(@NonNull String phase, @NonNull String unit, @NonNull Collection<T> items, @NonNull ToLongFunction<T> action) {
+        this.forEach(phase, unit, items, (item, progress) -> action.applyAsLong(item));
+    }
+
+    /**
+     * Runs the given action for every item.
+     * <p>
+     * Every invocation has its own progress counter, so phases may overlap.
+     *
+     * @param unit   the name of the unit that throughput is measured in, only used for logging
+     * @param action the action to run. It's given the item and a callback which may be used to report progress before
+     *               the item has been completed, and returns the number of units processed which haven't already been
+     *               reported using the callback
+     */
+    public <T> void forEach(@NonNull String phase, @NonNull String unit, @NonNull Collection<T> items, @NonNull ToLongBiFunction<T, LongConsumer> action) {
+        if (items.isEmpty()) {
+            return;
+        }
+
+        Queue<T> queue = new ConcurrentLinkedQueue<>(items);
+        int initialThreads = Math.min(this.phaseThreads.getOrDefault(phase, Math.min(Math.max(Runtime.getRuntime().availableProcessors(), this.minThreads), this.maxThreads)), items.size());
+        ResizableSemaphore permits = new ResizableSemaphore(initialThreads);
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        LongAdder progress = new LongAdder();
+        LongConsumer callback = progress::add;
+
+        this.logger.info("[%s] Processing %d items with %d threads (bounds: [%d,%d])", phase, items.size(), initialThreads, this.minThreads, this.maxThreads);
+
+        Thread[] workers = new Thread[Math.min(this.maxThreads, items.size())];
+        for (int i = 0; i < workers.length; i++) {
+            workers[i] = new Thread(() -> {
+                while (failure.get() == null) {
+                    permits.acquireUninterruptibly();
+                    try {
+                        T item = queue.poll();
+                        if (item == null) {
+                            return;
+                        }
+                        progress.add(action.applyAsLong(item, callback));
+                    } catch (Throwable t) {
+                        failure.compareAndSet(null, t);
+                    } finally {
+                        permits.release();
+                    }
+                }
+            }, String.format("%s worker #%d", phase, i));
+            workers[i].start();
+        }
+
+        ScheduledExecutorService controller = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, phase + " controller");
+            thread.setDaemon(true);
+            return thread;
+        });
+        Controller state = new Controller(phase, unit, initialThreads, permits, progress);
+        controller.scheduleAtFixedRate(state, this.interval, this.interval, TimeUnit.MILLISECONDS);
+
+        try {
+            for (Thread worker : workers) {
+                worker.join();
+            }
+            //a tick may still be running, its results are only safe to read once the controller has terminated
+            controller.shutdownNow();
+            controller.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+        } catch (InterruptedException e) {
+            throw new RuntimeException(e);
+        } finally {
+            controller.shutdownNow();
+        }
+
+        this.phaseThreads.put(phase, state.bestThreads);
+        this.logger.info("[%s] Finished, best throughput was %.2f %s/s with %d threads", phase, state.bestThroughput, unit, state.bestThreads);
+
+        Throwable t = failure.get();
+        if (t instanceof RuntimeException) {
+            throw (RuntimeException) t;
+        } else if (t instanceof Error) {
+            throw (Error) t;
+        } else if (t != null) {
+            throw new RuntimeException(t);
+        }
+    }
+
+    private final class Controller implements Runnable {
+        private final String             phase;
+        private final String             unit;
+        private final ResizableSemaphore permits;
+        private final LongAdder          progress;
+
+        private int    threads;
+        private int    direction      = 1;
+        private double lastThroughput = -1.0d;
+        private long   lastTime       = System.nanoTime();
+
+        private int    bestThreads;
+        private double bestThroughput = 0.0d;
+
+        public Controller(@NonNull String phase, @NonNull String unit, int threads, @NonNull ResizableSemaphore permits, @NonNull LongAdder progress) {
+            this.phase = phase;
+            this.unit = unit;
+            this.threads = this.bestThreads = threads;
+            this.permits = permits;
+            this.progress = progress;
+        }
+
+        @Override
+        public void run() {
+            long now = System.nanoTime();
+            double throughput = this.progress.sumThenReset() * (double) TimeUnit.SECONDS.toNanos(1L) / (now - this.lastTime);
+            this.lastTime = now;
+
+            if (throughput > this.bestThroughput) {
+                this.bestThroughput = throughput;
+                this.bestThreads = this.threads;
+            }
+            if (this.lastThroughput >= 0.0d && throughput < this.lastThroughput * (1.0d - TOLERANCE)) {
+                this.direction = -this.direction;
+            }
+            this.lastThroughput = throughput;
+
+            int next = Math.max(Math.min(this.threads + this.direction, AdaptiveParallelism.this.maxThreads), AdaptiveParallelism.this.minThreads);
+            AdaptiveParallelism.this.logger.info("[%s] %.2f %s/s with %d threads, %s", this.phase, throughput, this.unit, this.threads,
+                    next == this.threads ? "staying there" : String.format("switching to %d threads", next));
+            if (next > this.threads) {
+                this.permits.release(next - this.threads);
+            } else if (next < this.threads) {
+                this.permits.reducePermits(this.threads - next);
+            }
+            this.threads = next;
+        }
+    }
+
+    private static final class ResizableSemaphore extends Semaphore {
+        public ResizableSemaphore(int permits) {
+            super(permits);
+        }
+
+        @Override
+        public void reducePermits(int reduction) {
+            super.reducePermits(reduction);
+        }
+    }
+}
@@ -20,9 +20,9 @@ import lombok.NonNull;
 import lombok.RequiredArgsConstructor;
 import lombok.Setter;
 import lombok.experimental.Accessors;
+import net.daporkchop.common.parallel.AdaptiveParallelism;
 import net.daporkchop.lib.common.function.io.IOBiConsumer;
 import net.daporkchop.lib.common.function.io.IOConsumer;
-import net.daporkchop.lib.common.function.io.IOFunction;
 import net.daporkchop.lib.common.misc.file.PFiles;
 import net.daporkchop.lib.logging.LogAmount;
 import net.daporkchop.lib.logging.Logger;
@@ -33,15 +33,22 @@ import java.awt.image.BufferedImage;
 import java.io.File;
 import java.io.IOException;
 import java.nio.file.Files;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.EnumMap;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.Stack;
 import java.util.StringJoiner;
+import java.util.TreeMap;
+import java.util.function.LongConsumer;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
@@ -75,6 +82,16 @@ public class MapcrafterMerger implements Logging {
     public static final IOConsumer<File>           RM_RFV = path -> RM.accept(path, "rfv");
     public static final IOConsumer<File>           RM_RF  = path -> RM.accept(path, "rf");
 
+    /**
+     * Whether to hardlink the highest complete images into the output directory instead of symlinking them.
+     * <p>
+     * Useful on filesystems where resolving symlinks is slow. Requires the inputs to be on the same filesystem as the
+     * output.
+     */
+    public static final boolean HARDLINKS = Boolean.getBoolean("mapcraftermerger.hardlinks");
+
+    public static final AdaptiveParallelism PARALLELISM = AdaptiveParallelism.fromProperties(logger.channel("parallelism"), "mapcraftermerger");
+
     public static void main(String... args) throws IOException {
         logger.enableANSI()
                 .addFile(new File("merger.log").getAbsoluteFile(), true, LogAmount.NORMAL)
@@ -86,13 +103,7 @@ public class MapcrafterMerger implements Logging {
         Arrays.stream(TYPES).parallel().map(s -> new File(DST, s)).forEach(RM_RF);
 
         logger.info("Searching for inputs...");
-        Collection<File> validInputs = Arrays.stream(ROOT.listFiles())
-                .parallel()
-                .filter(File::isDirectory)
-                .filter(f -> new File(f, "done").exists())
-                .map(f -> new File(f, "mapcrafter"))
-                .map(File::getAbsoluteFile)
-                .collect(Collectors.toSet());
+        Collection<File> validInputs = findInputs();
         logger.info("Found %d inputs: %s", validInputs.size(), validInputs);
 
         for (String type : TYPES) {
@@ -101,81 +112,144 @@ public class MapcrafterMerger implements Logging {
             logger.info("Running for type \"%s\"", type);
             Logger channel = logger.channel(type);
 
-            QuadTree<File> tree = new QuadTree<>();
+            QuadTree<File> tree = buildTree(channel, validInputs, type, Collections.emptyList());
 
-            channel.info("Locating highest complete images in the directory tree...");
-            Collection<Tile> tiles = validInputs.stream()
-                    .parallel()
-                    .map((IOFunction<File, Tile>) f -> {
-                        Tile tile = new Tile(new File(f, type));
-                        {
-                            Stack<Integer> stack = new Stack<>();
-                            searchForFullImagesRecursive(channel, tree, stack, tile.file());
-                        }
-                        channel.info("Finished searching in \"%s\".", f);
-                        return tile;
-                    })
-                    .collect(Collectors.toSet());
-            channel.info("Image hierarchy tree built successfully!");
+            channel.info("Building symlinks...");
+            createLinks(channel, typeDst, tree);
 
-            channel.trace(tree.toString());
+            generateLevels(channel, tree, typeDst, 1);
 
-            tree.forEachValue((stack, file) -> channel.info("  %s -> \"%s\"", stack, file));
+            {
+                channel.info("Generating base image...");
+                ImageIO.write(mergeChildren(typeDst, false), "png", new File(typeDst, "base.png"));
+            }
 
-            channel.info("Building symlinks...");
-            tree.forEachValue((IOBiConsumer<Stack<Integer>, File>) (stack, file) -> {
-                String thePath = toPath(stack);
-
-                File dstFile = new File(typeDst, thePath + ".png");
-                PFiles.ensureDirectoryExists(dstFile.getParentFile());
-                Files.createSymbolicLink(dstFile.toPath(), file.toPath());
-                channel.debug("Creating symlink from \"%s\" to \"%s\"", file, dstFile);
-
-                dstFile = new File(typeDst, thePath);
-                String srcPath = file.getAbsolutePath();
-                file = new File(srcPath.substring(0, srcPath.length() - 4));
-                Files.createSymbolicLink(dstFile.toPath(), file.toPath());
-                channel.debug("Creating symlink from \"%s\" to \"%s\"", file, dstFile);
-            });
+            channel.success("Done!");
+        }
+        logger.success("Done!");
+    }
+
+    static Collection<File> findInputs() {
+        return Arrays.stream(ROOT.listFiles())
+                .parallel()
+                .filter(File::isDirectory)
+                .filter(f -> new File(f, "done").exists())
+                .map(f -> new File(f, "mapcrafter"))
+                .map(File::getAbsoluteFile)
+                .collect(Collectors.toSet());
+    }
 
-            while (tree.depth() > 1) {
-                channel.info("quadtree depth: %d", tree.depth());
-
-                channel.info("Generating scaled-down images...");
-                //genScaledImagesRecursive(channel, new Stack<>());
-                Map<Stack<Integer>, BufferedImage> images = new HashMap<>();
-                tree.forEachValueAtDepth(tree.depth(), (IOBiConsumer<Stack<Integer>, File>) (stack, file) -> {
-                    BufferedImage dst;
-                    {
-                        Stack<Integer> key = QuadTree.copy(stack);
-                        key.pop();
-                        dst = images.computeIfAbsent(key, s -> new BufferedImage(256, 256, BufferedImage.TYPE_INT_ARGB));
+    /**
+     * Builds the image hierarchy tree for the given type.
+     * <p>
+     * When searching a subtree, the images along the prefix are checked first, exactly as a search from the root would
+     * have reached them. If one of them is complete, it's set in the tree instead of searching below it, so the tree may
+     * contain values above the prefix.
+     *
+     * @param prefix the path of the subtree to search in, or an empty list to search the whole tree
+     */
+    static QuadTree<File> buildTree(@NonNull Logger channel, @NonNull Collection<File> inputs, @NonNull String type, @NonNull List<Integer> prefix) {
+        QuadTree<File> tree = new QuadTree<>();
+
+        channel.info("Locating highest complete images in the directory tree...");
+        PARALLELISM.forEach("search", "tiles", inputs, (f, progress) -> {
+            File root = new File(f, type);
+            File dir = new File(root, toPath(prefix));
+            int level;
+            try {
+                level = completeLevel(channel, root, prefix, progress);
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+            if (level > 0) {
+                List<Integer> path = prefix.subList(0, level);
+                tree.set(path, new File(root, toPath(path, ".png")));
+            } else if (level == 0 && dir.isDirectory()) {
+                Stack<Integer> stack = new Stack<>();
+                stack.addAll(prefix);
+                try {
+                    searchForFullImagesRecursive(channel, tree, stack, dir, progress);
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+            channel.info("Finished searching in \"%s\".", f);
+            return 0L;
+        });
+        channel.info("Image hierarchy tree built successfully!");
+
+        channel.trace(tree.toString());
+
+        tree.forEachValue((stack, file) -> channel.info("  %s -> \"%s\"", stack, file));
+        return tree;
+    }
+
+    /**
+     * Generates scaled-down images until the tree has been reduced to the given depth.
+     */
+    static void generateLevels(@NonNull Logger channel, @NonNull QuadTree<File> tree, @NonNull File typeDst, int minDepth) {
+        while (tree.depth() > minDepth) {
+            channel.info("quadtree depth: %d", tree.depth());
+
+            channel.info("Generating scaled-down images...");
+            Map<Stack<Integer>, Map<Sector, File>> children = new HashMap<>();
+            tree.forEachValueAtDepth(tree.depth(), (stack, file) -> {
+                Stack<Integer> key = QuadTree.copy(stack);
+                key.pop();
+                children.computeIfAbsent(key, s -> new EnumMap<>(Sector.class)).put(Sector.fromOffsetIndex(stack.peek()), file);
+            });
+            PARALLELISM.forEach("levels", "tiles", children.entrySet(), entry -> {
+                try {
+                    BufferedImage img = new BufferedImage(256, 256, BufferedImage.TYPE_INT_ARGB);
+                    for (Map.Entry<Sector, File> child : entry.getValue().entrySet()) {
+                        scaleDownImage(ImageIO.read(child.getValue()), img, child.getKey());
                     }
-                    scaleDownImage(ImageIO.read(file), dst, Sector.fromOffsetIndex(stack.peek()));
-                });
-                channel.info("Writing scaled-down images...");
-                images.forEach((IOBiConsumer<Stack<Integer>, BufferedImage>) (stack, img) -> {
-                    File file = new File(typeDst, toPath(stack, ".png"));
+
+                    File file = prepareOutput(channel, typeDst, entry.getKey());
                     ImageIO.write(img, "png", file);
-                    tree.set(stack, file);
-                });
+                    tree.set(entry.getKey(), file);
+                    return entry.getValue().size();
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+            });
+        }
+    }
+
+    /**
+     * Walks the images along the given prefix in a single input, the same way {@link #searchForFullImagesRecursive} does
+     * when searching from the root.
+     *
+     * @return the length of the path of the first complete image along the prefix, {@code 0} if the search should
+     * continue below the prefix, or {@code -1} if the search never reaches the prefix in this input
+     */
+    static int completeLevel(@NonNull Logger channel, @NonNull File root, @NonNull List<Integer> prefix, @NonNull LongConsumer progress) throws IOException {
+        for (int level = 1; level <= prefix.size(); level++) {
+            File imgFile = new File(root, toPath(prefix.subList(0, level), ".png"));
+            if (!imgFile.isFile()) {
+                return -1;
+            }
+            progress.accept(1L);
+            if (isComplete(ImageIO.read(imgFile))) {
+                channel.trace("Found complete image along the prefix: \"%s\"!", imgFile);
+                return level;
             }
+        }
+        return 0;
+    }
 
-            {
-                channel.info("Generating base image...");
-                BufferedImage img = new BufferedImage(256, 256, BufferedImage.TYPE_INT_ARGB);
-                for (int i = 1; i <= 4; i++) {
-                    scaleDownImage(ImageIO.read(new File(typeDst, i + ".png")), img, Sector.fromOffsetIndex(i));
+    static boolean isComplete(@NonNull BufferedImage img) {
+        for (int x = img.getWidth() - 1; x >= 0; x--) {
+            for (int y = img.getHeight() - 1; y >= 0; y--) {
+                if ((img.getRGB(x, y) & 0xFF000000) == 0) {
+                    return false;
                 }
-                ImageIO.write(img, "png", new File(typeDst, "base.png"));
             }
-
-            channel.success("Done!");
         }
-        logger.success("Done!");
+        return true;
     }
 
-    private static void searchForFullImagesRecursive(@NonNull Logger channel, @NonNull QuadTree<File> tree, @NonNull Stack<Integer> stack, @NonNull File file) throws IOException {
+    static void searchForFullImagesRecursive(@NonNull Logger channel, @NonNull QuadTree<File> tree, @NonNull Stack<Integer> stack, @NonNull File file, @NonNull LongConsumer progress) throws IOException {
         Collection<Integer> images = new LinkedList<>();
         Collection<Integer> dirs = new LinkedList<>();
         for (File subFile : file.listFiles()) {
@@ -192,6 +266,7 @@ public class MapcrafterMerger implements Logging {
             File imgFile = new File(file, stack.push(itr.next()) + ".png");
             channel.debug("Trying \"%s\"...", imgFile);
             BufferedImage img = ImageIO.read(imgFile);
+            progress.accept(1L);
             for (int x = img.getWidth() - 1; x >= 0; x--) {
                 for (int y = img.getHeight() - 1; y >= 0; y--) {
                     if ((img.getRGB(x, y) & 0xFF000000) == 0) {
@@ -214,7 +289,7 @@ public class MapcrafterMerger implements Logging {
             //the only things that will be left in here are ones that are not already set
             stack.push(imgName);
             if (dirs.contains(imgName)) {
-                searchForFullImagesRecursive(channel, tree, stack, new File(file, imgName.toString()));
+                searchForFullImagesRecursive(channel, tree, stack, new File(file, imgName.toString()), progress);
             } else {
                 throw new IllegalStateException(String.format("Unable to find child for path: %s", stack));
             }
@@ -222,18 +297,133 @@ public class MapcrafterMerger implements Logging {
         }
     }
 
+    static void createLinks(@NonNull Logger channel, @NonNull File typeDst, @NonNull QuadTree<File> tree) {
+        //group the links by the directory they'll be created in, a TreeMap ensures that parent directories come first
+        Map<File, List<Stack<Integer>>> paths = new TreeMap<>();
+        Map<Stack<Integer>, File> files = new HashMap<>();
+        tree.forEachValue((stack, file) -> {
+            paths.computeIfAbsent(new File(typeDst, toPath(stack)).getParentFile(), dir -> new ArrayList<>()).add(stack);
+            files.put(stack, file);
+        });
+
+        channel.info("Creating %d directories...", paths.size());
+        Set<File> createdDirs = new HashSet<>();
+        paths.keySet().forEach(dir -> ensureDirectoryExists(dir, createdDirs));
+
+        channel.info("Creating %d %s...", files.size(), HARDLINKS ? "hardlinks" : "symlinks");
+        paths.values().parallelStream().forEach(stacks -> stacks.forEach((IOConsumer<Stack<Integer>>) stack -> createLinksInExistingDirectory(channel, typeDst, stack, files.get(stack))));
+    }
+
+    static void createLinks(@NonNull Logger channel, @NonNull File typeDst, @NonNull List<Integer> stack, @NonNull File file) throws IOException {
+        PFiles.ensureDirectoryExists(new File(typeDst, toPath(stack)).getParentFile());
+        createLinksInExistingDirectory(channel, typeDst, stack, file);
+    }
+
+    private static void createLinksInExistingDirectory(@NonNull Logger channel, @NonNull File typeDst, @NonNull List<Integer> stack, @NonNull File file) throws IOException {
+        String thePath = toPath(stack);
+
+        File dstFile = new File(typeDst, thePath + ".png");
+        if (HARDLINKS) {
+            Files.createLink(dstFile.toPath(), file.toPath());
+            channel.debug("Creating hardlink from \"%s\" to \"%s\"", file, dstFile);
+        } else {
+            Files.createSymbolicLink(dstFile.toPath(), file.toPath());
+            channel.debug("Creating symlink from \"%s\" to \"%s\"", file, dstFile);
+        }
+
+        //directories can't be hardlinked
+        dstFile = new File(typeDst, thePath);
+        String srcPath = file.getAbsolutePath();
+        file = new File(srcPath.substring(0, srcPath.length() - 4));
+        Files.createSymbolicLink(dstFile.toPath(), file.toPath());
+        channel.debug("Creating symlink from \"%s\" to \"%s\"", file, dstFile);
+    }
+
+    /**
+     * Removes every symlink among the directories leading to the given path in the output.
+     * <p>
+     * Earlier (sharded) runs may have linked the directory of a complete image from an input into the output. Anything
+     * below such a link resolves into the input, so it must never be deleted or written to.
+     */
+    static void unlinkAncestors(@NonNull Logger channel, @NonNull File typeDst, @NonNull List<Integer> path) throws IOException {
+        for (int i = 1; i < path.size(); i++) {
+            File dir = new File(typeDst, toPath(path.subList(0, i)));
+            if (Files.isSymbolicLink(dir.toPath())) {
+                channel.debug("Removing stale link \"%s\"", dir);
+                Files.deleteIfExists(dir.toPath()); //another thread may have removed it already
+            }
+        }
+    }
+
+    /**
+     * Deletes the image and directory at the given path in the output, without following any links.
+     */
+    static void clearOutput(@NonNull Logger channel, @NonNull File typeDst, @NonNull List<Integer> path) throws IOException {
+        unlinkAncestors(channel, typeDst, path);
+        RM_RF.accept(new File(typeDst, toPath(path)));
+        RM_RF.accept(new File(typeDst, toPath(path, ".png")));
+    }
+
+    /**
+     * Prepares the image at the given path in the output for being written.
+     * <p>
+     * An existing file is deleted rather than overwritten, as it may be a stale link to an input.
+     *
+     * @return the image file
+     */
+    static File prepareOutput(@NonNull Logger channel, @NonNull File typeDst, @NonNull List<Integer> path) throws IOException {
+        unlinkAncestors(channel, typeDst, path);
+        File file = new File(typeDst, toPath(path, ".png"));
+        Files.deleteIfExists(file.toPath());
+        Files.createDirectories(file.getParentFile().toPath());
+        return file;
+    }
+
+    private static void ensureDirectoryExists(@NonNull File dir, @NonNull Set<File> createdDirs) {
+        if (createdDirs.add(dir)) {
+            File parent = dir.getParentFile();
+            if (parent != null) {
+                ensureDirectoryExists(parent, createdDirs);
+            }
+            if (!dir.mkdir() && !dir.isDirectory()) {
+                throw new IllegalStateException(String.format("Unable to create directory: \"%s\"", dir));
+            }
+        }
+    }
+
+    /**
+     * Scales down the four child images in the given directory into a single image.
+     *
+     * @param dir          the directory containing the child images ({@code 1.png} to {@code 4.png})
+     * @param allowMissing whether missing children should be left transparent. If {@code false}, a missing child means
+     *                     that the tree is incomplete, and an exception is thrown
+     * @return the merged image
+     */
+    static BufferedImage mergeChildren(@NonNull File dir, boolean allowMissing) throws IOException {
+        BufferedImage img = new BufferedImage(256, 256, BufferedImage.TYPE_INT_ARGB);
+        for (Sector sector : Sector.VALUES) {
+            File file = new File(dir, sector.offsetIndex() + ".png");
+            if (file.exists()) {
+                scaleDownImage(ImageIO.read(file), img, sector);
+            } else if (!allowMissing) {
+                throw new IllegalStateException(String.format("Missing child image: \"%s\"", file));
+            }
+        }
+        return img;
+    }
+
     private static void genScaledImagesRecursive(@NonNull Logger channel, @NonNull Stack<Integer> stack) throws IOException    {
     }
 
-    private static String toPath(@NonNull List<Integer> stack) {
+    static String toPath(@NonNull List<Integer> stack) {
         return toPath(stack, "", "");
     }
 
-    private static String toPath(@NonNull List<Integer> stack, @NonNull String suffix) {
+    static String toPath(@NonNull List<Integer> stack, @NonNull String suffix) {
         return toPath(stack, "", suffix);
     }
 
-    private static String toPath(@NonNull List<Integer> stack, @NonNull String prefix, @NonNull String suffix) {
+    static String toPath(@NonNull List<Integer> stack, @NonNull String prefix, @NonNull String suffix) {
         StringJoiner joiner = new StringJoiner("/", prefix, suffix);
         for (int i : stack) {
             joiner.add(String.valueOf(i));
@@ -241,7 +431,7 @@ public class MapcrafterMerger implements Logging {
         return joiner.toString();
     }
 
-    private static void scaleDownImage(@NonNull BufferedImage src, @NonNull BufferedImage dst, @NonNull Sector sector) {
+    static void scaleDownImage(@NonNull BufferedImage src, @NonNull BufferedImage dst, @NonNull Sector sector) {
         assert256x256(src);
         assert256x256(dst);
 
@@ -0,0 +1,194 @@
+/*
+ * Adapted from the Wizardry License
+ *
+ * Copyright (c) 2019-2019 DaPorkchop_ and contributors
+ *
+ * Permission is hereby granted to any persons and/or organizations using this software to copy, modify, merge, publish, and distribute it. Said persons and/or organizations are not allowed to use the software or any derivatives of the work for commercial use or any other means to generate income, nor are they allowed to claim this software as their own.
+ *
+ * The persons and/or organizations are also disallowed from sub-licensing and/or trademarking this software without explicit permission from DaPorkchop_.
+ *
+ * Any persons and/or organizations using this software must disclose their source code and have it publicly available, include this license, provide sufficient credit to the original authors of the project (IE: DaPorkchop_), as well as provide a link to the original project.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON INFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ */
+
+package net.daporkchop.mapcraftermerger;
+
+import lombok.NonNull;
+import net.daporkchop.lib.common.function.io.IOBiConsumer;
+import net.daporkchop.lib.common.function.io.IOConsumer;
+import net.daporkchop.lib.logging.LogAmount;
+import net.daporkchop.lib.logging.Logger;
+import net.daporkchop.lib.logging.Logging;
+
+import javax.imageio.ImageIO;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.Stack;
+import java.util.concurrent.TimeUnit;
+
+import static java.nio.file.StandardWatchEventKinds.*;
+import static net.daporkchop.mapcraftermerger.MapcrafterMerger.*;
+
+/**
+ * Long-running variant of {@link MapcrafterMerger}.
+ * <p>
+ * Keeps the image hierarchy tree of every type in memory and waits for Mapcrafter to write the {@code done} marker
+ * into an input directory. Only the tiles from that input are then inserted into the tree, and only their ancestors
+ * are regenerated.
+ * <p>
+ * This expects {@link MapcrafterMerger#DST} to already contain the output of a full run.
+ *
+ * @author DaPorkchop_
+ */
+public class MapcrafterWatcher implements Logging {
+    /**
+     * How long to wait for more events after the first one before starting to merge, in milliseconds.
+     */
+    public static final long SETTLE_TIME = TimeUnit.SECONDS.toMillis(2L);
+
+    public static void main(String... args) throws IOException, InterruptedException {
+        logger.enableANSI()
+                .addFile(new File("watcher.log").getAbsoluteFile(), true, LogAmount.NORMAL)
+                .addFile(new File("watcher-debug.log").getAbsoluteFile(), true, LogAmount.DEBUG);
+
+        logger.info("\nStarting MapcrafterWatcher v0.0.1-SNAPSHOT...\n\n");
+
+        Map<String, QuadTree<File>> trees = new HashMap<>();
+        for (String type : TYPES) {
+            trees.put(type, new QuadTree<>());
+        }
+        Map<File, Long> doneTimes = new HashMap<>();
+
+        try (WatchService watcher = ROOT.toPath().getFileSystem().newWatchService()) {
+            Path root = ROOT.toPath().toAbsolutePath();
+            root.register(watcher, ENTRY_CREATE);
+
+            logger.info("Indexing existing inputs...");
+            for (File input : Objects.requireNonNull(ROOT.getAbsoluteFile().listFiles(File::isDirectory))) {
+                input.toPath().register(watcher, ENTRY_CREATE, ENTRY_MODIFY);
+
+                File done = new File(input, "done");
+                if (done.exists()) {
+                    doneTimes.put(input, done.lastModified());
+                    for (String type : TYPES) {
+                        search(logger.channel(type), new File(input, "mapcrafter/" + type)).forEachValue(trees.get(type)::set);
+                    }
+                }
+            }
+            logger.success("Indexed %d inputs, watching \"%s\" for new renders...", doneTimes.size(), root);
+
+            while (true) {
+                Set<File> dirty = new HashSet<>();
+                WatchKey key = watcher.take();
+                do {
+                    Path dir = (Path) key.watchable();
+                    for (WatchEvent<?> event : key.pollEvents()) {
+                        if (event.kind() == OVERFLOW) {
+                            logger.warn("Watch events overflowed, checking the done markers of all known inputs...");
+                            dirty.addAll(doneTimes.keySet());
+                            continue;
+                        }
+
+                        Path child = dir.resolve((Path) event.context());
+                        if (dir.equals(root)) {
+                            if (Files.isDirectory(child)) {
+                                logger.info("Found new input \"%s\"", child);
+                                child.register(watcher, ENTRY_CREATE, ENTRY_MODIFY);
+                                dirty.add(child.toFile()); //the marker might have been written before the directory was registered
+                            }
+                        } else if ("done".equals(child.getFileName().toString())) {
+                            dirty.add(dir.toFile());
+                        }
+                    }
+                    if (!key.reset()) {
+                        logger.warn("No longer watching \"%s\"!", dir);
+                    }
+                } while ((key = watcher.poll(SETTLE_TIME, TimeUnit.MILLISECONDS)) != null);
+
+                for (File input : dirty) {
+                    File done = new File(input, "done");
+                    if (!done.exists() || Objects.equals(doneTimes.get(input), done.lastModified())) {
+                        continue;
+                    }
+                    doneTimes.put(input, done.lastModified());
+
+                    logger.info("Merging new render \"%s\"...", input);
+                    long start = System.currentTimeMillis();
+                    for (String type : TYPES) {
+                        merge(logger.channel(type), trees.get(type), new File(DST, type).getAbsoluteFile(), new File(input, "mapcrafter/" + type));
+                    }
+                    logger.success("Merged \"%s\" in %dms.", input, System.currentTimeMillis() - start);
+                }
+            }
+        }
+    }
+
+    private static QuadTree<File> search(@NonNull Logger channel, @NonNull File typeSrc) throws IOException {
+        QuadTree<File> tree = new QuadTree<>();
+        if (typeSrc.isDirectory()) {
+            searchForFullImagesRecursive(channel, tree, new Stack<>(), typeSrc, count -> {});
+        }
+        return tree;
+    }
+
+    private static void merge(@NonNull Logger channel, @NonNull QuadTree<File> tree, @NonNull File typeDst, @NonNull File typeSrc) throws IOException {
+        Map<Stack<Integer>, File> changed = new LinkedHashMap<>();
+        search(channel, typeSrc).forEachValue((stack, file) -> {
+            if (tree.set(stack, file)) {
+                changed.put(stack, file);
+            }
+        });
+        if (changed.isEmpty()) {
+            channel.info("No new tiles in \"%s\".", typeSrc);
+            return;
+        }
+        channel.info("Inserted %d tiles from \"%s\".", changed.size(), typeSrc);
+
+        Set<List<Integer>> ancestors = new HashSet<>();
+        changed.forEach((IOBiConsumer<Stack<Integer>, File>) (stack, file) -> {
+            //this may replace a subtree that was previously contributed by another input
+            File dstDir = new File(typeDst, toPath(stack));
+            if (Files.isDirectory(dstDir.toPath(), LinkOption.NOFOLLOW_LINKS)) {
+                RM_RF.accept(dstDir);
+            } else {
+                Files.deleteIfExists(dstDir.toPath());
+            }
+            Files.deleteIfExists(new File(typeDst, toPath(stack, ".png")).toPath());
+            createLinks(channel, typeDst, stack, file);
+
+            for (int i = stack.size() - 1; i >= 0; i--) {
+                ancestors.add(new ArrayList<>(stack.subList(0, i)));
+            }
+        });
+
+        //regenerate from the bottom up, so that every image is built from already up-to-date children
+        List<List<Integer>> sorted = new ArrayList<>(ancestors);
+        sorted.sort(Comparator.<List<Integer>>comparingInt(List::size).reversed());
+        channel.info("Regenerating %d ancestor images...", sorted.size());
+        sorted.forEach((IOConsumer<List<Integer>>) path -> {
+            File dstFile = path.isEmpty() ? new File(typeDst, "base.png") : new File(typeDst, toPath(path, ".png"));
+            File tmpFile = new File(dstFile.getParentFile(), dstFile.getName() + ".tmp");
+            ImageIO.write(mergeChildren(new File(typeDst, toPath(path)), true), "png", tmpFile);
+            Files.move(tmpFile.toPath(), dstFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            channel.debug("Regenerated \"%s\"", dstFile);
+        });
+    }
+}
@@ -0,0 +1,179 @@
+/*
+ * Adapted from the Wizardry License
+ *
+ * Copyright (c) 2019-2019 DaPorkchop_ and contributors
+ *
+ * Permission is hereby granted to any persons and/or organizations using this software to copy, modify, merge, publish, and distribute it. Said persons and/or organizations are not allowed to use the software or any derivatives of the work for commercial use or any other means to generate income, nor are they allowed to claim this software as their own.
+ *
+ * The persons and/or organizations are also disallowed from sub-licensing and/or trademarking this software without explicit permission from DaPorkchop_.
+ *
+ * Any persons and/or organizations using this software must disclose their source code and have it publicly available, include this license, provide sufficient credit to the original authors of the project (IE: DaPorkchop_), as well as provide a link to the original project.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON INFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ */
+
+package net.daporkchop.mapcraftermerger;
+
+import lombok.Getter;
+import lombok.NonNull;
+import lombok.experimental.Accessors;
+
+import java.io.DataOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+/**
+ * Writes an 8-bit RGBA PNG image one row at a time.
+ * <p>
+ * Only a single row and the compressor state are ever held in memory, so the size of the image is only limited by
+ * the PNG format itself.
+ *
+ * @author DaPorkchop_
+ */
+@Accessors(fluent = true)
+public final class PngStreamWriter implements AutoCloseable {
+    private static final byte[] SIGNATURE = {(byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1A, '\n'};
+
+    private static final int CHUNK_SIZE = 1 << 16;
+
+    private static void writeChunk(@NonNull DataOutputStream out, @NonNull String type, @NonNull byte[] data, int length) throws IOException {
+        CRC32 crc = new CRC32();
+        byte[] typeBytes = type.getBytes(StandardCharsets.US_ASCII);
+        crc.update(typeBytes);
+        crc.update(data, 0, length);
+
+        out.writeInt(length);
+        out.write(typeBytes);
+        out.write(data, 0, length);
+        out.writeInt((int) crc.getValue());
+    }
+
+    private final DataOutputStream     out;
+    private final DeflaterOutputStream idat;
+    private final Deflater             deflater;
+
+    @Getter
+    private final int width;
+    @Getter
+    private final int height;
+
+    private final byte[] row;
+    private int rowsWritten = 0;
+
+    public PngStreamWriter(@NonNull OutputStream out, int width, int height) throws IOException {
+        if (width <= 0 || height <= 0) {
+            throw new IllegalArgumentException(String.format("Invalid image size: %dx%d", width, height));
+        } else if (width > (Integer.MAX_VALUE - 1) >> 2) {
+            throw new IllegalArgumentException(String.format("Image too wide: %d", width));
+        }
+        this.width = width;
+        this.height = height;
+        this.row = new byte[1 + (width << 2)];
+
+        this.out = new DataOutputStream(out);
+        this.out.write(SIGNATURE);
+
+        byte[] ihdr = new byte[13];
+        ihdr[0] = (byte) (width >>> 24);
+        ihdr[1] = (byte) (width >>> 16);
+        ihdr[2] = (byte) (width >>> 8);
+        ihdr[3] = (byte) width;
+        ihdr[4] = (byte) (height >>> 24);
+        ihdr[5] = (byte) (height >>> 16);
+        ihdr[6] = (byte) (height >>> 8);
+        ihdr[7] = (byte) height;
+        ihdr[8] = 8; //bit depth
+        ihdr[9] = 6; //color type: truecolor with alpha
+        writeChunk(this.out, "IHDR", ihdr, ihdr.length);
+
+        this.deflater = new Deflater(Deflater.DEFAULT_COMPRESSION);
+        this.idat = new DeflaterOutputStream(new FilterOutputStream(this.out) {
+            private final byte[] buf = new byte[CHUNK_SIZE];
+            private int count = 0;
+
+            @Override
+            public void write(int b) throws IOException {
+                if (this.count == CHUNK_SIZE) {
+                    this.flush();
+                }
+                this.buf[this.count++] = (byte) b;
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                while (len > 0) {
+                    if (this.count == CHUNK_SIZE) {
+                        this.flush();
+                    }
+                    int toCopy = Math.min(len, CHUNK_SIZE - this.count);
+                    System.arraycopy(b, off, this.buf, this.count, toCopy);
+                    this.count += toCopy;
+                    off += toCopy;
+                    len -= toCopy;
+                }
+            }
+
+            @Override
+            public void flush() throws IOException {
+                if (this.count > 0) {
+                    writeChunk(PngStreamWriter.this.out, "IDAT", this.buf, this.count);
+                    this.count = 0;
+                }
+            }
+
+            @Override
+            public void close() throws IOException {
+                this.flush(); //don't close the underlying stream, IEND still has to be written
+            }
+        }, this.deflater, CHUNK_SIZE);
+    }
+
+    /**
+     * Writes the next row of the image.
+     *
+     * @param argb   an array containing the row's pixels in ARGB format
+     * @param offset the index of the row's first pixel in the array
+     */
+    public void writeRow(@NonNull int[] argb, int offset) throws IOException {
+        if (this.rowsWritten >= this.height) {
+            throw new IllegalStateException("All rows have already been written!");
+        } else if (offset < 0 || offset + this.width > argb.length) {
+            throw new IndexOutOfBoundsException(String.valueOf(offset));
+        }
+
+        //use the "sub" filter, it's cheap and compresses large flat areas quite well
+        byte[] row = this.row;
+        row[0] = 1;
+        int prev = 0;
+        for (int x = 0, i = 1; x < this.width; x++, i += 4) {
+            int color = argb[offset + x];
+            row[i] = (byte) ((color >>> 16) - (prev >>> 16));
+            row[i + 1] = (byte) ((color >>> 8) - (prev >>> 8));
+            row[i + 2] = (byte) (color - prev);
+            row[i + 3] = (byte) ((color >>> 24) - (prev >>> 24));
+            prev = color;
+        }
+        this.idat.write(row);
+        this.rowsWritten++;
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            if (this.rowsWritten != this.height) {
+                throw new IllegalStateException(String.format("Only wrote %d/%d rows!", this.rowsWritten, this.height));
+            }
+            this.idat.close();
+            writeChunk(this.out, "IEND", new byte[0], 0);
+            this.out.flush();
+        } finally {
+            this.deflater.end();
+        }
+    }
+}
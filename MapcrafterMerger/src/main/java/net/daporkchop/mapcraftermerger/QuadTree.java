@@ -162,12 +162,7 @@ public final class QuadTree<V> extends Node<V> {
             for (Iterator<Integer> itr = stack.iterator(); itr.hasNext(); ) {
                 int index = itr.next() - 1;
                 if (node.hasValue()) {
-                    if (itr.hasNext()) {
-                        return false; //don't set anything if a higher node already has a value value
-                    } else {
-                        node.value(value);
-                        return true;
-                    }
+                    return false; //don't set anything if a higher node already has a value
                 } else if (itr.hasNext()) {
                     if (node.getChild(index) == null) {
                         node.setChild(index, new ReferenceNode<>(node));
@@ -0,0 +1,155 @@
+/*
+ * Adapted from the Wizardry License
+ *
+ * Copyright (c) 2019-2019 DaPorkchop_ and contributors
+ *
+ * Permission is hereby granted to any persons and/or organizations using this software to copy, modify, merge, publish, and distribute it. Said persons and/or organizations are not allowed to use the software or any derivatives of the work for commercial use or any other means to generate income, nor are they allowed to claim this software as their own.
+ *
+ * The persons and/or organizations are also disallowed from sub-licensing and/or trademarking this software without explicit permission from DaPorkchop_.
+ *
+ * Any persons and/or organizations using this software must disclose their source code and have it publicly available, include this license, provide sufficient credit to the original authors of the project (IE: DaPorkchop_), as well as provide a link to the original project.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON INFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ */
+
+package net.daporkchop.mapcraftermerger;
+
+import lombok.NonNull;
+import net.daporkchop.lib.logging.Logger;
+import net.daporkchop.lib.logging.Logging;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Stack;
+import java.util.stream.IntStream;
+
+import static net.daporkchop.mapcraftermerger.MapcrafterMerger.*;
+
+/**
+ * Stitches the tiles of a rectangular region of the merged map at a given zoom level into a single PNG image.
+ * <p>
+ * The image is generated one band of tiles at a time and streamed straight into a {@link PngStreamWriter}, so memory
+ * usage only depends on the width of the region, not on its height.
+ * <p>
+ * Usage: {@code RegionExporter <type> <maxZoom> <zoom> <minX> <minZ> <maxX> <maxZ> <output.png>}, where the
+ * coordinates are block coordinates (the maximum ones are exclusive), {@code maxZoom} is the most detailed zoom level
+ * of the map and {@code zoom} is the zoom level to export at.
+ *
+ * @author DaPorkchop_
+ */
+public class RegionExporter implements Logging {
+    public static final int TILE_SIZE = 256;
+
+    /**
+     * The width of a tile at the most detailed zoom level, in blocks.
+     */
+    public static final int BLOCKS_PER_TILE = 16;
+
+    public static void main(String... args) throws IOException {
+        if (args.length != 8) {
+            logger.error("Usage: RegionExporter <type> <maxZoom> <zoom> <minX> <minZ> <maxX> <maxZ> <output.png>");
+            return;
+        }
+        logger.enableANSI();
+
+        File typeDst = new File(DST, args[0]).getAbsoluteFile();
+        int maxZoom = Integer.parseInt(args[1]);
+        int zoom = Integer.parseInt(args[2]);
+        if (zoom < 1 || zoom > maxZoom) {
+            throw new IllegalArgumentException(String.format("Zoom level must be in range [1,%d]: %d", maxZoom, zoom));
+        }
+
+        //convert block coordinates to pixel coordinates at the requested zoom level
+        long blocksPerTile = (long) BLOCKS_PER_TILE << (maxZoom - zoom);
+        long minX = Math.floorDiv(Long.parseLong(args[3]) * TILE_SIZE, blocksPerTile);
+        long minY = Math.floorDiv(Long.parseLong(args[4]) * TILE_SIZE, blocksPerTile);
+        long maxX = Math.floorDiv(Long.parseLong(args[5]) * TILE_SIZE, blocksPerTile);
+        long maxY = Math.floorDiv(Long.parseLong(args[6]) * TILE_SIZE, blocksPerTile);
+        if (maxX <= minX || maxY <= minY || maxX - minX > Integer.MAX_VALUE || maxY - minY > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException(String.format("Invalid region size: %dx%d pixels", maxX - minX, maxY - minY));
+        }
+
+        File output = new File(args[7]).getAbsoluteFile();
+        try (OutputStream out = new BufferedOutputStream(new FileOutputStream(output))) {
+            export(logger.channel(args[0]), typeDst, zoom, minX, minY, (int) (maxX - minX), (int) (maxY - minY), out);
+        }
+        logger.success("Exported to \"%s\".", output);
+    }
+
+    public static void export(@NonNull Logger channel, @NonNull File typeDst, int zoom, long minX, long minY, int width, int height, @NonNull OutputStream out) throws IOException {
+        int minTileX = (int) Math.floorDiv(minX, TILE_SIZE);
+        int maxTileX = (int) Math.floorDiv(minX + width - 1, TILE_SIZE);
+        int minTileY = (int) Math.floorDiv(minY, TILE_SIZE);
+        int maxTileY = (int) Math.floorDiv(minY + height - 1, TILE_SIZE);
+        int tileRadius = 1 << (zoom - 1);
+        channel.info("Exporting %dx%d pixels from tiles (%d,%d) to (%d,%d) at zoom level %d...", width, height, minTileX, minTileY, maxTileX, maxTileY, zoom);
+
+        //pixel offset of the first tile column relative to the first output column
+        int offsetX = (int) (minX - (long) minTileX * TILE_SIZE);
+        int[] band = new int[(maxTileX - minTileX + 1) * TILE_SIZE * TILE_SIZE];
+        int bandWidth = (maxTileX - minTileX + 1) * TILE_SIZE;
+
+        try (PngStreamWriter writer = new PngStreamWriter(out, width, height)) {
+            for (int tileY = minTileY; tileY <= maxTileY; tileY++) {
+                Arrays.fill(band, 0);
+                final int ty = tileY;
+                IntStream.rangeClosed(minTileX, maxTileX).parallel().forEach(tileX -> {
+                    if (tileX < -tileRadius || tileX >= tileRadius || ty < -tileRadius || ty >= tileRadius) {
+                        return; //outside of the map
+                    }
+                    File file = new File(typeDst, toPath(toTilePath(tileX, ty, zoom), ".png"));
+                    if (!file.exists()) {
+                        return;
+                    }
+                    try {
+                        BufferedImage img = ImageIO.read(file);
+                        img.getRGB(0, 0, TILE_SIZE, TILE_SIZE, band, (tileX - minTileX) * TILE_SIZE, bandWidth);
+                    } catch (IOException e) {
+                        throw new RuntimeException(e);
+                    }
+                });
+
+                //only write the rows of this band that are inside the region
+                int firstRow = (int) Math.max(minY - (long) tileY * TILE_SIZE, 0L);
+                int lastRow = (int) Math.min(minY + height - (long) tileY * TILE_SIZE, TILE_SIZE);
+                for (int y = firstRow; y < lastRow; y++) {
+                    writer.writeRow(band, y * bandWidth + offsetX);
+                }
+                channel.debug("Wrote tile row %d/%d", tileY - minTileY + 1, maxTileY - minTileY + 1);
+            }
+        }
+    }
+
+    /**
+     * Gets the quadtree path of the tile at the given tile coordinates.
+     * <p>
+     * At a zoom level {@code z}, tile coordinates range from {@code -2^(z-1)} (inclusive) to {@code 2^(z-1)}
+     * (exclusive) on both axes, with the origin in the center of the map.
+     */
+    public static List<Integer> toTilePath(int tileX, int tileY, int zoom) {
+        Stack<Integer> path = new Stack<>();
+
+        //work with doubled coordinates so that the center of every tile is on an integer position
+        long x = 2L * tileX + 1L;
+        long y = 2L * tileY + 1L;
+        long centerX = 0L;
+        long centerY = 0L;
+        long radius = 1L << zoom;
+        for (int i = 0; i < zoom; i++) {
+            Sector sector = Sector.fromDeltas(x >= centerX ? 1 : -1, y >= centerY ? 1 : -1);
+            path.push(sector.offsetIndex());
+            radius >>= 1L;
+            centerX += sector.deltaX * radius;
+            centerY += sector.deltaY * radius;
+        }
+        return path;
+    }
+}
@@ -37,6 +37,10 @@ public enum Sector {
         return VALUES[i - 1];
     }
 
+    public static Sector fromDeltas(int deltaX, int deltaY) {
+        return VALUES[(deltaX > 0 ? 1 : 0) | (deltaY > 0 ? 2 : 0)];
+    }
+
     public final int deltaX;
     public final int deltaY;
 
@@ -0,0 +1,197 @@
+/*
+ * Adapted from the Wizardry License
+ *
+ * Copyright (c) 2019-2019 DaPorkchop_ and contributors
+ *
+ * Permission is hereby granted to any persons and/or organizations using this software to copy, modify, merge, publish, and distribute it. Said persons and/or organizations are not allowed to use the software or any derivatives of the work for commercial use or any other means to generate income, nor are they allowed to claim this software as their own.
+ *
+ * The persons and/or organizations are also disallowed from sub-licensing and/or trademarking this software without explicit permission from DaPorkchop_.
+ *
+ * Any persons and/or organizations using this software must disclose their source code and have it publicly available, include this license, provide sufficient credit to the original authors of the project (IE: DaPorkchop_), as well as provide a link to the original project.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON INFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ */
+
+package net.daporkchop.mapcraftermerger;
+
+import lombok.NonNull;
+import net.daporkchop.lib.logging.LogAmount;
+import net.daporkchop.lib.logging.Logger;
+import net.daporkchop.lib.logging.Logging;
+
+import javax.imageio.ImageIO;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Stack;
+
+import static net.daporkchop.mapcraftermerger.MapcrafterMerger.*;
+
+/**
+ * Splits the work done by {@link MapcrafterMerger} across multiple processes, which only share the filesystem.
+ * <p>
+ * Usage:
+ * <ul>
+ *     <li>{@code ShardedMerger worker <prefix>...}: merges only the subtrees at the given quadtree paths (e.g.
+ *     {@code 1/3} or {@code 1/3/*}), writing into {@link MapcrafterMerger#DST} and generating the scaled-down images
+ *     down to the prefix itself.</li>
+ *     <li>{@code ShardedMerger coordinator <depth>}: once all workers are done, generates the levels above the shard
+ *     roots (which are all at the given depth) and {@code base.png}.</li>
+ * </ul>
+ * As in a non-sharded merge, a complete image above a shard root covers the entire shard. Workers leave such shards
+ * empty, and the coordinator links the covering image instead.
+ * <p>
+ * Unlike a non-sharded merge, the output isn't wiped beforehand, so it may still contain the links to covering images
+ * made by an earlier run. Those are removed before anything below them is deleted or written (see
+ * {@link MapcrafterMerger#unlinkAncestors}), as that would otherwise modify the inputs.
+ *
+ * @author DaPorkchop_
+ */
+public class ShardedMerger implements Logging {
+    public static void main(String... args) throws IOException {
+        if (args.length < 2 || !("worker".equals(args[0]) || "coordinator".equals(args[0]))) {
+            logger.error("Usage: ShardedMerger worker <prefix>... | ShardedMerger coordinator <depth>");
+            return;
+        }
+
+        String mode = args[0];
+        logger.enableANSI()
+                .addFile(new File(mode + ".log").getAbsoluteFile(), true, LogAmount.NORMAL)
+                .addFile(new File(mode + "-debug.log").getAbsoluteFile(), true, LogAmount.DEBUG);
+
+        if ("worker".equals(mode)) {
+            List<List<Integer>> prefixes = new ArrayList<>();
+            for (int i = 1; i < args.length; i++) {
+                prefixes.add(parsePrefix(args[i]));
+            }
+            worker(prefixes);
+        } else {
+            coordinator(Integer.parseInt(args[1]));
+        }
+        logger.success("Done!");
+    }
+
+    private static void worker(@NonNull List<List<Integer>> prefixes) throws IOException {
+        logger.info("\nStarting MapcrafterMerger worker for %s...\n\n", prefixes);
+
+        logger.info("Searching for inputs...");
+        Collection<File> validInputs = findInputs();
+        logger.info("Found %d inputs: %s", validInputs.size(), validInputs);
+
+        for (String type : TYPES) {
+            File typeDst = new File(DST, type).getAbsoluteFile();
+
+            for (List<Integer> prefix : prefixes) {
+                Logger channel = logger.channel(type + ' ' + toPath(prefix));
+
+                channel.info("Nuking old output...");
+                clearOutput(channel, typeDst, prefix);
+
+                QuadTree<File> tree = buildTree(channel, validInputs, type, prefix);
+                List<Stack<Integer>> covering = new ArrayList<>();
+                tree.forEachValue((stack, file) -> {
+                    if (stack.size() < prefix.size()) {
+                        covering.add(stack);
+                    }
+                });
+                if (!covering.isEmpty()) {
+                    channel.success("Covered by a complete image at %s, leaving it to the coordinator", covering.get(0));
+                    continue;
+                }
+
+                channel.info("Building symlinks...");
+                createLinks(channel, typeDst, tree);
+
+                generateLevels(channel, tree, typeDst, prefix.size());
+                channel.success("Done!");
+            }
+        }
+    }
+
+    private static void coordinator(int depth) throws IOException {
+        logger.info("\nStarting MapcrafterMerger coordinator for shards at depth %d...\n\n", depth);
+
+        logger.info("Searching for inputs...");
+        Collection<File> validInputs = findInputs();
+        logger.info("Found %d inputs: %s", validInputs.size(), validInputs);
+
+        for (String type : TYPES) {
+            File typeDst = new File(DST, type).getAbsoluteFile();
+            Logger channel = logger.channel(type);
+
+            channel.info("Searching for complete images above the shard roots...");
+            QuadTree<File> tree = new QuadTree<>();
+            for (File input : validInputs) {
+                File root = new File(input, type);
+                if (root.isDirectory()) {
+                    searchAbove(channel, tree, new Stack<>(), root, depth);
+                }
+            }
+            List<Stack<Integer>> covering = new ArrayList<>();
+            tree.forEachValue((stack, file) -> covering.add(stack));
+            for (Stack<Integer> path : covering) {
+                clearOutput(channel, typeDst, path);
+            }
+            channel.info("Building symlinks for %d covering images...", covering.size());
+            createLinks(channel, typeDst, tree);
+
+            channel.info("Collecting shard roots...");
+            for (Stack<Integer> path : QuadTree.computeAllPossiblePaths(depth)) {
+                if (covering.stream().anyMatch(c -> path.subList(0, c.size()).equals(c))) {
+                    continue;
+                }
+                File file = new File(typeDst, toPath(path, ".png"));
+                if (file.exists()) {
+                    tree.set(path, file);
+                } else {
+                    channel.warn("Missing shard root: \"%s\"", file);
+                }
+            }
+
+            generateLevels(channel, tree, typeDst, 1);
+
+            channel.info("Generating base image...");
+            ImageIO.write(mergeChildren(typeDst, false), "png", new File(typeDst, "base.png"));
+
+            channel.success("Done!");
+        }
+    }
+
+    /**
+     * Searches an input for complete images above the given depth, the same way
+     * {@link MapcrafterMerger#searchForFullImagesRecursive} would.
+     */
+    private static void searchAbove(@NonNull Logger channel, @NonNull QuadTree<File> tree, @NonNull Stack<Integer> stack, @NonNull File dir, int depth) throws IOException {
+        for (Sector sector : Sector.VALUES) {
+            File imgFile = new File(dir, sector.offsetIndex() + ".png");
+            if (!imgFile.isFile()) {
+                continue;
+            }
+            stack.push(sector.offsetIndex());
+            if (isComplete(ImageIO.read(imgFile))) {
+                channel.trace("Found complete image: \"%s\"!", imgFile);
+                tree.set(stack, imgFile);
+            } else if (stack.size() < depth - 1) {
+                searchAbove(channel, tree, stack, new File(dir, String.valueOf(sector.offsetIndex())), depth);
+            }
+            stack.pop();
+        }
+    }
+
+    private static List<Integer> parsePrefix(@NonNull String prefix) {
+        if (prefix.endsWith("/*")) {
+            prefix = prefix.substring(0, prefix.length() - 2);
+        }
+        if (!prefix.matches("[1234](/[1234])*")) {
+            throw new IllegalArgumentException(String.format("Invalid quadtree prefix: \"%s\"", prefix));
+        }
+
+        List<Integer> path = new ArrayList<>();
+        Arrays.stream(prefix.split("/")).mapToInt(Integer::parseInt).forEach(path::add);
+        return path;
+    }
+}
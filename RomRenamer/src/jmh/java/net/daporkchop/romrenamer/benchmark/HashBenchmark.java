@@ -0,0 +1,126 @@
+/*
+ * Adapted from the Wizardry License
+ *
+ * Copyright (c) 2019-2019 DaPorkchop_ and contributors
+ *
+ * Permission is hereby granted to any persons and/or organizations using this software to copy, modify, merge, publish, and distribute it. Said persons and/or organizations are not allowed to use the software or any derivatives of the work for commercial use or any other means to generate income, nor are they allowed to claim this software as their own.
+ *
+ * The persons and/or organizations are also disallowed from sub-licensing and/or trademarking this software without explicit permission from DaPorkchop_.
+ *
+ * Any persons and/or organizations using this software must disclose their source code and have it publicly available, include this license, provide sufficient credit to the original authors of the project (IE: DaPorkchop_), as well as provide a link to the original project.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON INFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ */
+
+package net.daporkchop.romrenamer.benchmark;
+
+import net.daporkchop.lib.common.util.PorkUtil;
+import net.daporkchop.romrenamer.Main2;
+import net.daporkchop.romrenamer.RomHasher;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Hashes a ROM which is in the page cache, so that only the hashing itself is measured.
+ * <p>
+ * {@link RomHasher}'s block size is fixed per JVM, it can be changed with e.g.
+ * {@code -Djmh.jvmArgsAppend=-Dromrenamer.hashBlockSize=4194304}. The benchmarks which take a {@link Buffer} are run
+ * once for every {@link Buffer#bufferSize} instead.
+ *
+ * @author DaPorkchop_
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class HashBenchmark {
+    @Param({"16777216", "134217728"})
+    public int romSize;
+
+    private Path             path;
+    private FileChannel      channel;
+    private MappedByteBuffer map;
+
+    @Setup
+    public void setup() throws IOException {
+        this.path = NdsFixtures.rom(this.romSize, 0L);
+        this.channel = FileChannel.open(this.path, StandardOpenOption.READ);
+        this.map = this.channel.map(FileChannel.MapMode.READ_ONLY, 0L, this.romSize);
+        this.map.load();
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        PorkUtil.release(this.map);
+        this.channel.close();
+        Files.deleteIfExists(this.path);
+    }
+
+    /**
+     * The original single-digest hashing loop.
+     */
+    @Benchmark
+    public byte[] main2Hash(HashBenchmark state, Buffer buffer) throws IOException {
+        return Main2.hash(state.channel, Main2.DIGEST_ALG, buffer.buffer);
+    }
+
+    /**
+     * All digests at once, reading the file with {@link RomHasher}'s double-buffered reader.
+     */
+    @Benchmark
+    public Map<RomHasher.Algorithm, byte[]> romHasher(HashBenchmark state) throws IOException {
+        return RomHasher.hash(state.channel, RomHasher.Algorithm.values());
+    }
+
+    /**
+     * All digests at once, feeding a mapping of the file to the digests in blocks of {@link Buffer#bufferSize} bytes.
+     */
+    @Benchmark
+    public Map<RomHasher.Algorithm, byte[]> session(HashBenchmark state, Buffer buffer) {
+        RomHasher.Session session = RomHasher.session(RomHasher.Algorithm.values());
+        for (int pos = 0; pos < state.romSize; pos += buffer.bufferSize) {
+            ByteBuffer block = state.map.duplicate();
+            block.position(pos).limit(Math.min(pos + buffer.bufferSize, state.romSize));
+            session.update(block);
+        }
+        return session.finish();
+    }
+
+    /**
+     * The block size used by the benchmarks which take it as a parameter.
+     */
+    @State(Scope.Thread)
+    public static class Buffer {
+        @Param({"65536", "1048576", "4194304"})
+        public int bufferSize;
+
+        private ByteBuffer buffer;
+
+        @Setup
+        public void setup() {
+            this.buffer = ByteBuffer.allocateDirect(this.bufferSize);
+        }
+
+        @TearDown
+        public void tearDown() {
+            PorkUtil.release(this.buffer);
+        }
+    }
+}
@@ -0,0 +1,83 @@
+/*
+ * Adapted from the Wizardry License
+ *
+ * Copyright (c) 2019-2019 DaPorkchop_ and contributors
+ *
+ * Permission is hereby granted to any persons and/or organizations using this software to copy, modify, merge, publish, and distribute it. Said persons and/or organizations are not allowed to use the software or any derivatives of the work for commercial use or any other means to generate income, nor are they allowed to claim this software as their own.
+ *
+ * The persons and/or organizations are also disallowed from sub-licensing and/or trademarking this software without explicit permission from DaPorkchop_.
+ *
+ * Any persons and/or organizations using this software must disclose their source code and have it publicly available, include this license, provide sufficient credit to the original authors of the project (IE: DaPorkchop_), as well as provide a link to the original project.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON INFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ */
+
+package net.daporkchop.romrenamer.benchmark;
+
+import net.daporkchop.romrenamer.Main1;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Normalizes file names using {@link Main1}'s rules.
+ *
+ * @author DaPorkchop_
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class NameBenchmark {
+    private static final int COUNT = 1024;
+
+    private static final String[] TITLES = {
+            "Legend of Foo, The",
+            "Bar Racing",
+            "Quest for Baz, A",
+            "Legende von Qux, Die",
+            "Foo Party Version 2",
+            "Super Foo Bros",
+    };
+    private static final String[] TAGS = {
+            " (Europe)",
+            " (USA)",
+            " (En,Fr,De,Es,It)",
+            " (DSi Enhanced)",
+            " (Rev 1)",
+            "",
+    };
+
+    private String[] names;
+
+    @Setup
+    public void setup() {
+        Random random = new Random(0L);
+        this.names = new String[COUNT];
+        for (int i = 0; i < COUNT; i++) {
+            StringBuilder builder = new StringBuilder();
+            builder.append(String.format("%04d - ", i)).append(TITLES[random.nextInt(TITLES.length)]);
+            for (int j = random.nextInt(4); j > 0; j--) {
+                builder.append(TAGS[random.nextInt(TAGS.length)]);
+            }
+            this.names[i] = builder.append(".nds").toString().replace(' ', random.nextInt(8) == 0 ? '_' : ' ');
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(COUNT)
+    public void normalize(NameBenchmark state, Blackhole blackhole) {
+        for (String name : state.names) {
+            blackhole.consume(Main1.NORMALIZER.normalize(name));
+        }
+    }
+}
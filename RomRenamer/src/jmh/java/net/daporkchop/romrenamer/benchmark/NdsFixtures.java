@@ -0,0 +1,97 @@
+/*
+ * Adapted from the Wizardry License
+ *
+ * Copyright (c) 2019-2019 DaPorkchop_ and contributors
+ *
+ * Permission is hereby granted to any persons and/or organizations using this software to copy, modify, merge, publish, and distribute it. Said persons and/or organizations are not allowed to use the software or any derivatives of the work for commercial use or any other means to generate income, nor are they allowed to claim this software as their own.
+ *
+ * The persons and/or organizations are also disallowed from sub-licensing and/or trademarking this software without explicit permission from DaPorkchop_.
+ *
+ * Any persons and/or organizations using this software must disclose their source code and have it publicly available, include this license, provide sufficient credit to the original authors of the project (IE: DaPorkchop_), as well as provide a link to the original project.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON INFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ */
+
+package net.daporkchop.romrenamer.benchmark;
+
+import net.daporkchop.romrenamer.Main2;
+import net.daporkchop.romrenamer.RomHeader;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+/**
+ * Generates synthetic NDS ROM data for the benchmarks.
+ *
+ * @author DaPorkchop_
+ */
+public final class NdsFixtures {
+    public static final int ICON_OFFSET = 0x8000;
+
+    /**
+     * @return the header of a ROM with the given size, whose icon/title block is at {@link #ICON_OFFSET}
+     */
+    public static ByteBuffer header(long size) {
+        ByteBuffer header = ByteBuffer.allocate(RomHeader.HEADER_READ_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        header.put("BENCHMARK".getBytes(StandardCharsets.US_ASCII));
+        header.position(0x00C);
+        header.put("BNCE01".getBytes(StandardCharsets.US_ASCII));
+        header.put(0x01E, (byte) 1);
+        header.putInt(0x068, ICON_OFFSET);
+        header.putInt(0x080, (int) size);
+        header.clear();
+        return header;
+    }
+
+    /**
+     * @return a random icon/title block with an animated DSi icon and titles in all languages
+     */
+    public static ByteBuffer iconTitle(long seed) {
+        Random random = new Random(seed);
+        ByteBuffer iconTitle = ByteBuffer.allocate(RomHeader.ICON_TITLE_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        random.nextBytes(iconTitle.array());
+        iconTitle.putShort(0x000, (short) 0x0103);
+
+        for (Main2.TitleLanguage language : Main2.TitleLanguage.values()) {
+            String title = "Benchmark Title " + language + "\nA Subtitle\nDaPorkchop_";
+            int offset = 0x240 + language.ordinal() * 0x100;
+            for (int i = 0; i < 0x100 >> 1; i++) {
+                iconTitle.putChar(offset + (i << 1), i < title.length() ? title.charAt(i) : 0);
+            }
+        }
+
+        //an animation sequence using every bitmap and palette, with random flips and durations
+        for (int i = 0; i < 32; i++) {
+            iconTitle.putShort(0x2340 + (i << 1), (short) ((random.nextInt(15) + 1) | (i & 7) << 8 | ((i >> 3) & 7) << 11 | random.nextInt(4) << 14));
+        }
+        iconTitle.putShort(0x2340 + (32 << 1), (short) 0);
+        return iconTitle;
+    }
+
+    /**
+     * Writes a ROM with the given size and random contents to a temporary file.
+     */
+    public static Path rom(long size, long seed) throws IOException {
+        Path path = Files.createTempFile("benchmark", ".nds");
+        path.toFile().deleteOnExit();
+
+        Random random = new Random(seed);
+        byte[] contents = new byte[(int) size];
+        random.nextBytes(contents);
+        ByteBuffer.wrap(contents).put(header(size));
+        if (size >= ICON_OFFSET + RomHeader.ICON_TITLE_SIZE) {
+            ByteBuffer.wrap(contents, ICON_OFFSET, RomHeader.ICON_TITLE_SIZE).put(iconTitle(seed));
+        }
+        Files.write(path, contents);
+        return path;
+    }
+
+    private NdsFixtures() {
+    }
+}
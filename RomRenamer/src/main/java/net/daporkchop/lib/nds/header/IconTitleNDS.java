@@ -36,7 +36,7 @@ public class IconTitleNDS implements AutoCloseable {
             this.parent = parent;
             int offset = parent.headersRegion.getInt(104);
             int size = 0x2340 + 0x80;
-            this.map = parent.channel.map(MapMode.READ_WRITE, (long)offset, (long)size);
+            this.map = parent.channel.map(MapMode.READ_ONLY, (long)offset, (long)size);
             this.map.order(ByteOrder.LITTLE_ENDIAN);
             this.version = this.map.getShort(0) & '\uffff';
         }
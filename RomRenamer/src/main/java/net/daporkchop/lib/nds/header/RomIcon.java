@@ -16,9 +16,18 @@
 package net.daporkchop.lib.nds.header;
 
 import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
 import java.nio.ByteBuffer;
 
 public class RomIcon {
+    private static final int[] COLOR_5_TO_8 = new int[32];
+
+    static {
+        for (int i = 0; i < 32; i++) {
+            COLOR_5_TO_8[i] = color5bitTo8bit(i);
+        }
+    }
+
     protected final short[] palette;
     protected final byte[]  pixels;
 
@@ -51,27 +60,86 @@ public class RomIcon {
     }
 
     public BufferedImage getAsBufferedImage() {
-        BufferedImage img = new BufferedImage(32, 32, 2);
-
-        for (int x = 31; x >= 0; --x) {
-            for (int y = 31; y >= 0; --y) {
-                int color = this.getColor(x, y);
-                if (color == -1) {
-                    img.setRGB(x, y, 0);
-                } else {
-                    img.setRGB(
-                            x, y,
-                            0xFF000000
-                                    | color5bitTo8bit(color >>> 10)
-                                    | (color5bitTo8bit(color >>> 5) << 8)
-                                    | (color5bitTo8bit(color) << 16)
-                    );
-                }
-                //img.setRGB(x, y, (color == 0 ? 0 : 0xFF000000) | ((color >>> 10 & 0x1F) << (0 + 3)) | ((color >>> 5 & 0x1F) << (8 + 3)) | ((color & 0x1F) << (16 + 3)));
+        BufferedImage img = new BufferedImage(32, 32, BufferedImage.TYPE_INT_ARGB);
+        this.decode(toArgb(this.palette, null), ((DataBufferInt) img.getRaster().getDataBuffer()).getData(), 0, 32, false, false);
+        return img;
+    }
+
+    /**
+     * Decodes this icon into an ARGB raster.
+     * <p>
+     * The pixel data is walked in memory order (8x8 tiles of 4bpp pixels), and each pixel is written straight to its
+     * (optionally flipped) destination.
+     *
+     * @param argbPalette this icon's palette, as converted by {@link #toArgb(short[], int[])}
+     * @param dst         the raster to write to
+     * @param offset      the index of the top-left pixel in the raster
+     * @param stride      the width of a row in the raster
+     * @param flipH       whether to flip the icon horizontally
+     * @param flipV       whether to flip the icon vertically
+     */
+    public void decode(int[] argbPalette, int[] dst, int offset, int stride, boolean flipH, boolean flipV) {
+        byte[] pixels = this.pixels;
+        int dx = flipH ? -1 : 1;
+        for (int i = 0; i < 512; i++) {
+            int b = pixels[i] & 0xFF;
+            int x = ((i >>> 5) & 3) << 3 | (i & 3) << 1;
+            int y = (i >>> 7) << 3 | (i >>> 2) & 7;
+            if (flipH) {
+                x ^= 0x1F;
             }
+            if (flipV) {
+                y ^= 0x1F;
+            }
+            int j = offset + y * stride + x;
+            dst[j] = argbPalette[b & 0xF];
+            dst[j + dx] = argbPalette[b >>> 4];
         }
+    }
 
-        return img;
+    /**
+     * Decodes this icon's palette indices into a row-major raster, without resolving any colors.
+     *
+     * @see #decode(int[], int[], int, int, boolean, boolean)
+     */
+    public void decodeIndices(byte[] dst, int offset, int stride, boolean flipH, boolean flipV) {
+        byte[] pixels = this.pixels;
+        int dx = flipH ? -1 : 1;
+        for (int i = 0; i < 512; i++) {
+            int b = pixels[i] & 0xFF;
+            int x = ((i >>> 5) & 3) << 3 | (i & 3) << 1;
+            int y = (i >>> 7) << 3 | (i >>> 2) & 7;
+            if (flipH) {
+                x ^= 0x1F;
+            }
+            if (flipV) {
+                y ^= 0x1F;
+            }
+            int j = offset + y * stride + x;
+            dst[j] = (byte) (b & 0xF);
+            dst[j + dx] = (byte) (b >>> 4);
+        }
+    }
+
+    /**
+     * Converts a BGR555 palette to ARGB. Index 0 is always transparent.
+     *
+     * @param dst the array to write to, or {@code null} to allocate a new one
+     * @return the ARGB palette
+     */
+    public static int[] toArgb(short[] palette, int[] dst) {
+        if (dst == null) {
+            dst = new int[16];
+        }
+        dst[0] = 0;
+        for (int i = 1; i < 16; i++) {
+            int color = palette[i];
+            dst[i] = 0xFF000000
+                    | COLOR_5_TO_8[(color >>> 10) & 0x1F]
+                    | (COLOR_5_TO_8[(color >>> 5) & 0x1F] << 8)
+                    | (COLOR_5_TO_8[color & 0x1F] << 16);
+        }
+        return dst;
     }
 
     //sauce: https://stackoverflow.com/a/9069480/4395213
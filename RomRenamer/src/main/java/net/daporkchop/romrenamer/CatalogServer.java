@@ -0,0 +1,412 @@
+/*
+ * Adapted from the Wizardry License
+ *
+ * Copyright (c) 2019-2019 DaPorkchop_ and contributors
+ *
+ * Permission is hereby granted to any persons and/or organizations using this software to copy, modify, merge, publish, and distribute it. Said persons and/or organizations are not allowed to use the software or any derivatives of the work for commercial use or any other means to generate income, nor are they allowed to claim this software as their own.
+ *
+ * The persons and/or organizations are also disallowed from sub-licensing and/or trademarking this software without explicit permission from DaPorkchop_.
+ *
+ * Any persons and/or organizations using this software must disclose their source code and have it publicly available, include this license, provide sufficient credit to the original authors of the project (IE: DaPorkchop_), as well as provide a link to the original project.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON INFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ */
+
+package net.daporkchop.romrenamer;
+
+import com.google.gson.Gson;
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.DefaultFileRegion;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.SimpleChannelInboundHandler;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.SocketChannel;
+import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.handler.codec.http.DefaultFullHttpResponse;
+import io.netty.handler.codec.http.DefaultHttpResponse;
+import io.netty.handler.codec.http.FullHttpRequest;
+import io.netty.handler.codec.http.FullHttpResponse;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpHeaderValues;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpObjectAggregator;
+import io.netty.handler.codec.http.HttpResponse;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.HttpServerCodec;
+import io.netty.handler.codec.http.HttpUtil;
+import io.netty.handler.codec.http.HttpVersion;
+import io.netty.handler.codec.http.LastHttpContent;
+import io.netty.handler.codec.http.QueryStringDecoder;
+import io.netty.util.concurrent.DefaultEventExecutorGroup;
+import io.netty.util.concurrent.EventExecutorGroup;
+import lombok.AllArgsConstructor;
+import lombok.NonNull;
+import net.daporkchop.lib.encoding.Hexadecimal;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Serves the repository written by {@link Main2} over HTTP.
+ * <p>
+ * Routes:
+ * <ul>
+ *     <li>{@code /titles}: a JSON array of the names of all titles</li>
+ *     <li>{@code /titles/<name>/manifest.json}: the manifest of a title</li>
+ *     <li>{@code /icons/<hash>.png}, {@code /icons/<hash>.gif}, {@code /icons/atlas.png} and
+ *     {@code /icons/atlas.json}: icons, see {@link IconStore}</li>
+ *     <li>{@code /roms/<hash>}: the ROM with the given SHA-256 hash. ROMs which are stored in an archive are served as
+ *     the entire archive</li>
+ * </ul>
+ * Everything but ROMs is kept in an LRU cache, which is checked against the files' modification times so that a sync
+ * of the repository is picked up without restarting the server. ROMs are sent straight from the file, without copying
+ * them into user space.
+ * <p>
+ * Requests are handled on a separate {@link EventExecutorGroup} rather than on the event loops, as reading files,
+ * listing titles and opening ROMs all block on the disk.
+ * <p>
+ * All responses carry an {@code ETag}, and support {@code If-None-Match} and single-range {@code Range} requests.
+ * <p>
+ * The root of the repository defaults to {@link Main2#DST}, and can be set using {@code romrenamer.server.root}, e.g.
+ * to test against a small fixture repository.
+ *
+ * @author DaPorkchop_
+ */
+public class CatalogServer {
+    public static final File ROOT       = new File(System.getProperty("romrenamer.server.root", Main2.DST.getPath()));
+    public static final int  PORT       = Integer.getInteger("romrenamer.server.port", 8080);
+    public static final int  CACHE_SIZE = Integer.getInteger("romrenamer.server.cacheSize", 4096);
+    public static final int  IO_THREADS = Integer.getInteger("romrenamer.server.ioThreads", 16);
+
+    private static final Pattern HASH_PATTERN  = Pattern.compile("^[0-9a-f]{64}$");
+    private static final Pattern ICON_PATTERN  = Pattern.compile("^(?:[0-9a-f]{64}\\.(?:png|gif)|atlas\\.(?:png|json))$");
+    private static final Pattern RANGE_PATTERN = Pattern.compile("^bytes=(\\d*)-(\\d*)$");
+
+    public static void main(String... args) throws InterruptedException {
+        EventLoopGroup boss = new NioEventLoopGroup(1);
+        EventLoopGroup workers = new NioEventLoopGroup();
+        EventExecutorGroup io = new DefaultEventExecutorGroup(IO_THREADS);
+        try {
+            Channel channel = start(new RepoLayout(ROOT), boss, workers, io, PORT).sync().channel();
+            System.out.printf("Serving \"%s\" on port %d\n", ROOT, PORT);
+            channel.closeFuture().sync();
+        } finally {
+            boss.shutdownGracefully();
+            workers.shutdownGracefully();
+            io.shutdownGracefully();
+        }
+    }
+
+    /**
+     * Starts serving the given repository.
+     *
+     * @param io the executors that requests are handled on, as handling them blocks on the disk
+     * @return a future which is completed once the server is listening
+     */
+    public static ChannelFuture start(@NonNull RepoLayout repo, @NonNull EventLoopGroup boss, @NonNull EventLoopGroup workers, @NonNull EventExecutorGroup io, int port) {
+        Handler handler = new Handler(repo, new Cache(CACHE_SIZE));
+        return new ServerBootstrap()
+                .group(boss, workers)
+                .channel(NioServerSocketChannel.class)
+                .childHandler(new ChannelInitializer<SocketChannel>() {
+                    @Override
+                    protected void initChannel(SocketChannel ch) {
+                        ch.pipeline()
+                                .addLast(new HttpServerCodec())
+                                .addLast(new HttpObjectAggregator(1 << 16))
+                                .addLast(io, handler);
+                    }
+                })
+                .bind(port);
+    }
+
+    @ChannelHandler.Sharable
+    private static final class Handler extends SimpleChannelInboundHandler<FullHttpRequest> {
+        private final RepoLayout repo;
+        private final Cache      cache;
+        private final Gson       gson = new Gson();
+
+        public Handler(@NonNull RepoLayout repo, @NonNull Cache cache) {
+            this.repo = repo;
+            this.cache = cache;
+        }
+
+        @Override
+        protected void channelRead0(ChannelHandlerContext ctx, FullHttpRequest request) throws Exception {
+            if (!request.decoderResult().isSuccess()) {
+                this.error(ctx, request, HttpResponseStatus.BAD_REQUEST);
+                return;
+            } else if (request.method() != HttpMethod.GET && request.method() != HttpMethod.HEAD) {
+                this.error(ctx, request, HttpResponseStatus.METHOD_NOT_ALLOWED);
+                return;
+            }
+
+            String[] path = new QueryStringDecoder(request.uri()).path().split("/", -1);
+            if (path.length == 2 && path[1].equals("titles")) {
+                File dir = this.repo.infoDir();
+                Cached titles = this.cache.get(dir, () -> {
+                    String[] names = Objects.requireNonNull(dir.list((d, name) -> new File(d, name).isDirectory()));
+                    Arrays.sort(names);
+                    return this.gson.toJson(names).getBytes(StandardCharsets.UTF_8);
+                });
+                this.send(ctx, request, titles, "application/json");
+            } else if (path.length == 4 && path[1].equals("titles") && path[3].equals("manifest.json") && validName(path[2])) {
+                this.send(ctx, request, this.cache.get(new File(this.repo.titleDir(path[2]), "manifest.json")), "application/json");
+            } else if (path.length == 3 && path[1].equals("icons") && ICON_PATTERN.matcher(path[2]).matches()) {
+                String name = path[2];
+                File file = name.startsWith("atlas.")
+                        ? new File(this.repo.iconDir(), name)
+                        : this.repo.iconFile(name.substring(0, name.indexOf('.')), name.substring(name.indexOf('.')));
+                String type = name.endsWith(".png") ? "image/png" : name.endsWith(".gif") ? "image/gif" : "application/json";
+                this.send(ctx, request, this.cache.get(file), type);
+            } else if (path.length == 3 && path[1].equals("roms") && HASH_PATTERN.matcher(path[2]).matches()) {
+                this.sendRom(ctx, request, path[2]);
+            } else {
+                this.error(ctx, request, HttpResponseStatus.NOT_FOUND);
+            }
+        }
+
+        /**
+         * Sends a cached file, or a 404 if it doesn't exist.
+         */
+        private void send(@NonNull ChannelHandlerContext ctx, @NonNull FullHttpRequest request, Cached cached, @NonNull String type) {
+            if (cached == null) {
+                this.error(ctx, request, HttpResponseStatus.NOT_FOUND);
+                return;
+            }
+
+            Range range = this.range(ctx, request, cached.etag, cached.data.length, type);
+            if (range == null) {
+                return;
+            }
+            HttpResponse response = response(range, cached.data.length, cached.etag, type);
+            FullHttpResponse full = new DefaultFullHttpResponse(HttpVersion.HTTP_1_1, response.status(),
+                    request.method() == HttpMethod.HEAD ? Unpooled.EMPTY_BUFFER : Unpooled.wrappedBuffer(cached.data, (int) range.start, (int) (range.end - range.start)));
+            full.headers().set(response.headers());
+            this.finish(ctx, request, ctx.writeAndFlush(full));
+        }
+
+        private void sendRom(@NonNull ChannelHandlerContext ctx, @NonNull FullHttpRequest request, @NonNull String hash) throws IOException {
+            String type = "application/octet-stream";
+            File file = this.repo.romFile(hash, ".nds");
+            if (!file.exists()) {
+                file = this.repo.romFile(hash, ".zip");
+                type = "application/zip";
+            }
+
+            RandomAccessFile raf;
+            try {
+                raf = new RandomAccessFile(file, "r");
+            } catch (IOException e) { //doesn't exist, or the link is dangling
+                this.error(ctx, request, HttpResponseStatus.NOT_FOUND);
+                return;
+            }
+
+            //ROMs are content-addressed, so the hash is a strong ETag
+            String etag = '"' + hash + '"';
+            long size = raf.length();
+            Range range = this.range(ctx, request, etag, size, type);
+            if (range == null || request.method() == HttpMethod.HEAD) {
+                raf.close();
+                if (range != null) {
+                    this.finish(ctx, request, ctx.writeAndFlush(fullResponse(response(range, size, etag, type))));
+                }
+                return;
+            }
+
+            ctx.write(response(range, size, etag, type));
+            ctx.write(new DefaultFileRegion(raf.getChannel(), range.start, range.end - range.start));
+            this.finish(ctx, request, ctx.writeAndFlush(LastHttpContent.EMPTY_LAST_CONTENT));
+        }
+
+        /**
+         * Handles {@code If-None-Match} and {@code Range}.
+         *
+         * @return the range of bytes to send, or {@code null} if a response has already been sent
+         */
+        private Range range(@NonNull ChannelHandlerContext ctx, @NonNull FullHttpRequest request, @NonNull String etag, long size, @NonNull String type) {
+            String ifNoneMatch = request.headers().get(HttpHeaderNames.IF_NONE_MATCH);
+            if (ifNoneMatch != null && (ifNoneMatch.equals("*") || Arrays.asList(ifNoneMatch.split("\\s*,\\s*")).contains(etag))) {
+                FullHttpResponse response = new DefaultFullHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.NOT_MODIFIED);
+                response.headers().set(HttpHeaderNames.ETAG, etag);
+                this.finish(ctx, request, ctx.writeAndFlush(response));
+                return null;
+            }
+
+            String header = request.headers().get(HttpHeaderNames.RANGE);
+            String ifRange = request.headers().get(HttpHeaderNames.IF_RANGE);
+            Matcher matcher;
+            if (header == null || (ifRange != null && !ifRange.equals(etag)) || !(matcher = RANGE_PATTERN.matcher(header)).matches()) {
+                //multiple ranges aren't supported, so the entire content is sent instead
+                return new Range(0L, size, false);
+            }
+
+            long start;
+            long end;
+            try {
+                if (matcher.group(1).isEmpty()) { //suffix range
+                    start = Math.max(size - Long.parseLong(matcher.group(2)), 0L);
+                    end = size;
+                } else {
+                    start = Long.parseLong(matcher.group(1));
+                    end = matcher.group(2).isEmpty() ? size : Math.min(Long.parseLong(matcher.group(2)) + 1L, size);
+                }
+            } catch (NumberFormatException e) { //too long
+                start = end = size;
+            }
+            if (start >= end) {
+                FullHttpResponse response = new DefaultFullHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.REQUESTED_RANGE_NOT_SATISFIABLE);
+                response.headers().set(HttpHeaderNames.CONTENT_RANGE, "bytes */" + size);
+                HttpUtil.setContentLength(response, 0L);
+                this.finish(ctx, request, ctx.writeAndFlush(response));
+                return null;
+            }
+            return new Range(start, end, true);
+        }
+
+        private void error(@NonNull ChannelHandlerContext ctx, @NonNull FullHttpRequest request, @NonNull HttpResponseStatus status) {
+            FullHttpResponse response = new DefaultFullHttpResponse(HttpVersion.HTTP_1_1, status, Unpooled.copiedBuffer(status.toString(), StandardCharsets.UTF_8));
+            response.headers().set(HttpHeaderNames.CONTENT_TYPE, "text/plain; charset=UTF-8");
+            HttpUtil.setContentLength(response, response.content().readableBytes());
+            this.finish(ctx, request, ctx.writeAndFlush(response));
+        }
+
+        private void finish(@NonNull ChannelHandlerContext ctx, @NonNull FullHttpRequest request, @NonNull ChannelFuture future) {
+            if (!HttpUtil.isKeepAlive(request)) {
+                future.addListener(ChannelFutureListener.CLOSE);
+            }
+        }
+
+        @Override
+        public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
+            cause.printStackTrace();
+            ctx.close();
+        }
+
+        private static boolean validName(@NonNull String name) {
+            return !name.isEmpty() && !name.equals(".") && !name.equals("..") && name.indexOf('\\') < 0;
+        }
+
+        private static HttpResponse response(@NonNull Range range, long size, @NonNull String etag, @NonNull String type) {
+            HttpResponse response = new DefaultHttpResponse(HttpVersion.HTTP_1_1, range.partial ? HttpResponseStatus.PARTIAL_CONTENT : HttpResponseStatus.OK);
+            response.headers()
+                    .set(HttpHeaderNames.CONTENT_TYPE, type)
+                    .set(HttpHeaderNames.ETAG, etag)
+                    .set(HttpHeaderNames.ACCEPT_RANGES, HttpHeaderValues.BYTES);
+            if (range.partial) {
+                response.headers().set(HttpHeaderNames.CONTENT_RANGE, String.format("bytes %d-%d/%d", range.start, range.end - 1L, size));
+            }
+            HttpUtil.setContentLength(response, range.end - range.start);
+            return response;
+        }
+
+        private static FullHttpResponse fullResponse(@NonNull HttpResponse response) {
+            FullHttpResponse full = new DefaultFullHttpResponse(HttpVersion.HTTP_1_1, response.status());
+            full.headers().set(response.headers());
+            return full;
+        }
+    }
+
+    /**
+     * A range of bytes to send.
+     */
+    @AllArgsConstructor
+    private static final class Range {
+        private final long    start;
+        private final long    end;
+        /**
+         * Whether the range was requested by the client, and should be sent as partial content.
+         */
+        private final boolean partial;
+    }
+
+    /**
+     * The contents of a file, along with its modification time and {@code ETag}.
+     */
+    private static final class Cached {
+        private final byte[] data;
+        private final long   modified;
+        private final String etag;
+
+        public Cached(@NonNull byte[] data, long modified) {
+            this.data = data;
+            this.modified = modified;
+            try {
+                this.etag = '"' + Hexadecimal.encode(Arrays.copyOf(MessageDigest.getInstance("SHA-256").digest(data), 16)) + '"';
+            } catch (NoSuchAlgorithmException e) {
+                throw new RuntimeException(e);
+            }
+        }
+    }
+
+    /**
+     * An LRU cache of file contents, keyed by file.
+     */
+    private static final class Cache {
+        private final LinkedHashMap<File, Cached> map;
+
+        public Cache(int size) {
+            this.map = new LinkedHashMap<File, Cached>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<File, Cached> eldest) {
+                    return this.size() > size;
+                }
+            };
+        }
+
+        /**
+         * @return the contents of the given file, or {@code null} if it doesn't exist
+         */
+        public Cached get(@NonNull File file) throws IOException {
+            return this.get(file, () -> Files.readAllBytes(file.toPath()));
+        }
+
+        /**
+         * @param loader computes the cached data from the given file (or directory)
+         * @return the cached data, or {@code null} if the file doesn't exist
+         */
+        public Cached get(@NonNull File file, @NonNull Loader loader) throws IOException {
+            long modified = file.lastModified();
+            if (modified == 0L) { //doesn't exist
+                return null;
+            }
+
+            Cached cached;
+            synchronized (this.map) {
+                cached = this.map.get(file);
+            }
+            if (cached == null || cached.modified != modified) {
+                //loading isn't synchronized, so concurrent misses for the same file may load it more than once
+                cached = new Cached(loader.load(), modified);
+                synchronized (this.map) {
+                    this.map.put(file, cached);
+                }
+            }
+            return cached;
+        }
+    }
+
+    @FunctionalInterface
+    private interface Loader {
+        byte[] load() throws IOException;
+    }
+}
@@ -0,0 +1,614 @@
+/*
+ * Adapted from the Wizardry License
+ *
+ * Copyright (c) 2019-2019 DaPorkchop_ and contributors
+ *
+ * Permission is hereby granted to any persons and/or organizations using this software to copy, modify, merge, publish, and distribute it. Said persons and/or organizations are not allowed to use the software or any derivatives of the work for commercial use or any other means to generate income, nor are they allowed to claim this software as their own.
+ *
+ * The persons and/or organizations are also disallowed from sub-licensing and/or trademarking this software without explicit permission from DaPorkchop_.
+ *
+ * Any persons and/or organizations using this software must disclose their source code and have it publicly available, include this license, provide sufficient credit to the original authors of the project (IE: DaPorkchop_), as well as provide a link to the original project.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON INFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ */
+
+package net.daporkchop.romrenamer;
+
+import lombok.AllArgsConstructor;
+import lombok.NonNull;
+import net.daporkchop.lib.common.misc.file.PFiles;
+import net.daporkchop.lib.common.util.PorkUtil;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.NonWritableChannelException;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Stores ROMs split into content-defined chunks, each of which is only stored once across the whole store.
+ * <p>
+ * Chunk boundaries are chosen by a rolling gear hash over the ROM's contents, so that data which is shared between
+ * ROMs (e.g. between regional variants or revisions of the same game) results in identical chunks even if it's at a
+ * different offset. Chunks are identified by their SHA-256 hash, compressed with deflate (unless that doesn't make
+ * them any smaller) and appended to pack files. The index maps every chunk to its location in the packs, and every
+ * ROM has a recipe which lists the chunks it's made of.
+ * <p>
+ * Stored ROMs can be read at any offset via {@link #open(String)}, only the chunks covering the requested range are
+ * decompressed.
+ * <p>
+ * Index records are buffered until a ROM is finished, at which point the packs are forced to disk, then the buffered
+ * records are written and the index is forced, and only then is the ROM's recipe written.
+ *
+ * @author DaPorkchop_
+ */
+public final class ChunkStore implements AutoCloseable {
+    private static final int INDEX_MAGIC  = 0x52524349; //"RRCI"
+    private static final int RECIPE_MAGIC = 0x52524352; //"RRCR"
+    private static final int VERSION      = 1;
+
+    public static final int MIN_CHUNK_SIZE = 1 << 14;
+    public static final int MAX_CHUNK_SIZE = 1 << 18;
+    /**
+     * Gives an average chunk size of {@link #MIN_CHUNK_SIZE} + 64KiB.
+     */
+    private static final long BOUNDARY_MASK = (1L << 16) - 1L;
+
+    public static final long MAX_PACK_SIZE = Long.getLong("romrenamer.chunkStore.packSize", 1L << 30);
+    public static final int  CACHE_SIZE    = Integer.getInteger("romrenamer.chunkStore.cacheSize", 64);
+
+    private static final int ID_SIZE           = 32;
+    private static final int INDEX_RECORD_SIZE = ID_SIZE + 4 + 8 + 4 + 4 + 1;
+
+    private static final int METHOD_STORED   = 0;
+    private static final int METHOD_DEFLATED = 1;
+
+    private static final long[] GEAR = new long[256];
+
+    static {
+        Random random = new Random(0x5EEDC0DEL);
+        for (int i = 0; i < GEAR.length; i++) {
+            GEAR[i] = random.nextLong();
+        }
+    }
+
+    public static ChunkStore open(@NonNull File dir) throws IOException {
+        return new ChunkStore(PFiles.ensureDirectoryExists(dir));
+    }
+
+    private final File dir;
+
+    private final Map<ByteBuffer, Location>         index = new ConcurrentHashMap<>();
+    private final Map<Integer, FileChannel>         packs = new ConcurrentHashMap<>();
+    private final FileChannel                       indexChannel;
+    private final LinkedHashMap<ByteBuffer, byte[]> cache = new LinkedHashMap<ByteBuffer, byte[]>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<ByteBuffer, byte[]> eldest) {
+            return this.size() > CACHE_SIZE;
+        }
+    };
+
+    //both guarded by this
+    private final List<ByteBuffer> pendingRecords = new ArrayList<>();
+    private final Set<Integer>     dirtyPacks     = new HashSet<>();
+
+    private int  currentPack;
+    private long currentPackSize;
+
+    private ChunkStore(@NonNull File dir) throws IOException {
+        this.dir = dir;
+        this.indexChannel = FileChannel.open(new File(dir, "index.bin").toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.CREATE);
+
+        long size = this.indexChannel.size();
+        if (size == 0L) {
+            ByteBuffer header = ByteBuffer.allocate(8);
+            header.putInt(INDEX_MAGIC).putInt(VERSION).flip();
+            this.indexChannel.write(header, 0L);
+            this.indexChannel.position(8L);
+        } else {
+            MappedByteBuffer map = this.indexChannel.map(FileChannel.MapMode.READ_ONLY, 0L, size);
+            try {
+                if (map.getInt() != INDEX_MAGIC || map.getInt() != VERSION) {
+                    throw new IOException(String.format("\"%s\" is not a chunk index!", new File(dir, "index.bin")));
+                }
+
+                //index records are only written once the chunks' data has been forced to disk, so every complete
+                // record points to valid data and anything incomplete at the end can safely be dropped
+                int valid = map.position();
+                while (map.remaining() >= INDEX_RECORD_SIZE) {
+                    byte[] id = new byte[ID_SIZE];
+                    map.get(id);
+                    Location location = new Location(map.getInt(), map.getLong(), map.getInt(), map.getInt(), map.get());
+                    this.index.put(ByteBuffer.wrap(id), location);
+                    this.currentPack = Math.max(this.currentPack, location.pack);
+                    valid = map.position();
+                }
+                this.indexChannel.position(valid);
+                this.indexChannel.truncate(valid);
+            } finally {
+                PorkUtil.release(map);
+            }
+        }
+
+        //continue appending to the last pack, discarding any data that was written without being indexed
+        long packEnd = 0L;
+        for (Location location : this.index.values()) {
+            if (location.pack == this.currentPack) {
+                packEnd = Math.max(packEnd, location.offset + location.storedLength);
+            }
+        }
+        FileChannel pack = this.pack(this.currentPack);
+        pack.truncate(packEnd);
+        this.currentPackSize = packEnd;
+    }
+
+    /**
+     * @return whether the ROM with the given hash is stored
+     */
+    public boolean contains(@NonNull String hash) {
+        return this.recipeFile(hash).exists();
+    }
+
+    /**
+     * Stores the entire contents of the given file.
+     *
+     * @param hash the hash that the ROM will be stored under
+     */
+    public void put(@NonNull String hash, @NonNull FileChannel channel) throws IOException {
+        Writer writer = this.writer();
+        ByteBuffer buffer = ByteBuffer.allocate(MAX_CHUNK_SIZE);
+        for (long pos = 0L, size = channel.size(); pos < size; ) {
+            buffer.clear().limit((int) Math.min(buffer.capacity(), size - pos));
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer, pos + buffer.position()) < 0) {
+                    throw new EOFException();
+                }
+            }
+            buffer.flip();
+            writer.accept(buffer, pos);
+            pos += buffer.limit();
+        }
+        writer.finish(hash);
+    }
+
+    /**
+     * @return a writer which stores a ROM whose contents are supplied block by block
+     */
+    public Writer writer() {
+        return new Writer();
+    }
+
+    /**
+     * Opens a stored ROM for reading.
+     */
+    public StoredRom open(@NonNull String hash) throws IOException {
+        File file = this.recipeFile(hash);
+        ByteBuffer recipe = ByteBuffer.wrap(Files.readAllBytes(file.toPath()));
+        try {
+            if (recipe.getInt() != RECIPE_MAGIC || recipe.getInt() != VERSION) {
+                throw new IOException(String.format("\"%s\" is not a chunk recipe!", file));
+            }
+            long size = recipe.getLong();
+            int count = recipe.getInt();
+            ByteBuffer[] ids = new ByteBuffer[count];
+            long[] offsets = new long[count + 1];
+            for (int i = 0; i < count; i++) {
+                byte[] id = new byte[ID_SIZE];
+                recipe.get(id);
+                ids[i] = ByteBuffer.wrap(id);
+                offsets[i + 1] = offsets[i] + (recipe.getInt() & 0xFFFFFFFFL);
+            }
+            if (offsets[count] != size) {
+                throw new IOException(String.format("\"%s\" is corrupt!", file));
+            }
+            return new StoredRom(ids, offsets);
+        } catch (BufferUnderflowException e) {
+            throw new IOException(String.format("\"%s\" is truncated!", file), e);
+        }
+    }
+
+    private File recipeFile(@NonNull String hash) {
+        return new File(this.dir, String.format("roms/%s/%s/%s.rcp", hash.subSequence(0, 2), hash.subSequence(2, 4), hash));
+    }
+
+    private FileChannel pack(int pack) {
+        return this.packs.computeIfAbsent(pack, i -> {
+            try {
+                return FileChannel.open(new File(this.dir, String.format("pack-%05d.bin", i)).toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.CREATE);
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        });
+    }
+
+    /**
+     * Appends a chunk to the current pack, unless another thread has already stored a chunk with the same ID.
+     * <p>
+     * The chunk's index record is only written by the next {@link #flush()}.
+     */
+    private synchronized void append(@NonNull ByteBuffer id, @NonNull byte[] data, int storedLength, int length, int method) throws IOException {
+        if (this.index.containsKey(id)) {
+            return;
+        }
+
+        if (this.currentPackSize > 0L && this.currentPackSize + storedLength > MAX_PACK_SIZE) {
+            this.currentPack++;
+            this.currentPackSize = 0L;
+        }
+        Location location = new Location(this.currentPack, this.currentPackSize, storedLength, length, (byte) method);
+        writeFully(this.pack(location.pack), ByteBuffer.wrap(data, 0, storedLength), location.offset);
+        this.currentPackSize += storedLength;
+        this.dirtyPacks.add(location.pack);
+
+        ByteBuffer record = ByteBuffer.allocate(INDEX_RECORD_SIZE);
+        record.put(id.duplicate()).putInt(location.pack).putLong(location.offset).putInt(location.storedLength).putInt(location.length).put(location.method).flip();
+        this.pendingRecords.add(record);
+        this.index.put(id, location);
+    }
+
+    /**
+     * Makes every chunk appended so far durable.
+     * <p>
+     * The packs are forced before the index records pointing into them are written, and the index is forced before
+     * returning.
+     */
+    private synchronized void flush() throws IOException {
+        if (this.pendingRecords.isEmpty()) {
+            return;
+        }
+
+        for (int pack : this.dirtyPacks) {
+            this.pack(pack).force(false);
+        }
+        this.dirtyPacks.clear();
+
+        ByteBuffer records = ByteBuffer.allocate(this.pendingRecords.size() * INDEX_RECORD_SIZE);
+        this.pendingRecords.forEach(records::put);
+        records.flip();
+        while (records.hasRemaining()) {
+            this.indexChannel.write(records);
+        }
+        this.pendingRecords.clear();
+        this.indexChannel.force(false);
+    }
+
+    /**
+     * Gets the uncompressed contents of a chunk.
+     */
+    private byte[] chunk(@NonNull ByteBuffer id) throws IOException {
+        synchronized (this.cache) {
+            byte[] data = this.cache.get(id);
+            if (data != null) {
+                return data;
+            }
+        }
+
+        Location location = this.index.get(id);
+        if (location == null) {
+            throw new IOException(String.format("Chunk %s is missing from the index!", hex(id)));
+        }
+        byte[] stored = new byte[location.storedLength + 1]; //raw inflation sometimes needs an extra dummy byte
+        ByteBuffer buffer = ByteBuffer.wrap(stored, 0, location.storedLength);
+        while (buffer.hasRemaining()) {
+            if (this.pack(location.pack).read(buffer, location.offset + buffer.position()) < 0) {
+                throw new EOFException(String.format("Chunk %s is truncated!", hex(id)));
+            }
+        }
+
+        byte[] data;
+        if (location.method == METHOD_STORED) {
+            data = Arrays.copyOf(stored, location.storedLength);
+        } else {
+            data = new byte[location.length];
+            Inflater inflater = new Inflater(true);
+            try {
+                inflater.setInput(stored);
+                if (inflater.inflate(data) != location.length) {
+                    throw new IOException(String.format("Chunk %s is corrupt!", hex(id)));
+                }
+            } catch (DataFormatException e) {
+                throw new IOException(String.format("Chunk %s is corrupt!", hex(id)), e);
+            } finally {
+                inflater.end();
+            }
+        }
+
+        synchronized (this.cache) {
+            this.cache.put(id, data);
+        }
+        return data;
+    }
+
+    private static void writeFully(@NonNull FileChannel channel, @NonNull ByteBuffer buffer, long position) throws IOException {
+        for (int start = buffer.position(); buffer.hasRemaining(); ) {
+            channel.write(buffer, position + buffer.position() - start);
+        }
+    }
+
+    private static String hex(@NonNull ByteBuffer id) {
+        StringBuilder builder = new StringBuilder(ID_SIZE << 1);
+        for (int i = 0; i < ID_SIZE; i++) {
+            builder.append(String.format("%02x", id.get(i) & 0xFF));
+        }
+        return builder.toString();
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            this.flush();
+        } finally {
+            this.indexChannel.close();
+            for (FileChannel pack : this.packs.values()) {
+                pack.close();
+            }
+        }
+    }
+
+    @AllArgsConstructor
+    private static final class Location {
+        private final int  pack;
+        private final long offset;
+        private final int  storedLength;
+        private final int  length;
+        private final byte method;
+    }
+
+    /**
+     * Splits a ROM into chunks and stores them. Blocks must be given in order.
+     * <p>
+     * A single writer may only be used by one thread at a time.
+     */
+    public final class Writer implements ZipArchive.BlockConsumer {
+        private final byte[]        chunk      = new byte[MAX_CHUNK_SIZE];
+        private final byte[]        compressed = new byte[MAX_CHUNK_SIZE];
+        private final Deflater      deflater   = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        private final MessageDigest digest;
+
+        private final List<byte[]>  ids     = new ArrayList<>();
+        private final List<Integer> lengths = new ArrayList<>();
+
+        private int  length;
+        private int  scanned;
+        private long fingerprint;
+        private long size;
+
+        private Writer() {
+            try {
+                this.digest = MessageDigest.getInstance("SHA-256");
+            } catch (NoSuchAlgorithmException e) {
+                throw new RuntimeException(e);
+            }
+        }
+
+        @Override
+        public boolean accept(@NonNull ByteBuffer block, long offset) throws IOException {
+            if (offset != this.size) {
+                throw new IllegalArgumentException(String.format("Expected block at offset %d, but got %d", this.size, offset));
+            }
+            this.size += block.remaining();
+
+            while (block.hasRemaining()) {
+                int count = Math.min(block.remaining(), MAX_CHUNK_SIZE - this.length);
+                block.get(this.chunk, this.length, count);
+                this.length += count;
+                this.cut();
+            }
+            return true;
+        }
+
+        /**
+         * Emits a chunk at every boundary in the buffered data.
+         */
+        private void cut() throws IOException {
+            while (true) {
+                long fingerprint = this.fingerprint;
+                int boundary = -1;
+                for (int i = Math.max(this.scanned, MIN_CHUNK_SIZE); i < this.length; i++) {
+                    fingerprint = (fingerprint << 1) + GEAR[this.chunk[i] & 0xFF];
+                    if ((fingerprint & BOUNDARY_MASK) == 0L) {
+                        boundary = i + 1;
+                        break;
+                    }
+                }
+                if (boundary < 0 && this.length == MAX_CHUNK_SIZE) {
+                    boundary = MAX_CHUNK_SIZE;
+                }
+                if (boundary < 0) {
+                    this.fingerprint = fingerprint;
+                    this.scanned = this.length;
+                    return;
+                }
+                this.emit(boundary);
+            }
+        }
+
+        private void emit(int length) throws IOException {
+            this.digest.update(this.chunk, 0, length);
+            ByteBuffer id = ByteBuffer.wrap(this.digest.digest());
+
+            if (!ChunkStore.this.index.containsKey(id)) {
+                this.deflater.reset();
+                this.deflater.setInput(this.chunk, 0, length);
+                this.deflater.finish();
+                int compressedLength = 0;
+                while (!this.deflater.finished() && compressedLength < length) {
+                    compressedLength += this.deflater.deflate(this.compressed, compressedLength, length - compressedLength);
+                }
+
+                if (this.deflater.finished() && compressedLength < length) {
+                    ChunkStore.this.append(id, this.compressed, compressedLength, length, METHOD_DEFLATED);
+                } else {
+                    ChunkStore.this.append(id, this.chunk, length, length, METHOD_STORED);
+                }
+            }
+            this.ids.add(id.array());
+            this.lengths.add(length);
+
+            System.arraycopy(this.chunk, length, this.chunk, 0, this.length - length);
+            this.length -= length;
+            this.scanned = 0;
+            this.fingerprint = 0L;
+        }
+
+        /**
+         * Stores the remaining data and writes the ROM's recipe.
+         *
+         * @param hash the hash that the ROM will be stored under
+         */
+        public void finish(@NonNull String hash) throws IOException {
+            try {
+                if (this.length > 0) {
+                    this.emit(this.length);
+                }
+            } finally {
+                this.deflater.end();
+            }
+
+            ByteBuffer recipe = ByteBuffer.allocate(4 + 4 + 8 + 4 + this.ids.size() * (ID_SIZE + 4));
+            recipe.putInt(RECIPE_MAGIC).putInt(VERSION).putLong(this.size).putInt(this.ids.size());
+            for (int i = 0; i < this.ids.size(); i++) {
+                recipe.put(this.ids.get(i)).putInt(this.lengths.get(i));
+            }
+
+            //the recipe is only written once all of its chunks are durable. this also flushes chunks appended by other
+            // writers, which is necessary as this ROM may have been deduplicated against them
+            ChunkStore.this.flush();
+            Path path = ChunkStore.this.recipeFile(hash).toPath();
+            PFiles.ensureDirectoryExists(path.getParent().toFile());
+            Path tmp = path.resolveSibling(path.getFileName() + ".tmp");
+            try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.WRITE, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                writeFully(channel, ByteBuffer.wrap(recipe.array()), 0L);
+                channel.force(false);
+            }
+            Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+    }
+
+    /**
+     * A read-only view of a stored ROM, which can be read at any position.
+     */
+    public final class StoredRom implements SeekableByteChannel {
+        private final ByteBuffer[] ids;
+        /**
+         * The offset of every chunk, followed by the total size.
+         */
+        private final long[]       offsets;
+
+        private long    position;
+        private boolean open = true;
+
+        private StoredRom(@NonNull ByteBuffer[] ids, @NonNull long[] offsets) {
+            this.ids = ids;
+            this.offsets = offsets;
+        }
+
+        /**
+         * Reads bytes starting at the given position, without changing this channel's position.
+         *
+         * @return the number of bytes read, or {@code -1} if the position is at or after the end of the ROM
+         */
+        public int read(@NonNull ByteBuffer dst, long position) throws IOException {
+            this.ensureOpen();
+            long size = this.size();
+            if (position >= size) {
+                return -1;
+            }
+
+            int total = 0;
+            while (dst.hasRemaining() && position < size) {
+                int chunk = Arrays.binarySearch(this.offsets, position);
+                if (chunk < 0) {
+                    chunk = -chunk - 2; //the chunk before the insertion point
+                }
+                byte[] data = ChunkStore.this.chunk(this.ids[chunk]);
+                int offset = (int) (position - this.offsets[chunk]);
+                int count = Math.min(dst.remaining(), data.length - offset);
+                dst.put(data, offset, count);
+                position += count;
+                total += count;
+            }
+            return total;
+        }
+
+        @Override
+        public int read(@NonNull ByteBuffer dst) throws IOException {
+            int count = this.read(dst, this.position);
+            if (count > 0) {
+                this.position += count;
+            }
+            return count;
+        }
+
+        @Override
+        public int write(ByteBuffer src) {
+            throw new NonWritableChannelException();
+        }
+
+        @Override
+        public long position() throws IOException {
+            this.ensureOpen();
+            return this.position;
+        }
+
+        @Override
+        public StoredRom position(long newPosition) throws IOException {
+            this.ensureOpen();
+            if (newPosition < 0L) {
+                throw new IllegalArgumentException(String.valueOf(newPosition));
+            }
+            this.position = newPosition;
+            return this;
+        }
+
+        @Override
+        public long size() {
+            return this.offsets[this.offsets.length - 1];
+        }
+
+        @Override
+        public SeekableByteChannel truncate(long size) {
+            throw new NonWritableChannelException();
+        }
+
+        @Override
+        public boolean isOpen() {
+            return this.open;
+        }
+
+        @Override
+        public void close() {
+            this.open = false;
+        }
+
+        private void ensureOpen() throws IOException {
+            if (!this.open) {
+                throw new ClosedChannelException();
+            }
+        }
+    }
+}
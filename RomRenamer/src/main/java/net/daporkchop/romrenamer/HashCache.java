@@ -0,0 +1,192 @@
+/*
+ * Adapted from the Wizardry License
+ *
+ * Copyright (c) 2019-2019 DaPorkchop_ and contributors
+ *
+ * Permission is hereby granted to any persons and/or organizations using this software to copy, modify, merge, publish, and distribute it. Said persons and/or organizations are not allowed to use the software or any derivatives of the work for commercial use or any other means to generate income, nor are they allowed to claim this software as their own.
+ *
+ * The persons and/or organizations are also disallowed from sub-licensing and/or trademarking this software without explicit permission from DaPorkchop_.
+ *
+ * Any persons and/or organizations using this software must disclose their source code and have it publicly available, include this license, provide sufficient credit to the original authors of the project (IE: DaPorkchop_), as well as provide a link to the original project.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON INFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ */
+
+package net.daporkchop.romrenamer;
+
+import lombok.AllArgsConstructor;
+import lombok.EqualsAndHashCode;
+import lombok.NonNull;
+import lombok.ToString;
+import net.daporkchop.lib.common.util.PorkUtil;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A persistent cache of ROM digests, keyed by the identity of the file they were computed from.
+ * <p>
+ * The cache is stored as an append-only log of records, which is memory-mapped and read into memory once when the
+ * cache is opened. Later records for the same path replace earlier ones. A record that was only partially written
+ * (e.g. because the program was killed) is discarded and overwritten by the next append.
+ *
+ * @author DaPorkchop_
+ */
+public final class HashCache implements AutoCloseable {
+    private static final int MAGIC   = 0x52524843; //"RRHC"
+    private static final int VERSION = 1;
+
+    public static HashCache open(@NonNull File file) throws IOException {
+        return new HashCache(file.toPath());
+    }
+
+    private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+    private final FileChannel        channel;
+
+    private HashCache(@NonNull Path path) throws IOException {
+        this.channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.CREATE);
+
+        long size = this.channel.size();
+        if (size == 0L) {
+            ByteBuffer header = ByteBuffer.allocate(8);
+            header.putInt(MAGIC).putInt(VERSION).flip();
+            this.channel.write(header, 0L);
+            this.channel.position(8L);
+            return;
+        }
+
+        MappedByteBuffer map = this.channel.map(FileChannel.MapMode.READ_ONLY, 0L, size);
+        try {
+            if (map.getInt() != MAGIC || map.getInt() != VERSION) {
+                throw new IOException(String.format("\"%s\" is not a hash cache!", path));
+            }
+
+            int valid = map.position();
+            try {
+                while (map.hasRemaining()) {
+                    int length = map.getInt();
+                    if (length <= 0 || length > map.remaining()) {
+                        break;
+                    }
+                    int end = map.position() + length;
+
+                    byte[] pathBytes = new byte[map.getShort() & 0xFFFF];
+                    map.get(pathBytes);
+                    FileIdentity identity = new FileIdentity(map.getLong(), map.getLong(), map.getLong());
+                    Map<RomHasher.Algorithm, byte[]> digests = new EnumMap<>(RomHasher.Algorithm.class);
+                    for (int i = map.get() & 0xFF; i > 0; i--) {
+                        RomHasher.Algorithm algorithm = RomHasher.Algorithm.values()[map.get() & 0xFF];
+                        byte[] digest = new byte[map.get() & 0xFF];
+                        map.get(digest);
+                        digests.put(algorithm, digest);
+                    }
+                    if (map.position() != end) {
+                        break;
+                    }
+
+                    this.entries.put(new String(pathBytes, StandardCharsets.UTF_8), new Entry(identity, digests));
+                    valid = end;
+                }
+            } catch (BufferUnderflowException | ArrayIndexOutOfBoundsException e) {
+                //incomplete or corrupt record, ignore it and everything after it
+            }
+            this.channel.position(valid);
+            this.channel.truncate(valid);
+        } finally {
+            PorkUtil.release(map);
+        }
+    }
+
+    /**
+     * Gets the cached digests for the given file.
+     *
+     * @param identity   the file's current identity
+     * @param algorithms the algorithms that are required
+     * @return the digests, or {@code null} if the file has changed or not all of the required digests are cached
+     */
+    public Map<RomHasher.Algorithm, byte[]> get(@NonNull Path path, @NonNull FileIdentity identity, @NonNull RomHasher.Algorithm... algorithms) {
+        Entry entry = this.entries.get(path.toAbsolutePath().toString());
+        if (entry == null || !entry.identity.equals(identity)) {
+            return null;
+        }
+        for (RomHasher.Algorithm algorithm : algorithms) {
+            if (!entry.digests.containsKey(algorithm)) {
+                return null;
+            }
+        }
+        return entry.digests;
+    }
+
+    public void put(@NonNull Path path, @NonNull FileIdentity identity, @NonNull Map<RomHasher.Algorithm, byte[]> digests) throws IOException {
+        String key = path.toAbsolutePath().toString();
+        byte[] pathBytes = key.getBytes(StandardCharsets.UTF_8);
+
+        int length = 2 + pathBytes.length + 3 * 8 + 1;
+        for (byte[] digest : digests.values()) {
+            length += 2 + digest.length;
+        }
+
+        ByteBuffer buffer = ByteBuffer.allocate(4 + length);
+        buffer.putInt(length).putShort((short) pathBytes.length).put(pathBytes)
+                .putLong(identity.size).putLong(identity.modified).putLong(identity.inode)
+                .put((byte) digests.size());
+        digests.forEach((algorithm, digest) -> buffer.put((byte) algorithm.ordinal()).put((byte) digest.length).put(digest));
+        buffer.flip();
+
+        synchronized (this.channel) {
+            while (buffer.hasRemaining()) {
+                this.channel.write(buffer);
+            }
+        }
+        this.entries.put(key, new Entry(identity, new EnumMap<>(digests)));
+    }
+
+    @Override
+    public void close() throws IOException {
+        this.channel.close();
+    }
+
+    @AllArgsConstructor
+    private static final class Entry {
+        @NonNull
+        private final FileIdentity                     identity;
+        @NonNull
+        private final Map<RomHasher.Algorithm, byte[]> digests;
+    }
+
+    /**
+     * The identity of a file: if any of these change, the file's contents are assumed to have changed as well.
+     */
+    @AllArgsConstructor
+    @EqualsAndHashCode
+    @ToString
+    public static final class FileIdentity {
+        public static FileIdentity of(@NonNull Path path) throws IOException {
+            BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+            long inode;
+            try {
+                inode = ((Number) Files.getAttribute(path, "unix:ino")).longValue();
+            } catch (UnsupportedOperationException | IllegalArgumentException e) {
+                inode = 0L;
+            }
+            return new FileIdentity(attributes.size(), attributes.lastModifiedTime().toMillis(), inode);
+        }
+
+        private final long size;
+        private final long modified;
+        private final long inode;
+    }
+}
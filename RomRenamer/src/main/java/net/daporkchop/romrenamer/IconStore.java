@@ -0,0 +1,190 @@
+/*
+ * Adapted from the Wizardry License
+ *
+ * Copyright (c) 2019-2019 DaPorkchop_ and contributors
+ *
+ * Permission is hereby granted to any persons and/or organizations using this software to copy, modify, merge, publish, and distribute it. Said persons and/or organizations are not allowed to use the software or any derivatives of the work for commercial use or any other means to generate income, nor are they allowed to claim this software as their own.
+ *
+ * The persons and/or organizations are also disallowed from sub-licensing and/or trademarking this software without explicit permission from DaPorkchop_.
+ *
+ * Any persons and/or organizations using this software must disclose their source code and have it publicly available, include this license, provide sufficient credit to the original authors of the project (IE: DaPorkchop_), as well as provide a link to the original project.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON INFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ */
+
+package net.daporkchop.romrenamer;
+
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import lombok.NonNull;
+import net.daporkchop.lib.common.misc.file.PFiles;
+import net.daporkchop.lib.encoding.Hexadecimal;
+import net.daporkchop.lib.nds.header.RomIcon;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Stores every distinct icon in the repository only once, and packs all of them into a single sprite atlas.
+ * <p>
+ * Icons are stored in {@link RepoWriter#iconDir()}, named after the SHA-256 of the data they're decoded from:
+ * <ul>
+ *     <li>{@code xx/<hash>.png}: a static icon, hashed over its bitmap and palette</li>
+ *     <li>{@code xx/<hash>.gif}: an animated DSi icon, hashed over all of its bitmaps, palettes and its sequence</li>
+ *     <li>{@code atlas.png}: every static icon, in a grid sorted by hash</li>
+ *     <li>{@code atlas.json}: the position of every icon in the atlas, as {@code {"iconSize":32,"icons":{"<hash>":[x,y]}}}</li>
+ * </ul>
+ * Instances are safe to use from multiple threads.
+ *
+ * @author DaPorkchop_
+ */
+public final class IconStore {
+    public static final int ICON_SIZE = 32;
+
+    private final RepoWriter repo;
+
+    private final Map<String, RomIcon> icons         = new ConcurrentHashMap<>();
+    private final Set<String>          animatedIcons = ConcurrentHashMap.newKeySet();
+
+    public IconStore(@NonNull RepoWriter repo) {
+        this.repo = repo;
+    }
+
+    /**
+     * Stores the static icon from the given icon/title block, unless an identical icon has already been stored.
+     *
+     * @return the icon's hash, or {@code null} if the block is too short to contain an icon
+     */
+    public String put(@NonNull ByteBuffer iconTitle) throws IOException {
+        if (iconTitle.limit() < 0x240) {
+            return null;
+        }
+
+        String hash = hash(iconTitle, 0x20, 0x240);
+        RomIcon icon = new RomIcon(iconTitle.duplicate().order(ByteOrder.LITTLE_ENDIAN));
+        if (this.icons.putIfAbsent(hash, icon) == null) {
+            ByteArrayOutputStream png = new ByteArrayOutputStream();
+            ImageIO.write(icon.getAsBufferedImage(), "png", png);
+            this.write(this.repo.iconFile(hash, ".png"), png.toByteArray());
+        }
+        return hash;
+    }
+
+    /**
+     * Stores the animated DSi icon from the given icon/title block, unless an identical icon has already been stored.
+     *
+     * @return the icon's hash, or {@code null} if the block is too short to contain an animated icon
+     */
+    public String putAnimated(@NonNull ByteBuffer iconTitle) throws IOException {
+        if (iconTitle.limit() < RomHeader.ICON_TITLE_SIZE) {
+            return null;
+        }
+
+        String hash = hash(iconTitle, 0x1240, RomHeader.ICON_TITLE_SIZE);
+        if (this.animatedIcons.add(hash)) {
+            this.write(this.repo.iconFile(hash, ".gif"), encodeAnimated(iconTitle));
+        }
+        return hash;
+    }
+
+    /**
+     * Writes the sprite atlas containing every static icon stored so far.
+     */
+    public void writeAtlas() throws IOException {
+        List<String> hashes = new ArrayList<>(this.icons.keySet());
+        Collections.sort(hashes); //so that the atlas doesn't depend on the order in which icons were stored
+
+        int columns = Math.max((int) Math.ceil(Math.sqrt(hashes.size())), 1);
+        int rows = Math.max((hashes.size() + columns - 1) / columns, 1);
+        int width = columns * ICON_SIZE;
+        BufferedImage atlas = new BufferedImage(width, rows * ICON_SIZE, BufferedImage.TYPE_INT_ARGB);
+        int[] raster = ((DataBufferInt) atlas.getRaster().getDataBuffer()).getData();
+
+        JsonObject index = new JsonObject();
+        index.addProperty("iconSize", ICON_SIZE);
+        JsonObject positions = new JsonObject();
+        int[] argbPalette = new int[16];
+        for (int i = 0; i < hashes.size(); i++) {
+            int x = (i % columns) * ICON_SIZE;
+            int y = (i / columns) * ICON_SIZE;
+            RomIcon icon = this.icons.get(hashes.get(i));
+            icon.decode(RomIcon.toArgb(icon.getPalette(), argbPalette), raster, y * width + x, width, false, false);
+
+            JsonArray position = new JsonArray();
+            position.add(x);
+            position.add(y);
+            positions.add(hashes.get(i), position);
+        }
+        index.add("icons", positions);
+
+        ByteArrayOutputStream png = new ByteArrayOutputStream();
+        ImageIO.write(atlas, "png", png);
+        this.repo.write(new File(this.repo.iconDir(), "atlas.png"), png.toByteArray());
+        this.repo.write(new File(this.repo.iconDir(), "atlas.json"), new GsonBuilder().create().toJson(index).getBytes(StandardCharsets.UTF_8));
+    }
+
+    private void write(@NonNull File file, @NonNull byte[] data) throws IOException {
+        PFiles.ensureDirectoryExists(file.getParentFile());
+        this.repo.write(file, data);
+    }
+
+    /**
+     * Encodes the animated DSi icon in the given icon/title block as a GIF.
+     */
+    public static byte[] encodeAnimated(@NonNull ByteBuffer iconTitle) throws IOException {
+        RomIcon[] icons = new RomIcon[8];
+        int[][] argbPalettes = new int[8][];
+        for (int i = 0; i < 8; i++) {
+            byte[] pixels = new byte[512];
+            short[] palette = new short[16];
+            for (int j = 0; j < 512; j++) {
+                pixels[j] = iconTitle.get(0x1240 + 0x200 * i + j);
+            }
+            for (int j = 0; j < 16; j++) {
+                palette[j] = iconTitle.getShort(0x2240 + 0x20 * i + j * 2);
+            }
+            icons[i] = new RomIcon(palette, pixels);
+            argbPalettes[i] = RomIcon.toArgb(palette, null);
+        }
+
+        ByteArrayOutputStream gif = new ByteArrayOutputStream();
+        try (PaletteGifWriter writer = new PaletteGifWriter(gif, ICON_SIZE, ICON_SIZE, 60)) {
+            byte[] frame = new byte[ICON_SIZE * ICON_SIZE];
+            int s;
+            for (int pos = 0x2340; pos < RomHeader.ICON_TITLE_SIZE && ((s = iconTitle.getShort(pos) & 0xFFFF) & 0xFF) != 0; pos += 2) {
+                icons[(s >>> 8) & 0x7].decodeIndices(frame, 0, ICON_SIZE, (s & 0x4000) != 0, (s & 0x8000) != 0);
+                writer.writeFrame(frame, argbPalettes[(s >>> 11) & 0x7], s & 0xFF);
+            }
+        }
+        return gif.toByteArray();
+    }
+
+    private static String hash(@NonNull ByteBuffer iconTitle, int from, int to) {
+        try {
+            ByteBuffer data = iconTitle.duplicate();
+            data.limit(to).position(from);
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            digest.update(data);
+            return Hexadecimal.encode(digest.digest());
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+    }
+}
@@ -0,0 +1,279 @@
+/*
+ * Adapted from the Wizardry License
+ *
+ * Copyright (c) 2019-2019 DaPorkchop_ and contributors
+ *
+ * Permission is hereby granted to any persons and/or organizations using this software to copy, modify, merge, publish, and distribute it. Said persons and/or organizations are not allowed to use the software or any derivatives of the work for commercial use or any other means to generate income, nor are they allowed to claim this software as their own.
+ *
+ * The persons and/or organizations are also disallowed from sub-licensing and/or trademarking this software without explicit permission from DaPorkchop_.
+ *
+ * Any persons and/or organizations using this software must disclose their source code and have it publicly available, include this license, provide sufficient credit to the original authors of the project (IE: DaPorkchop_), as well as provide a link to the original project.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON INFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ */
+
+package net.daporkchop.romrenamer;
+
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import lombok.Getter;
+import lombok.NonNull;
+import lombok.experimental.Accessors;
+import net.daporkchop.lib.logging.Logger;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Collectors;
+
+/**
+ * Measures where an ingest spends its time.
+ * <p>
+ * The time spent in every {@link Phase} is recorded per ROM, and summed up across all threads. A summary is
+ * periodically logged while the ingest is running, and {@link #report(File)} writes everything (including the slowest
+ * ROMs) as JSON once it's done.
+ *
+ * @author DaPorkchop_
+ */
+@Accessors(fluent = true)
+public final class IngestTelemetry implements AutoCloseable {
+    private static final Phase[] PHASES = Phase.values();
+
+    @Getter
+    private final Logger logger;
+    /**
+     * The number of ROMs which are listed in the report, slowest first.
+     */
+    @Getter
+    private final int    slowest;
+
+    private final Map<Path, Rom> roms      = new ConcurrentHashMap<>();
+    private final LongAdder[]    phases    = new LongAdder[PHASES.length];
+    private final LongAdder      hashed    = new LongAdder();
+    private final long           startTime = System.nanoTime();
+
+    private final ScheduledExecutorService summary;
+
+    public IngestTelemetry(@NonNull Logger logger, int slowest, long interval, @NonNull TimeUnit unit) {
+        if (slowest < 0) {
+            throw new IllegalArgumentException(String.format("Invalid number of slowest ROMs: %d", slowest));
+        }
+        this.logger = logger;
+        this.slowest = slowest;
+        for (int i = 0; i < PHASES.length; i++) {
+            this.phases[i] = new LongAdder();
+        }
+
+        if (interval > 0L) {
+            this.summary = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread thread = new Thread(r, "telemetry");
+                thread.setDaemon(true);
+                return thread;
+            });
+            this.summary.scheduleAtFixedRate(new Summary(), interval, interval, unit);
+        } else {
+            this.summary = null;
+        }
+    }
+
+    /**
+     * Creates a new instance configured via system properties.
+     * <p>
+     * The properties are {@code <prefix>.telemetry.interval} (in milliseconds, default 10000, 0 disables the periodic
+     * summary) and {@code <prefix>.telemetry.slowest} (default 20).
+     */
+    public static IngestTelemetry fromProperties(@NonNull Logger logger, @NonNull String prefix) {
+        return new IngestTelemetry(
+                logger,
+                Integer.getInteger(prefix + ".telemetry.slowest", 20),
+                Long.getLong(prefix + ".telemetry.interval", 10000L),
+                TimeUnit.MILLISECONDS
+        );
+    }
+
+    /**
+     * Records the time that has passed since the given start time as spent in a phase of the given ROM.
+     *
+     * @param start the start time, as given by {@link System#nanoTime()}
+     * @return the current time, so that consecutive phases can be timed without calling {@link System#nanoTime()}
+     * twice
+     */
+    public long time(@NonNull Path rom, @NonNull Phase phase, long start) {
+        long now = System.nanoTime();
+        this.roms.computeIfAbsent(rom, Rom::new).nanos.addAndGet(phase.ordinal(), now - start);
+        this.phases[phase.ordinal()].add(now - start);
+        return now;
+    }
+
+    /**
+     * Records that the given number of bytes have been hashed.
+     */
+    public void hashed(long bytes) {
+        this.hashed.add(bytes);
+    }
+
+    /**
+     * Writes a JSON report of everything that has been recorded so far.
+     */
+    public void report(@NonNull File file) throws IOException {
+        long elapsed = System.nanoTime() - this.startTime;
+        long hashed = this.hashed.sum();
+        long hashTime = this.phases[Phase.HASH.ordinal()].sum();
+
+        JsonObject object = new JsonObject();
+        object.addProperty("elapsedSeconds", elapsed / 1.0e9d);
+        object.addProperty("roms", this.roms.size());
+        object.addProperty("hashedBytes", hashed);
+        object.addProperty("hashMBPerSecond", rate(hashed, elapsed));
+        object.addProperty("hashMBPerThreadSecond", rate(hashed, hashTime));
+        {
+            JsonObject phasesObj = new JsonObject();
+            for (Phase phase : PHASES) {
+                phasesObj.addProperty(phase.key, this.phases[phase.ordinal()].sum() / 1.0e9d);
+            }
+            object.add("phaseSeconds", phasesObj);
+        }
+        {
+            JsonArray slowestArr = new JsonArray();
+            for (Rom rom : this.slowestRoms()) {
+                JsonObject romObj = new JsonObject();
+                romObj.addProperty("path", rom.path.toString());
+                romObj.addProperty("seconds", rom.total() / 1.0e9d);
+                JsonObject phasesObj = new JsonObject();
+                for (Phase phase : PHASES) {
+                    long nanos = rom.nanos.get(phase.ordinal());
+                    if (nanos != 0L) {
+                        phasesObj.addProperty(phase.key, nanos / 1.0e9d);
+                    }
+                }
+                romObj.add("phaseSeconds", phasesObj);
+                slowestArr.add(romObj);
+            }
+            object.add("slowest", slowestArr);
+        }
+
+        Files.write(file.toPath(), new GsonBuilder().setPrettyPrinting().create().toJson(object).getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * @return the {@link #slowest} ROMs, slowest first
+     */
+    public List<Rom> slowestRoms() {
+        return this.roms.values().stream()
+                .sorted(Comparator.comparingLong(Rom::total).reversed())
+                .limit(this.slowest)
+                .collect(Collectors.toList());
+    }
+
+    /**
+     * Stops the periodic summary.
+     */
+    @Override
+    public void close() {
+        if (this.summary != null) {
+            this.summary.shutdownNow();
+        }
+    }
+
+    private static double rate(long bytes, long nanos) {
+        return nanos == 0L ? 0.0d : bytes / 1.0e6d / (nanos / 1.0e9d);
+    }
+
+    /**
+     * The phases of ingesting a single ROM.
+     */
+    public enum Phase {
+        OPEN("open"),
+        HEADER("header"),
+        /**
+         * Hashing the ROM, including checking its padding.
+         */
+        HASH("hash"),
+        /**
+         * Linking (or materializing) the ROM into the repository.
+         */
+        LINK("link"),
+        /**
+         * Storing the ROM in the {@link ChunkStore}.
+         */
+        STORE("store"),
+        /**
+         * Building and writing the manifest of the ROM's title. Only recorded for the newest ROM of every title.
+         */
+        MANIFEST("manifest"),
+        PNG_ICON("pngIcon"),
+        GIF_ICON("gifIcon");
+
+        private final String key;
+
+        Phase(@NonNull String key) {
+            this.key = key;
+        }
+    }
+
+    /**
+     * The time spent on a single ROM.
+     */
+    public static final class Rom {
+        @Getter
+        private final Path            path;
+        private final AtomicLongArray nanos = new AtomicLongArray(PHASES.length);
+
+        private Rom(@NonNull Path path) {
+            this.path = path;
+        }
+
+        public long nanos(@NonNull Phase phase) {
+            return this.nanos.get(phase.ordinal());
+        }
+
+        /**
+         * @return the total time spent on this ROM in all phases, in nanoseconds
+         */
+        public long total() {
+            long total = 0L;
+            for (int i = 0; i < PHASES.length; i++) {
+                total += this.nanos.get(i);
+            }
+            return total;
+        }
+    }
+
+    private final class Summary implements Runnable {
+        private final long[] lastPhases = new long[PHASES.length];
+
+        private long lastTime = System.nanoTime();
+        private long lastHashed;
+
+        @Override
+        public void run() {
+            long now = System.nanoTime();
+            long hashed = IngestTelemetry.this.hashed.sum();
+
+            StringBuilder builder = new StringBuilder();
+            for (Phase phase : PHASES) {
+                long nanos = IngestTelemetry.this.phases[phase.ordinal()].sum();
+                builder.append(String.format(", %s %.2fs", phase.key, (nanos - this.lastPhases[phase.ordinal()]) / 1.0e9d));
+                this.lastPhases[phase.ordinal()] = nanos;
+            }
+            IngestTelemetry.this.logger.info("%d roms, hashing %.2f MB/s%s",
+                    IngestTelemetry.this.roms.size(), rate(hashed - this.lastHashed, now - this.lastTime), builder);
+
+            this.lastTime = now;
+            this.lastHashed = hashed;
+        }
+    }
+}
@@ -15,19 +15,17 @@
 
 package net.daporkchop.romrenamer;
 
+import net.daporkchop.common.io.IOScheduler;
+
 import java.io.File;
-import java.io.IOException;
-import java.nio.ByteBuffer;
-import java.nio.channels.FileChannel;
-import java.nio.file.StandardOpenOption;
+import java.nio.file.Path;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.stream.Collectors;
 
 public class Main1 {
@@ -42,14 +40,16 @@ public class Main1 {
             'V' //EUR+AUS
     );
 
-    public static final Pattern PATTERN_STRIP_NDS_EXTENSION = Pattern.compile("^(.*?)\\.nds$");
-    public static final Pattern PATTERN_STRIP_NUMBER_PREFIX = Pattern.compile("^[0-9]{4} - (.*?)$");
-    public static final Pattern PATTERN_FIND_STRIP_BRACES   = Pattern.compile("\\(([^)]*?)\\)");
-    public static final Pattern PATTERN_FIX_SUFFIXES        = Pattern.compile("^(.*?), (A|The)");
-    public static final Pattern PATTERN_FIND_SUFFIX_FOREIGN = Pattern.compile("^(.*?), (Le|Die|De)($| )");
-    public static final Pattern PATTERN_STRIP_VERSION       = Pattern.compile(" (V|v)ersion");
+    public static final NameNormalizer NORMALIZER = new NameNormalizer.Builder()
+            .extension(".nds")
+            .numberPrefix(4, " - ")
+            .keepTag("DSi Enhanced")
+            .article("A").article("The")
+            .rejectArticle("Le").rejectArticle("Die").rejectArticle("De")
+            .strip(" Version").strip(" version")
+            .build();
 
-    public static final ThreadLocal<ByteBuffer> BUFFER_CACHE = ThreadLocal.withInitial(() -> ByteBuffer.allocateDirect(4096));
+    public static final IOScheduler IO_SCHEDULER = IOScheduler.fromProperties("romrenamer");
 
     public static void main(String[] args) {
         File[] allFiles = Objects.requireNonNull(ROOT.listFiles());
@@ -58,87 +58,38 @@ public class Main1 {
         System.out.println("  Fixing up file names...");
         Collection<ROM> roms = Arrays.stream(allFiles)
                 .filter(File::isFile)
-                .filter(file -> PATTERN_STRIP_NDS_EXTENSION.matcher(file.getName()).find())
-                .filter(file -> file.length() >= 4096L)
                 .map(file -> {
+                    String name = NORMALIZER.normalize(file.getName());
+                    if (name == null) {
+                        return null;
+                    }
                     ROM rom = new ROM();
                     rom.file = file;
-                    rom.name = file.getName();
+                    rom.name = name;
                     return rom;
                 })
-                .peek(rom -> {
-                    Matcher matcher = PATTERN_STRIP_NDS_EXTENSION.matcher(rom.name);
-                    if (matcher.find()) {
-                        rom.name = matcher.group(1);
-                    }
-                })
-                .peek(rom -> {
-                    if (rom.name.indexOf('_') != -1) {
-                        rom.name = rom.name.replace('_', ' ');
-                    }
-                })
-                .peek(rom -> rom.name = rom.name.trim())
-                .filter(rom -> !rom.name.isEmpty())
-                .filter(rom -> {
-                    Matcher matcher = PATTERN_STRIP_NUMBER_PREFIX.matcher(rom.name);
-                    if (matcher.find()) {
-                        rom.name = matcher.group(1);
-                        return true;
-                    } else {
-                        return false;
-                    }
-                })
-                .peek(rom -> {
-                    Matcher matcher = PATTERN_FIND_STRIP_BRACES.matcher(rom.name);
-                    while (matcher.find()) {
-                        if ("DSi Enhanced".equalsIgnoreCase(matcher.group(1))) {
-                            rom.dsiEnhanced = true;
-                        }
-                    }
-                    rom.name = matcher.replaceAll("").trim();
-                })
-                .peek(rom -> {
-                    Matcher matcher = PATTERN_FIX_SUFFIXES.matcher(rom.name);
-                    if (matcher.find()) {
-                        rom.name = String.format("%s %s", matcher.group(2), matcher.group(1));
-                    }
-                })
-                .filter(rom -> !PATTERN_FIND_SUFFIX_FOREIGN.matcher(rom.name).find())
-                .peek(rom -> {
-                    Matcher matcher = PATTERN_STRIP_VERSION.matcher(rom.name);
-                    if (matcher.find()) {
-                        rom.name = matcher.replaceAll("");
-                    }
-                })
-                .peek(rom -> {
-                    if (rom.dsiEnhanced) {
-                        rom.name += " (DSi Enhanced)";
-                    }
-                })
+                .filter(Objects::nonNull)
+                .filter(rom -> rom.file.length() >= 4096L)
                 //.peek(rom -> System.out.println(rom.name))
                 .collect(Collectors.toSet());
 
         System.out.println(roms.size());
 
         System.out.println("  Checking language based on actual contents of ROM file");
-        roms = roms.parallelStream()
-                .peek(rom -> {
-                    try {
-                        ByteBuffer buffer = BUFFER_CACHE.get();
-                        buffer.clear();
-                        try (FileChannel ch = FileChannel.open(rom.file.toPath(), StandardOpenOption.READ)) {
-                            ch.read(buffer);
-                        }
-                        if (buffer.hasRemaining()) {
-                            throw new IllegalStateException(String.format("Only read %d/%d bytes!", buffer.position(), buffer.capacity()));
-                        }
-                        rom.language = (char) buffer.get(0x00C + 0x003);
-                    } catch (IOException e) {
-                        throw new RuntimeException(e);
+        Map<Path, ROM> byPath = roms.stream().collect(Collectors.toMap(rom -> rom.file.toPath(), rom -> rom));
+        Collection<ROM> validRoms = ConcurrentHashMap.newKeySet();
+        new RomScanner.Builder()
+                .headerOnly()
+                .listener(result -> {
+                    ROM rom = byPath.get(result.path());
+                    rom.language = (char) result.header().header().get(0x00C + 0x003);
+                    if (VALID_LANGUAGES.contains(rom.language)) {
+                        validRoms.add(rom);
                     }
                 })
-                .filter(rom -> VALID_LANGUAGES.contains(rom.language))
-                .collect(Collectors.toSet());
+                .build()
+                .scan(byPath.keySet(), IO_SCHEDULER);
+        roms = validRoms;
 
         System.out.println(roms.size());
 
@@ -184,8 +135,7 @@ public class Main1 {
     public static class ROM {
         File   file;
         String name;
-        char    language    = 0;
-        boolean dsiEnhanced = false;
+        char   language = 0;
 
         @Override
         public int hashCode() {
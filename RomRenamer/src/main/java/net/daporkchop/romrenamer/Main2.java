@@ -15,45 +15,42 @@
 
 package net.daporkchop.romrenamer;
 
+import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
 import com.google.gson.JsonObject;
-import com.google.gson.JsonParser;
-import com.madgag.gif.fmsware.AnimatedGifEncoder;
-import net.daporkchop.lib.common.misc.file.PFiles;
+import lombok.AllArgsConstructor;
+import lombok.NonNull;
+import net.daporkchop.common.io.IOScheduler;
+import net.daporkchop.common.parallel.AdaptiveParallelism;
 import net.daporkchop.lib.encoding.Hexadecimal;
-import net.daporkchop.lib.nds.RomNDS;
-import net.daporkchop.lib.nds.header.RomIcon;
-import net.daporkchop.lib.unsafe.PUnsafe;
+import net.daporkchop.lib.logging.Logging;
 
-import javax.imageio.ImageIO;
 import javax.swing.ImageIcon;
 import javax.swing.JFrame;
 import javax.swing.JLabel;
-import java.awt.Color;
 import java.awt.FlowLayout;
 import java.awt.event.WindowAdapter;
 import java.awt.event.WindowEvent;
 import java.awt.image.BufferedImage;
-import java.io.BufferedReader;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.Reader;
 import java.nio.ByteBuffer;
-import java.nio.MappedByteBuffer;
+import java.nio.ByteOrder;
 import java.nio.channels.FileChannel;
 import java.nio.charset.StandardCharsets;
-import java.nio.file.FileAlreadyExistsException;
-import java.nio.file.Files;
-import java.nio.file.StandardOpenOption;
+import java.nio.file.Path;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Collections;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.EnumMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Objects;
-import java.util.WeakHashMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.stream.Collectors;
 
 import static net.daporkchop.lib.math.primitive.BinMath.*;
@@ -69,171 +66,265 @@ public class Main2 {
 
     public static final String DIGEST_ALG = "SHA-256";
 
-    public static void main(String... args) {
-        final File infoDir = PFiles.ensureDirectoryExists(new File(DST, "info"));
-        final File repoDir = PFiles.ensureDirectoryExists(new File(DST, "repo"));
-
-        PFiles.rmContentsParallel(infoDir);
-        PFiles.rmContentsParallel(repoDir);
-
-        Map<String, Object> mutexes = Collections.synchronizedMap(new WeakHashMap<>());
-        Arrays.stream(Objects.requireNonNull(ROOT.listFiles()))
-                .filter(File::isFile)
-                .map(File::toPath)
-                .parallel()
-                .filter(path -> {
-                    Object mutex = null;
-                    try (RomNDS rom = new RomNDS(path)) {
-                        FileChannel channel = rom.getChannel();
-                        if (!isPow2(channel.size())) {
-                            System.err.printf("Alert: rom \"%s\" is not a power of 2! (%d bytes)\n", path, channel.size());
-                            return true;
-                        }
-
-                        String gamecode = rom.getHeaders().getUnitcode() == 0x02 ? rom.getHeaders().getGamecode().replace("NTR-", "TWL-") : rom.getHeaders().getGamecode();
-                        File manifestDir = PFiles.ensureDirectoryExists(new File(infoDir, rom.getHeaders().getName()));
-
-                        PUnsafe.monitorEnter(mutex = mutexes.computeIfAbsent(new String(rom.getHeaders().getName()), s -> new Object[0]));
+    /**
+     * Whether to incrementally sync the repository with {@link #ROOT} instead of wiping and rebuilding it.
+     */
+    public static final boolean SYNC = Boolean.getBoolean("romrenamer.sync");
+
+    /**
+     * Whether to only hash the used part of every ROM (as given by its header), so that trimmed and untrimmed dumps of
+     * the same ROM get the same hash.
+     */
+    public static final boolean CANONICAL_HASH = Boolean.getBoolean("romrenamer.canonicalHash");
+
+    /**
+     * How thoroughly the padding after the used part of a ROM is checked when {@link #CANONICAL_HASH} is enabled.
+     */
+    public static final RomPadding.Check PADDING_CHECK = RomPadding.Check.valueOf(System.getProperty("romrenamer.paddingCheck", "full").toUpperCase());
+
+    public static final AdaptiveParallelism PARALLELISM = AdaptiveParallelism.fromProperties(Logging.logger.channel("parallelism"), "romrenamer");
+
+    /**
+     * Whether to read ROMs using a fixed number of reader threads per device instead of adapting the number of threads
+     * to the measured throughput. This is much faster on spinning disks.
+     */
+    public static final boolean     SEQUENTIAL_IO = Boolean.getBoolean("romrenamer.sequentialIO");
+    public static final IOScheduler IO_SCHEDULER  = IOScheduler.fromProperties("romrenamer");
+
+    /**
+     * Whether to additionally store every ROM in a {@link ChunkStore}, which deduplicates the data shared between ROMs.
+     */
+    public static final boolean CHUNK_STORE = Boolean.getBoolean("romrenamer.chunkStore");
+
+    /**
+     * How ROMs are placed in the repository.
+     */
+    public static final RepoWriter.Mode REPO_MODE = RepoWriter.Mode.valueOf(System.getProperty("romrenamer.repoMode", "symlink").toUpperCase());
+
+    public static void main(String... args) throws IOException {
+        IngestTelemetry telemetry = IngestTelemetry.fromProperties(Logging.logger.channel("telemetry"), "romrenamer");
+        try {
+            ingest(telemetry);
+        } finally {
+            telemetry.close();
+            telemetry.report(new File(DST, "telemetry.json"));
+            System.out.printf("Slowest %d roms:\n", telemetry.slowest());
+            for (IngestTelemetry.Rom rom : telemetry.slowestRoms()) {
+                System.out.printf("  %.2fs: %s\n", rom.total() / 1.0e9d, rom.path());
+            }
+        }
+    }
 
-                        String hash = Hexadecimal.encode(hash(channel, DIGEST_ALG));
-                        try {
-                            File romFile = new File(repoDir, String.format("%s/%s/%s.nds", hash.subSequence(0, 2), hash.subSequence(2, 4), hash));
-                            if (romFile.exists()) {
-                                throw new FileAlreadyExistsException(romFile.getAbsolutePath());
+    private static void ingest(IngestTelemetry telemetry) throws IOException {
+        RepoWriter repo = new RepoWriter(DST, SYNC, REPO_MODE);
+
+        Collection<ScannedRom> scanned = new ConcurrentLinkedQueue<>();
+        Collection<Path> skipped = new ConcurrentLinkedQueue<>();
+        try (HashCache hashCache = HashCache.open(new File(DST, CANONICAL_HASH ? "hashcache-canonical.bin" : "hashcache.bin"));
+             ChunkStore chunks = CHUNK_STORE ? ChunkStore.open(new File(DST, "chunks")) : null) {
+            List<Path> paths = Arrays.stream(Objects.requireNonNull(ROOT.listFiles()))
+                    .filter(File::isFile)
+                    .map(File::toPath)
+                    .collect(Collectors.toList());
+
+            RomScanner.Builder builder = new RomScanner.Builder()
+                    .hash(hashCache, RomHasher.Algorithm.values())
+                    .telemetry(telemetry)
+                    .filter((path, size) -> CANONICAL_HASH || isPow2(size) ? null : String.format("is not a power of 2! (%d bytes)", size))
+                    .listener(new RomScanner.Listener() {
+                        @Override
+                        public void accept(@NonNull RomScanner.Result result) throws IOException {
+                            ScannedRom rom = link(result, repo, chunks, telemetry);
+                            if (rom != null) {
+                                scanned.add(rom);
                             } else {
-                                PFiles.ensureDirectoryExists(romFile.getParentFile());
-                                Files.createSymbolicLink(romFile.toPath(), path);
+                                skipped.add(result.path());
                             }
-                        } catch (FileAlreadyExistsException e)  {
-                            System.err.printf("Alert: rom \"%s\" already exists in destination directory (%s hash: \"%s\")\n", path, DIGEST_ALG, hash);
-                            return true;
                         }
 
-                        MappedByteBuffer buffer = rom.getHeaders().getIconTitle().getMap();
-                        {
-                            File manifestFile = new File(manifestDir, "manifest.json");
-                            JsonObject object = new JsonObject();
-                            if (manifestFile.exists()) {
-                                try (Reader reader = new BufferedReader(new InputStreamReader(new FileInputStream(manifestFile)))) {
-                                    object = new JsonParser().parse(reader).getAsJsonObject();
-                                }
-                            }
-
-                            if (!object.has("roms")) {
-                                object.add("roms", new JsonObject());
-                            }
-                            {
-                                JsonObject roms = object.getAsJsonObject("roms");
-                                String destination = String.valueOf(rom.getHeaders().getGamecode().charAt(3 + 4));
-                                if (!roms.has(destination)) {
-                                    roms.add(destination, new JsonObject());
-                                }
-                                JsonObject romObj = roms.getAsJsonObject(destination);
-
-                                if (romObj.has("version") && romObj.get("version").getAsInt() >= rom.getHeaders().getVersion()) {
-                                    return true;
-                                }
-                                romObj.addProperty("version", rom.getHeaders().getVersion());
-                                romObj.addProperty("hash", hash);
-                            }
+                        @Override
+                        public void skipped(@NonNull Path path, @NonNull String reason) {
+                            System.err.printf("Alert: rom \"%s\" %s\n", path, reason);
+                            skipped.add(path);
+                        }
+                    });
+            if (CANONICAL_HASH) {
+                builder.canonical(PADDING_CHECK);
+            }
+            if (REPO_MODE == RepoWriter.Mode.MATERIALIZE) {
+                builder.stage(repo::stagingFile);
+            }
+            RomScanner scanner = builder.build();
 
-                            if (!object.has("titles")) {
-                                object.add("titles", new JsonObject());
-                            }
-                            {
-                                JsonObject titles = object.getAsJsonObject("titles");
-                                char[] arr = new char[0x100 >> 1];
-
-                                readTitle(buffer, 0, TitleLanguage.JP, arr).addTo(titles);
-                                readTitle(buffer, 0, TitleLanguage.EN, arr).addTo(titles);
-                                readTitle(buffer, 0, TitleLanguage.FR, arr).addTo(titles);
-                                readTitle(buffer, 0, TitleLanguage.DE, arr).addTo(titles);
-                                readTitle(buffer, 0, TitleLanguage.IT, arr).addTo(titles);
-                                readTitle(buffer, 0, TitleLanguage.ES, arr).addTo(titles);
-                                if (rom.getHeaders().getIconTitle().getVersion() >= 0x0002) {
-                                    readTitle(buffer, 0, TitleLanguage.CN, arr).addTo(titles);
-                                }
-                                if (rom.getHeaders().getIconTitle().getVersion() >= 0x0003) {
-                                    readTitle(buffer, 0, TitleLanguage.KR, arr).addTo(titles);
-                                }
-                            }
+            if (SEQUENTIAL_IO) {
+                scanner.scan(paths, IO_SCHEDULER);
+            } else {
+                PARALLELISM.forEach("ingest", "bytes", paths, path -> {
+                    try {
+                        scanner.scan(path);
+                    } catch (IOException e) {
+                        throw new RuntimeException(e);
+                    }
+                    return path.toFile().length();
+                });
+            }
+        }
 
-                            object.addProperty("name", rom.getHeaders().getName());
-                            object.addProperty("gamecode", gamecode);
-                            object.addProperty("makercode", rom.getHeaders().getMakercode());
-                            object.addProperty("unitcode", rom.getHeaders().getUnitcode());
-                            object.addProperty("animatedIcon", rom.getHeaders().getIconTitle().getVersion() >= 0x0103);
+        //every title is only ever touched by a single thread from here on
+        Map<String, List<ScannedRom>> titles = scanned.stream().collect(Collectors.groupingBy(rom -> rom.name));
+        Gson gson = new GsonBuilder().setPrettyPrinting().create();
+        RomCatalog.Builder catalog = new RomCatalog.Builder();
+        IconStore icons = new IconStore(repo);
+        PARALLELISM.forEach("manifests", titles.values(), roms -> writeTitle(repo, icons, gson, catalog, roms, skipped, telemetry));
+        repo.write(new File(DST, "catalog.bin"), catalog.build());
+        icons.writeAtlas();
+
+        if (SYNC) {
+            System.out.printf("Deleted %d stale entries.\n", repo.finish());
+        }
+        skipped.forEach(System.out::println);
+    }
 
-                            try (FileChannel ch = FileChannel.open(manifestFile.toPath(), StandardOpenOption.WRITE, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING)) {
-                                ch.write(ByteBuffer.wrap(new GsonBuilder().setPrettyPrinting().create().toJson(object).getBytes(StandardCharsets.UTF_8)));
-                            }
-                        }
+    /**
+     * Links a scanned ROM into the repository (and the chunk store, if enabled) and copies everything that's needed for
+     * its title's manifest.
+     *
+     * @return the scanned ROM, or {@code null} if a ROM with the same hash has already been linked
+     */
+    private static ScannedRom link(RomScanner.Result result, RepoWriter repo, ChunkStore chunks, IngestTelemetry telemetry) throws IOException {
+        String hash = Hexadecimal.encode(result.digests().get(RomHasher.Algorithm.SHA256));
+        long time = System.nanoTime();
+        boolean linked = repo.link(hash, result.file(), result.entry() != null ? ".zip" : ".nds", result.staged());
+        time = telemetry.time(result.path(), IngestTelemetry.Phase.LINK, time);
+        if (!linked) {
+            System.err.printf("Alert: rom \"%s\" already exists in destination directory (%s hash: \"%s\")\n", result.path(), DIGEST_ALG, hash);
+            return null;
+        }
+        if (chunks != null && !chunks.contains(hash)) {
+            ChunkStore.Writer writer = chunks.writer();
+            result.read(writer);
+            writer.finish(hash);
+            telemetry.time(result.path(), IngestTelemetry.Phase.STORE, time);
+        }
 
-                        ImageIO.write(rom.getHeaders().getIconTitle().getIcon().getAsBufferedImage(), "png", new File(manifestDir, "icon.png"));
+        //copy the icon/title block so that it outlives the result
+        RomHeader header = result.header();
+        ByteBuffer iconTitle = ByteBuffer.allocate(header.iconTitle().remaining()).order(ByteOrder.LITTLE_ENDIAN);
+        iconTitle.put(header.iconTitle()).flip();
+
+        return new ScannedRom(
+                result.path(),
+                header.name(),
+                header.gamecode(),
+                header.makercode(),
+                header.unitcode(),
+                header.version(),
+                String.valueOf(header.destination()),
+                hash,
+                result.digests(),
+                header.iconVersion(),
+                iconTitle,
+                result.entry() != null ? result.entry().name() : null
+        );
+    }
 
-                        if (rom.getHeaders().getIconTitle().getVersion() >= 0x0103) {
-                            //convert animated DSi icon to gif and store it
-                            byte[][] pixelss = new byte[8][512];
-                            short[][] palettes = new short[8][16];
+    /**
+     * Builds the manifest of a single title from all of its scanned ROMs, and writes it after storing the title's icons.
+     * <p>
+     * For every destination, only the ROM with the highest version is kept. The manifest's top-level properties and
+     * icons are taken from the newest of the kept ROMs. All kept ROMs are also added to the catalog.
+     */
+    private static void writeTitle(RepoWriter repo, IconStore icons, Gson gson, RomCatalog.Builder catalog, List<ScannedRom> roms, Collection<Path> skipped, IngestTelemetry telemetry) {
+        long time = System.nanoTime();
+
+        //sort so that the result doesn't depend on the order in which the roms were scanned
+        roms.sort(Comparator.comparingInt((ScannedRom rom) -> rom.version).thenComparing(rom -> rom.path));
+        Map<String, ScannedRom> latest = new TreeMap<>();
+        for (ScannedRom rom : roms) {
+            ScannedRom previous = latest.put(rom.destination, rom);
+            if (previous != null) {
+                skipped.add(previous.path);
+            }
+        }
+        List<ScannedRom> kept = new ArrayList<>(latest.values());
+        kept.sort(Comparator.comparingInt((ScannedRom rom) -> rom.version).thenComparing(rom -> rom.path));
+        ScannedRom newest = kept.get(kept.size() - 1);
+
+        JsonObject object = new JsonObject();
+        {
+            JsonObject romsObj = new JsonObject();
+            latest.forEach((destination, rom) -> {
+                JsonObject romObj = new JsonObject();
+                romObj.addProperty("version", rom.version);
+                romObj.addProperty("hash", rom.hash);
+                if (rom.archiveEntry != null) {
+                    romObj.addProperty("archiveEntry", rom.archiveEntry);
+                }
+                rom.digests.forEach((alg, digest) -> {
+                    if (alg != RomHasher.Algorithm.SHA256) {
+                        romObj.addProperty(alg.key, Hexadecimal.encode(digest));
+                    }
+                });
+                romsObj.add(destination, romObj);
+            });
+            object.add("roms", romsObj);
+        }
+        {
+            JsonObject titles = new JsonObject();
+            char[] arr = new char[0x100 >> 1];
+            for (ScannedRom rom : kept) {
+                for (TitleLanguage language : TitleLanguage.values()) {
+                    if ((language != TitleLanguage.CN || rom.iconVersion >= 0x0002) && (language != TitleLanguage.KR || rom.iconVersion >= 0x0003)) {
+                        readTitle(rom.iconTitle, 0, language, arr).addTo(titles);
+                    }
+                }
+            }
+            object.add("titles", titles);
+        }
+        object.addProperty("name", newest.name);
+        object.addProperty("gamecode", newest.gamecode);
+        object.addProperty("makercode", newest.makercode);
+        object.addProperty("unitcode", newest.unitcode);
+        object.addProperty("animatedIcon", newest.iconVersion >= 0x0103);
+
+        Map<TitleLanguage, String> catalogTitles = new EnumMap<>(TitleLanguage.class);
+        for (TitleLanguage language : TitleLanguage.values()) {
+            String key = language.name().toLowerCase();
+            if (object.getAsJsonObject("titles").has(key)) {
+                catalogTitles.put(language, object.getAsJsonObject("titles").get(key).getAsString());
+            }
+        }
+        for (ScannedRom rom : kept) {
+            catalog.add(rom.gamecode, rom.makercode, rom.unitcode, rom.version, rom.iconVersion >= 0x0103, rom.digests.get(RomHasher.Algorithm.SHA256), rom.name, catalogTitles);
+        }
 
-                            for (int i = 0; i < 8; i++) {
-                                for (int j = 0; j < 512; j++) {
-                                    pixelss[i][j] = buffer.get(0x1240 + 0x200 * i + j);
-                                }
-                                for (int j = 0; j < 16; j++) {
-                                    palettes[i][j] = buffer.getShort(0x2240 + 0x20 * i + j * 2);
-                                }
-                            }
+        try {
+            time = telemetry.time(newest.path, IngestTelemetry.Phase.MANIFEST, time);
+            writeIcons(icons, object, newest, telemetry);
+            time = System.nanoTime();
+            repo.write(new File(repo.titleDir(newest.name), "manifest.json"), gson.toJson(object).getBytes(StandardCharsets.UTF_8));
+            telemetry.time(newest.path, IngestTelemetry.Phase.MANIFEST, time);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
 
-                            AnimatedGifEncoder encoder = new AnimatedGifEncoder();
-                            encoder.setRepeat(0);
-                            encoder.setFrameRate(60.0f);
-                            encoder.setBackground(Color.BLACK);
-                            encoder.setSize(32, 32);
-                            encoder.setTransparent(new Color(0, true), true);
-                            encoder.setDispose(2);
-                            encoder.start(manifestDir.getAbsolutePath() + "/icon.gif");
-
-                            BufferedImage image = new BufferedImage(32, 32, BufferedImage.TYPE_INT_ARGB);
-                            buffer.position(0x2340);
-                            int s;
-                            while (((s = buffer.getShort() & 0xFFFF) & 0xFF) != 0) {
-                                BufferedImage src = new RomIcon(palettes[(s >>> 11) & 0x7], pixelss[(s >>> 8) & 0x7]).getAsBufferedImage();
-                                BufferedImage target;
-                                if ((s & 0xC000) != 0) {
-                                    target = image;
-                                    for (int x = 0; x < 32; x++) {
-                                        for (int y = 0; y < 32; y++) {
-                                            target.setRGB(
-                                                    (s & 0x4000) != 0 ? x ^ 0x1F : x,
-                                                    (s & 0x8000) != 0 ? y ^ 0x1F : y,
-                                                    src.getRGB(x, y)
-                                            );
-                                        }
-                                    }
-                                } else {
-                                    target = src;
-                                }
-                                for (int i = (s & 0xFF) - 1; i >= 0; i--) {
-                                    encoder.addFrame(target);
-                                }
-                            }
-                            if (!encoder.finish()) {
-                                throw new IllegalStateException();
-                            }
-                        }
+    /**
+     * Stores the icons of a ROM in the icon store, and adds their hashes to its title's manifest.
+     */
+    private static void writeIcons(IconStore icons, JsonObject object, ScannedRom rom, IngestTelemetry telemetry) throws IOException {
+        long time = System.nanoTime();
+        String hash = icons.put(rom.iconTitle);
+        if (hash == null) {
+            return; //no icon
+        }
+        object.addProperty("iconHash", hash);
+        time = telemetry.time(rom.path, IngestTelemetry.Phase.PNG_ICON, time);
 
-                        return false;
-                    } catch (IOException e) {
-                        throw new RuntimeException(e);
-                    } finally {
-                        if (mutex != null)  {
-                            PUnsafe.monitorExit(mutex);
-                        }
-                    }
-                })
-                .collect(Collectors.toList())
-                .forEach(System.out::println);
+        if (rom.iconVersion >= 0x0103 && (hash = icons.putAnimated(rom.iconTitle)) != null) {
+            object.addProperty("animatedIconHash", hash);
+            telemetry.time(rom.path, IngestTelemetry.Phase.GIF_ICON, time);
+        }
     }
 
     public static void showImages(BufferedImage... images) {
@@ -262,7 +353,7 @@ public class Main2 {
         }
     }
 
-    public static Title readTitle(MappedByteBuffer buffer, int titleOffset, TitleLanguage language, char[] arr) {
+    public static Title readTitle(ByteBuffer buffer, int titleOffset, TitleLanguage language, char[] arr) {
         try {
             Title title = new Title();
             title.language = language;
@@ -295,14 +386,20 @@ public class Main2 {
             }
 
             return title;
-        } catch (ArrayIndexOutOfBoundsException e) {
+        } catch (IndexOutOfBoundsException e) {
             return new Title.Noop();
         }
     }
 
     public static byte[] hash(FileChannel channel, String alg) throws IOException {
+        return hash(channel, alg, TL_DATA.get().hashBuffer);
+    }
+
+    /**
+     * Hashes the entire file, reading it into the given buffer one block at a time.
+     */
+    public static byte[] hash(FileChannel channel, String alg, ByteBuffer buffer) throws IOException {
         try {
-            ByteBuffer buffer = TL_DATA.get().hashBuffer;
             MessageDigest digest = MessageDigest.getInstance(alg);
 
             long pos = 0L;
@@ -333,6 +430,32 @@ public class Main2 {
         public final ByteBuffer hashBuffer = ByteBuffer.allocateDirect(1 << 20);
     }
 
+    /**
+     * Everything that's needed from a single ROM in order to build its title's manifest.
+     */
+    @AllArgsConstructor
+    public static final class ScannedRom {
+        public final Path                             path;
+        public final String                           name;
+        public final String                           gamecode;
+        public final String                           makercode;
+        public final int                              unitcode;
+        public final int                              version;
+        public final String                           destination;
+        public final String                           hash;
+        public final Map<RomHasher.Algorithm, byte[]> digests;
+        public final int                              iconVersion;
+        /**
+         * A copy of the ROM's icon/title block.
+         */
+        public final ByteBuffer                       iconTitle;
+        /**
+         * The name of the ROM inside of the zip archive it was read from, or {@code null} if it wasn't read from an
+         * archive.
+         */
+        public final String                           archiveEntry;
+    }
+
     public static class Title {
         public TitleLanguage language;
         public String        title;
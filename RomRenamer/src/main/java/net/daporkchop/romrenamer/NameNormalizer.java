@@ -0,0 +1,329 @@
+/*
+ * Adapted from the Wizardry License
+ *
+ * Copyright (c) 2019-2019 DaPorkchop_ and contributors
+ *
+ * Permission is hereby granted to any persons and/or organizations using this software to copy, modify, merge, publish, and distribute it. Said persons and/or organizations are not allowed to use the software or any derivatives of the work for commercial use or any other means to generate income, nor are they allowed to claim this software as their own.
+ *
+ * The persons and/or organizations are also disallowed from sub-licensing and/or trademarking this software without explicit permission from DaPorkchop_.
+ *
+ * Any persons and/or organizations using this software must disclose their source code and have it publicly available, include this license, provide sufficient credit to the original authors of the project (IE: DaPorkchop_), as well as provide a link to the original project.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON INFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ */
+
+package net.daporkchop.romrenamer;
+
+import lombok.NonNull;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Turns the file names of a ROM set (e.g. {@code 0123 - Legend of Foo, The (Europe) (En,Fr).nds}) into plain titles
+ * (e.g. {@code The Legend of Foo}).
+ * <p>
+ * The rules are applied in a fixed order:
+ * <ol>
+ *     <li>the extension is required and stripped, underscores are turned into spaces and the name is trimmed</li>
+ *     <li>the number prefix is required and stripped</li>
+ *     <li>every tag in parentheses is stripped, and the name is trimmed again</li>
+ *     <li>a trailing article (e.g. {@code , The}) is moved to the front. As with the regex this replaces, everything
+ *     after the article is dropped</li>
+ *     <li>names with a rejected trailing article (e.g. {@code , Die}) are rejected</li>
+ *     <li>every occurrence of the stripped strings is removed</li>
+ *     <li>kept tags which were present are appended again, e.g. {@code  (DSi Enhanced)}</li>
+ * </ol>
+ * The first three rules are applied in a single scan over the name, the remaining ones only touch the (much shorter)
+ * result of that scan. Everything is done in buffers owned by the current thread, so the only allocation is the
+ * resulting string.
+ *
+ * @author DaPorkchop_
+ */
+public final class NameNormalizer {
+    private final String   extension;
+    private final int      prefixDigits;
+    private final String   prefixSeparator;
+    private final String[] keptTags;
+    private final String[] articles;
+    private final String[] rejectedArticles;
+    private final String[] stripped;
+
+    private final ThreadLocal<char[][]> buffers = ThreadLocal.withInitial(() -> new char[2][256]);
+
+    private NameNormalizer(@NonNull Builder builder) {
+        this.extension = builder.extension;
+        this.prefixDigits = builder.prefixDigits;
+        this.prefixSeparator = builder.prefixSeparator;
+        this.keptTags = builder.keptTags.toArray(new String[0]);
+        this.articles = builder.articles.toArray(new String[0]);
+        this.rejectedArticles = builder.rejectedArticles.toArray(new String[0]);
+        this.stripped = builder.stripped.toArray(new String[0]);
+
+        if (this.keptTags.length > 64) {
+            throw new IllegalArgumentException("At most 64 tags may be kept!");
+        }
+    }
+
+    /**
+     * @return the normalized name, or {@code null} if the name doesn't belong to this set
+     */
+    public String normalize(@NonNull String name) {
+        //strip the extension
+        int start = 0;
+        int end = name.length();
+        if (this.extension != null) {
+            if (!name.endsWith(this.extension)) {
+                return null;
+            }
+            end -= this.extension.length();
+        }
+
+        //trim
+        while (start < end && map(name.charAt(start)) <= ' ') {
+            start++;
+        }
+        while (end > start && map(name.charAt(end - 1)) <= ' ') {
+            end--;
+        }
+        if (start == end) {
+            return null;
+        }
+
+        //strip the number prefix
+        if (this.prefixSeparator != null) {
+            if (end - start < this.prefixDigits + this.prefixSeparator.length()) {
+                return null;
+            }
+            for (int i = 0; i < this.prefixDigits; i++) {
+                char c = name.charAt(start + i);
+                if (c < '0' || c > '9') {
+                    return null;
+                }
+            }
+            for (int i = 0; i < this.prefixSeparator.length(); i++) {
+                if (map(name.charAt(start + this.prefixDigits + i)) != this.prefixSeparator.charAt(i)) {
+                    return null;
+                }
+            }
+            start += this.prefixDigits + this.prefixSeparator.length();
+        }
+
+        //a tag is only closed by the first ')' after it, so nothing after the last one can be part of a tag
+        int lastClose = -1;
+        for (int i = end - 1; i >= start; i--) {
+            if (name.charAt(i) == ')') {
+                lastClose = i;
+                break;
+            }
+        }
+
+        char[][] buffers = this.buffers.get();
+        char[] buf = buffers[0];
+        if (buf.length < end - start) {
+            buffers[0] = buf = new char[end - start];
+        }
+        int length = 0;
+        long tags = 0L;
+        for (int i = start; i < end; i++) {
+            char c = map(name.charAt(i));
+            if (c == '(' && i < lastClose) {
+                int close = name.indexOf(')', i + 1);
+                tags |= this.keptTags(name, i + 1, close);
+                i = close;
+            } else if (length > 0 || c > ' ') {
+                buf[length++] = c;
+            }
+        }
+        while (length > 0 && buf[length - 1] <= ' ') {
+            length--;
+        }
+
+        //move the article to the front
+        char[] out = buffers[1];
+        if (out.length < length + 16) {
+            buffers[1] = out = new char[length + 16];
+        }
+        int outLength = 0;
+        int articleAt = -1;
+        String article = null;
+        for (int i = 0; i + 2 <= length && article == null; i++) {
+            if (buf[i] == ',' && buf[i + 1] == ' ') {
+                for (String candidate : this.articles) {
+                    if (regionMatches(buf, i + 2, length, candidate)) {
+                        articleAt = i;
+                        article = candidate;
+                        break;
+                    }
+                }
+            }
+        }
+        if (article != null) {
+            if (out.length < article.length() + 1 + articleAt + 16) {
+                buffers[1] = out = new char[article.length() + 1 + articleAt + 16];
+            }
+            article.getChars(0, article.length(), out, 0);
+            out[article.length()] = ' ';
+            System.arraycopy(buf, 0, out, article.length() + 1, articleAt);
+            outLength = article.length() + 1 + articleAt;
+        } else {
+            System.arraycopy(buf, 0, out, 0, length);
+            outLength = length;
+        }
+
+        //reject foreign articles
+        for (int i = 0; i + 2 <= outLength; i++) {
+            if (out[i] == ',' && out[i + 1] == ' ') {
+                for (String candidate : this.rejectedArticles) {
+                    int after = i + 2 + candidate.length();
+                    if (regionMatches(out, i + 2, outLength, candidate) && (after == outLength || out[after] == ' ')) {
+                        return null;
+                    }
+                }
+            }
+        }
+
+        //remove stripped strings, compacting the buffer in place
+        if (this.stripped.length != 0) {
+            int dst = 0;
+            for (int i = 0; i < outLength; ) {
+                String match = null;
+                for (String candidate : this.stripped) {
+                    if (regionMatches(out, i, outLength, candidate)) {
+                        match = candidate;
+                        break;
+                    }
+                }
+                if (match != null) {
+                    i += match.length();
+                } else {
+                    out[dst++] = out[i++];
+                }
+            }
+            outLength = dst;
+        }
+
+        if (tags == 0L) {
+            return new String(out, 0, outLength);
+        }
+        StringBuilder builder = new StringBuilder(outLength + 32).append(out, 0, outLength);
+        for (int i = 0; i < this.keptTags.length; i++) {
+            if ((tags & (1L << i)) != 0L) {
+                builder.append(" (").append(this.keptTags[i]).append(')');
+            }
+        }
+        return builder.toString();
+    }
+
+    /**
+     * @return a bitmask of the kept tags which match the given tag
+     */
+    private long keptTags(@NonNull String name, int from, int to) {
+        long tags = 0L;
+        for (int i = 0; i < this.keptTags.length; i++) {
+            String tag = this.keptTags[i];
+            if (tag.length() == to - from && equalsIgnoreCase(name, from, tag)) {
+                tags |= 1L << i;
+            }
+        }
+        return tags;
+    }
+
+    private static char map(char c) {
+        return c == '_' ? ' ' : c;
+    }
+
+    private static boolean equalsIgnoreCase(@NonNull String name, int from, @NonNull String tag) {
+        for (int i = 0; i < tag.length(); i++) {
+            char a = map(name.charAt(from + i));
+            char b = tag.charAt(i);
+            if (a != b && Character.toUpperCase(a) != Character.toUpperCase(b) && Character.toLowerCase(a) != Character.toLowerCase(b)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean regionMatches(@NonNull char[] buf, int from, int length, @NonNull String s) {
+        if (from + s.length() > length) {
+            return false;
+        }
+        for (int i = 0; i < s.length(); i++) {
+            if (buf[from + i] != s.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Configures a {@link NameNormalizer}. Everything is disabled by default.
+     */
+    public static final class Builder {
+        private String extension;
+        private int    prefixDigits;
+        private String prefixSeparator;
+
+        private final List<String> keptTags         = new ArrayList<>();
+        private final List<String> articles         = new ArrayList<>();
+        private final List<String> rejectedArticles = new ArrayList<>();
+        private final List<String> stripped         = new ArrayList<>();
+
+        /**
+         * Only accepts names with the given extension (e.g. {@code .nds}), which is stripped.
+         */
+        public Builder extension(@NonNull String extension) {
+            this.extension = extension;
+            return this;
+        }
+
+        /**
+         * Only accepts names which start with the given number of digits followed by the separator (e.g.
+         * {@code 0123 - }), which are stripped.
+         */
+        public Builder numberPrefix(int digits, @NonNull String separator) {
+            this.prefixDigits = digits;
+            this.prefixSeparator = separator;
+            return this;
+        }
+
+        /**
+         * Keeps a tag (e.g. {@code DSi Enhanced}), which is matched case-insensitively.
+         */
+        public Builder keepTag(@NonNull String tag) {
+            this.keptTags.add(tag);
+            return this;
+        }
+
+        /**
+         * Moves the given article to the front if it's found after a comma, e.g. {@code Legend of Foo, The}.
+         * <p>
+         * Articles are tried in the order they were added.
+         */
+        public Builder article(@NonNull String article) {
+            this.articles.add(article);
+            return this;
+        }
+
+        /**
+         * Rejects all names where the given word is found after a comma, e.g. {@code Legende von Foo, Die}.
+         */
+        public Builder rejectArticle(@NonNull String article) {
+            this.rejectedArticles.add(article);
+            return this;
+        }
+
+        /**
+         * Removes every occurrence of the given string, e.g. {@code  Version}. The check is case-sensitive.
+         */
+        public Builder strip(@NonNull String s) {
+            this.stripped.add(s);
+            return this;
+        }
+
+        public NameNormalizer build() {
+            return new NameNormalizer(this);
+        }
+    }
+}
@@ -0,0 +1,263 @@
+/*
+ * Adapted from the Wizardry License
+ *
+ * Copyright (c) 2019-2019 DaPorkchop_ and contributors
+ *
+ * Permission is hereby granted to any persons and/or organizations using this software to copy, modify, merge, publish, and distribute it. Said persons and/or organizations are not allowed to use the software or any derivatives of the work for commercial use or any other means to generate income, nor are they allowed to claim this software as their own.
+ *
+ * The persons and/or organizations are also disallowed from sub-licensing and/or trademarking this software without explicit permission from DaPorkchop_.
+ *
+ * Any persons and/or organizations using this software must disclose their source code and have it publicly available, include this license, provide sufficient credit to the original authors of the project (IE: DaPorkchop_), as well as provide a link to the original project.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON INFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ */
+
+package net.daporkchop.romrenamer;
+
+import lombok.Getter;
+import lombok.NonNull;
+import lombok.experimental.Accessors;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Writes an animated GIF image from frames which are already palettized.
+ * <p>
+ * Every frame is written with its own palette as the local color table and its indices are LZW-encoded as-is, so no
+ * color quantization is ever done. Consecutive identical frames are merged into a single frame with a longer delay.
+ * The palette entry with zero alpha (if any) is used as the transparent color.
+ *
+ * @author DaPorkchop_
+ */
+@Accessors(fluent = true)
+public final class PaletteGifWriter implements AutoCloseable {
+    private static final int MAX_CODE = 1 << 12;
+
+    private final OutputStream out;
+
+    @Getter
+    private final int width;
+    @Getter
+    private final int height;
+    @Getter
+    private final int ticksPerSecond;
+
+    private byte[] pendingIndices;
+    private int[]  pendingPalette;
+    private long   pendingTicks;
+
+    private long totalTicks   = 0L;
+    private long writtenDelay = 0L;
+
+    private int[] dictionary;
+
+    private final byte[] block = new byte[255];
+    private int blockSize;
+    private int bits;
+    private int bitCount;
+
+    /**
+     * @param ticksPerSecond the unit that frame durations are given in
+     */
+    public PaletteGifWriter(@NonNull OutputStream out, int width, int height, int ticksPerSecond) throws IOException {
+        if (width <= 0 || height <= 0 || width > 0xFFFF || height > 0xFFFF) {
+            throw new IllegalArgumentException(String.format("Invalid image size: %dx%d", width, height));
+        } else if (ticksPerSecond <= 0) {
+            throw new IllegalArgumentException(String.format("Invalid tick rate: %d", ticksPerSecond));
+        }
+        this.out = out;
+        this.width = width;
+        this.height = height;
+        this.ticksPerSecond = ticksPerSecond;
+
+        out.write("GIF89a".getBytes(StandardCharsets.US_ASCII));
+        this.writeShort(width);
+        this.writeShort(height);
+        out.write(0); //no global color table
+        out.write(0); //background color index
+        out.write(0); //pixel aspect ratio
+
+        //loop forever
+        out.write(0x21);
+        out.write(0xFF);
+        out.write(11);
+        out.write("NETSCAPE2.0".getBytes(StandardCharsets.US_ASCII));
+        out.write(3);
+        out.write(1);
+        this.writeShort(0);
+        out.write(0);
+    }
+
+    /**
+     * Adds a frame to the animation.
+     *
+     * @param indices     the frame's pixels as palette indices, in row-major order
+     * @param argbPalette the frame's palette. Must have a power-of-two length between 2 and 256
+     * @param ticks       the number of ticks to display the frame for
+     */
+    public void writeFrame(@NonNull byte[] indices, @NonNull int[] argbPalette, int ticks) throws IOException {
+        if (indices.length != this.width * this.height) {
+            throw new IllegalArgumentException(String.format("Expected %d pixels, but found %d!", this.width * this.height, indices.length));
+        } else if (argbPalette.length < 2 || argbPalette.length > 256 || Integer.bitCount(argbPalette.length) != 1) {
+            throw new IllegalArgumentException(String.format("Invalid palette size: %d", argbPalette.length));
+        } else if (ticks <= 0) {
+            return;
+        }
+
+        if (this.pendingIndices != null && Arrays.equals(this.pendingIndices, indices) && Arrays.equals(this.pendingPalette, argbPalette)) {
+            this.pendingTicks += ticks;
+            return;
+        }
+        this.flushFrame();
+        this.pendingIndices = indices.clone();
+        this.pendingPalette = argbPalette.clone();
+        this.pendingTicks = ticks;
+    }
+
+    private void flushFrame() throws IOException {
+        if (this.pendingIndices == null) {
+            return;
+        }
+        OutputStream out = this.out;
+        int[] palette = this.pendingPalette;
+        int paletteBits = Integer.numberOfTrailingZeros(palette.length);
+
+        //round the total elapsed time rather than every frame's delay, so that rounding errors don't add up
+        this.totalTicks += this.pendingTicks;
+        int delay = (int) Math.max(Math.round(this.totalTicks * 100.0d / this.ticksPerSecond) - this.writtenDelay, 2L);
+        this.writtenDelay += delay;
+
+        int transparent = -1;
+        for (int i = 0; i < palette.length && transparent < 0; i++) {
+            if ((palette[i] >>> 24) == 0) {
+                transparent = i;
+            }
+        }
+
+        //graphic control extension
+        out.write(0x21);
+        out.write(0xF9);
+        out.write(4);
+        out.write((2 << 2) | (transparent >= 0 ? 1 : 0)); //dispose: restore to background
+        this.writeShort(Math.min(delay, 0xFFFF));
+        out.write(Math.max(transparent, 0));
+        out.write(0);
+
+        //image descriptor and local color table
+        out.write(0x2C);
+        this.writeShort(0);
+        this.writeShort(0);
+        this.writeShort(this.width);
+        this.writeShort(this.height);
+        out.write(0x80 | (paletteBits - 1));
+        for (int color : palette) {
+            out.write(color >>> 16);
+            out.write(color >>> 8);
+            out.write(color);
+        }
+
+        this.encode(this.pendingIndices, Math.max(paletteBits, 2));
+        this.pendingIndices = null;
+        this.pendingPalette = null;
+    }
+
+    private void encode(@NonNull byte[] indices, int minCodeSize) throws IOException {
+        int clear = 1 << minCodeSize;
+        int end = clear + 1;
+        int mask = clear - 1;
+        if (this.dictionary == null || this.dictionary.length != MAX_CODE << minCodeSize) {
+            this.dictionary = new int[MAX_CODE << minCodeSize];
+        } else {
+            Arrays.fill(this.dictionary, 0);
+        }
+        int[] dictionary = this.dictionary;
+
+        this.out.write(minCodeSize);
+        this.blockSize = this.bits = this.bitCount = 0;
+
+        int codeSize = minCodeSize + 1;
+        int next = end + 1;
+        this.writeCode(clear, codeSize);
+
+        int prefix = indices[0] & mask;
+        for (int i = 1; i < indices.length; i++) {
+            int symbol = indices[i] & mask;
+            int key = (prefix << minCodeSize) | symbol;
+            if (dictionary[key] != 0) {
+                prefix = dictionary[key];
+                continue;
+            }
+
+            if (next > (1 << codeSize) && codeSize < 12) {
+                codeSize++;
+            }
+            this.writeCode(prefix, codeSize);
+            if (next < MAX_CODE) {
+                dictionary[key] = next++;
+            } else {
+                //the table is full, start over
+                this.writeCode(clear, codeSize);
+                Arrays.fill(dictionary, 0);
+                codeSize = minCodeSize + 1;
+                next = end + 1;
+            }
+            prefix = symbol;
+        }
+        if (next > (1 << codeSize) && codeSize < 12) {
+            codeSize++;
+        }
+        this.writeCode(prefix, codeSize);
+        //the decoder adds one more entry before reading the end code
+        if (next >= (1 << codeSize) && codeSize < 12) {
+            codeSize++;
+        }
+        this.writeCode(end, codeSize);
+
+        if (this.bitCount > 0) {
+            this.writeByte(this.bits);
+        }
+        if (this.blockSize > 0) {
+            this.flushBlock();
+        }
+        this.out.write(0); //block terminator
+    }
+
+    private void writeCode(int code, int codeSize) throws IOException {
+        this.bits |= code << this.bitCount;
+        this.bitCount += codeSize;
+        while (this.bitCount >= 8) {
+            this.writeByte(this.bits);
+            this.bits >>>= 8;
+            this.bitCount -= 8;
+        }
+    }
+
+    private void writeByte(int b) throws IOException {
+        this.block[this.blockSize++] = (byte) b;
+        if (this.blockSize == this.block.length) {
+            this.flushBlock();
+        }
+    }
+
+    private void flushBlock() throws IOException {
+        this.out.write(this.blockSize);
+        this.out.write(this.block, 0, this.blockSize);
+        this.blockSize = 0;
+    }
+
+    private void writeShort(int value) throws IOException {
+        this.out.write(value);
+        this.out.write(value >>> 8);
+    }
+
+    @Override
+    public void close() throws IOException {
+        this.flushFrame();
+        this.out.write(0x3B);
+        this.out.flush();
+    }
+}
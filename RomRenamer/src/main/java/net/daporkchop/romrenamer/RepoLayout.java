@@ -0,0 +1,57 @@
+/*
+ * Adapted from the Wizardry License
+ *
+ * Copyright (c) 2019-2019 DaPorkchop_ and contributors
+ *
+ * Permission is hereby granted to any persons and/or organizations using this software to copy, modify, merge, publish, and distribute it. Said persons and/or organizations are not allowed to use the software or any derivatives of the work for commercial use or any other means to generate income, nor are they allowed to claim this software as their own.
+ *
+ * The persons and/or organizations are also disallowed from sub-licensing and/or trademarking this software without explicit permission from DaPorkchop_.
+ *
+ * Any persons and/or organizations using this software must disclose their source code and have it publicly available, include this license, provide sufficient credit to the original authors of the project (IE: DaPorkchop_), as well as provide a link to the original project.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON INFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ */
+
+package net.daporkchop.romrenamer;
+
+import lombok.Getter;
+import lombok.NonNull;
+import lombok.experimental.Accessors;
+
+import java.io.File;
+
+/**
+ * Where everything is located in the ROM repository.
+ * <p>
+ * Unlike {@link RepoWriter}, this never touches the filesystem, so it can be used to read an existing repository.
+ *
+ * @author DaPorkchop_
+ */
+@Getter
+@Accessors(fluent = true)
+public final class RepoLayout {
+    private final File root;
+    private final File infoDir;
+    private final File repoDir;
+    private final File iconDir;
+
+    public RepoLayout(@NonNull File root) {
+        this.root = root;
+        this.infoDir = new File(root, "info");
+        this.repoDir = new File(root, "repo");
+        this.iconDir = new File(root, "icons");
+    }
+
+    public File romFile(@NonNull String hash, @NonNull String extension) {
+        return new File(this.repoDir, String.format("%s/%s/%s%s", hash.subSequence(0, 2), hash.subSequence(2, 4), hash, extension));
+    }
+
+    public File iconFile(@NonNull String hash, @NonNull String extension) {
+        return new File(this.iconDir, String.format("%s/%s%s", hash.subSequence(0, 2), hash, extension));
+    }
+
+    public File titleDir(@NonNull String name) {
+        return new File(this.infoDir, name);
+    }
+}
@@ -0,0 +1,365 @@
+/*
+ * Adapted from the Wizardry License
+ *
+ * Copyright (c) 2019-2019 DaPorkchop_ and contributors
+ *
+ * Permission is hereby granted to any persons and/or organizations using this software to copy, modify, merge, publish, and distribute it. Said persons and/or organizations are not allowed to use the software or any derivatives of the work for commercial use or any other means to generate income, nor are they allowed to claim this software as their own.
+ *
+ * The persons and/or organizations are also disallowed from sub-licensing and/or trademarking this software without explicit permission from DaPorkchop_.
+ *
+ * Any persons and/or organizations using this software must disclose their source code and have it publicly available, include this license, provide sufficient credit to the original authors of the project (IE: DaPorkchop_), as well as provide a link to the original project.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON INFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ */
+
+package net.daporkchop.romrenamer;
+
+import lombok.AccessLevel;
+import lombok.Getter;
+import lombok.NonNull;
+import lombok.experimental.Accessors;
+import net.daporkchop.lib.common.misc.file.PFiles;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Writes the {@code info}, {@code repo} and {@code icons} trees of the ROM repository.
+ * <p>
+ * In sync mode, the existing trees are left in place. Only entries whose contents differ from what this run produces
+ * are (atomically) replaced, and everything this run didn't produce is deleted in {@link #finish()}, after all new
+ * entries are in place. This keeps the repository servable during the sync, and makes the amount of I/O scale with
+ * the size of the change.
+ * <p>
+ * Otherwise, both trees are wiped and rebuilt from scratch.
+ * <p>
+ * ROMs are either symlinked into the {@code repo} tree, or materialized as real files (see {@link Mode}).
+ *
+ * @author DaPorkchop_
+ */
+@Getter
+@Accessors(fluent = true)
+public final class RepoWriter {
+    private final RepoLayout layout;
+    private final File       infoDir;
+    private final File       repoDir;
+    private final File       iconDir;
+    private final boolean    sync;
+    private final Mode       mode;
+
+    @Getter(AccessLevel.NONE)
+    private final Set<Path>   desired = ConcurrentHashMap.newKeySet();
+    @Getter(AccessLevel.NONE)
+    private final Set<String> hashes  = ConcurrentHashMap.newKeySet();
+
+    /**
+     * Whether reflinks from a device to the repository are supported, keyed by device. Absent if untested.
+     */
+    @Getter(AccessLevel.NONE)
+    private final Map<Object, Boolean> reflinks = new ConcurrentHashMap<>();
+    @Getter(AccessLevel.NONE)
+    private final Object               repoDevice;
+
+    public RepoWriter(@NonNull File dst, boolean sync) {
+        this(dst, sync, Mode.SYMLINK);
+    }
+
+    public RepoWriter(@NonNull File dst, boolean sync, @NonNull Mode mode) {
+        this.layout = new RepoLayout(dst);
+        this.infoDir = PFiles.ensureDirectoryExists(this.layout.infoDir());
+        this.repoDir = PFiles.ensureDirectoryExists(this.layout.repoDir());
+        this.iconDir = PFiles.ensureDirectoryExists(this.layout.iconDir());
+        this.sync = sync;
+        this.mode = mode;
+        try {
+            this.repoDevice = device(this.repoDir.toPath());
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+
+        if (!sync) {
+            PFiles.rmContentsParallel(this.infoDir);
+            PFiles.rmContentsParallel(this.repoDir);
+            PFiles.rmContentsParallel(this.iconDir);
+        }
+    }
+
+    public File romFile(@NonNull String hash) {
+        return this.romFile(hash, ".nds");
+    }
+
+    public File romFile(@NonNull String hash, @NonNull String extension) {
+        return this.layout.romFile(hash, extension);
+    }
+
+    public File iconFile(@NonNull String hash, @NonNull String extension) {
+        return this.layout.iconFile(hash, extension);
+    }
+
+    public File titleDir(@NonNull String name) {
+        return PFiles.ensureDirectoryExists(this.layout.titleDir(name));
+    }
+
+    /**
+     * Links a ROM into the repository.
+     *
+     * @return {@code false} if a ROM with the same hash has already been linked during this run
+     */
+    public boolean link(@NonNull String hash, @NonNull Path target) throws IOException {
+        return this.link(hash, target, ".nds");
+    }
+
+    /**
+     * Links a ROM into the repository.
+     *
+     * @param extension the extension of the link, which should reflect the type of the target (e.g. {@code .zip} if the
+     *                  ROM is stored in an archive)
+     * @return {@code false} if a ROM with the same hash has already been linked during this run
+     */
+    public boolean link(@NonNull String hash, @NonNull Path target, @NonNull String extension) throws IOException {
+        return this.link(hash, target, extension, null);
+    }
+
+    /**
+     * Links a ROM into the repository.
+     *
+     * @param extension the extension of the link, which should reflect the type of the target (e.g. {@code .zip} if the
+     *                  ROM is stored in an archive)
+     * @param staged    a copy of the target created using {@link #stagingFile(Path)}, or {@code null}. It's moved into
+     *                  place if the ROM is materialized, and deleted otherwise
+     * @return {@code false} if a ROM with the same hash has already been linked during this run
+     */
+    public boolean link(@NonNull String hash, @NonNull Path target, @NonNull String extension, Path staged) throws IOException {
+        if (!this.hashes.add(hash)) {
+            if (staged != null) {
+                Files.deleteIfExists(staged);
+            }
+            return false;
+        }
+
+        Path link = this.romFile(hash, extension).toPath();
+        this.desired.add(link);
+        if (this.mode == Mode.MATERIALIZE) {
+            this.materialize(target, link, staged);
+            return true;
+        }
+        if (staged != null) {
+            Files.deleteIfExists(staged);
+        }
+        if (Files.isSymbolicLink(link) && Files.readSymbolicLink(link).equals(target)) {
+            return true;
+        }
+
+        PFiles.ensureDirectoryExists(link.getParent().toFile());
+        Path tmp = link.resolveSibling(link.getFileName() + ".tmp");
+        Files.deleteIfExists(tmp);
+        Files.createSymbolicLink(tmp, target);
+        Files.move(tmp, link, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        return true;
+    }
+
+    /**
+     * Gets a file that a ROM can be copied to while it's being hashed, so that its data only has to be read once.
+     * <p>
+     * The first ROM from every other device is used to test whether reflinks from that device work, all other ROMs
+     * from the same device wait for the result.
+     *
+     * @return the file, or {@code null} if the ROM will not be copied byte by byte, e.g. because it can be reflinked or
+     * hardlinked instead
+     */
+    public Path stagingFile(@NonNull Path source) throws IOException {
+        if (this.mode != Mode.MATERIALIZE) {
+            return null;
+        }
+        Object device = device(source);
+        if (device.equals(this.repoDevice)) {
+            return null;
+        }
+
+        Path dir = PFiles.ensureDirectoryExists(new File(this.repoDir, ".staging")).toPath();
+        if (this.reflinks.computeIfAbsent(device, d -> probeReflink(source, dir))) {
+            return null;
+        }
+        return Files.createTempFile(dir, "rom", ".tmp");
+    }
+
+    private void materialize(@NonNull Path target, @NonNull Path file, Path staged) throws IOException {
+        if (Files.isRegularFile(file, LinkOption.NOFOLLOW_LINKS) && Files.size(file) == Files.size(target)) {
+            //already materialized by an earlier run
+            if (staged != null) {
+                Files.deleteIfExists(staged);
+            }
+            return;
+        }
+
+        PFiles.ensureDirectoryExists(file.getParent().toFile());
+        Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+        Files.deleteIfExists(tmp);
+        if (staged != null) {
+            Files.move(staged, tmp);
+        } else if (!this.reflink(target, tmp) && !this.hardlink(target, tmp)) {
+            try (FileChannel src = FileChannel.open(target, StandardOpenOption.READ);
+                 FileChannel dst = FileChannel.open(tmp, StandardOpenOption.WRITE, StandardOpenOption.CREATE_NEW)) {
+                for (long pos = 0L, size = src.size(); pos < size; ) {
+                    pos += src.transferTo(pos, size - pos, dst);
+                }
+            }
+        }
+        Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Tries to create a reflink (a copy which shares the source's data blocks until either is modified).
+     * <p>
+     * Java has no API for this, so it's delegated to {@code cp}. Once a reflink from a device fails, no more are
+     * attempted from that device.
+     */
+    private boolean reflink(@NonNull Path target, @NonNull Path file) throws IOException {
+        Object device = device(target);
+        if (!this.reflinks.getOrDefault(device, true)) {
+            return false;
+        }
+
+        boolean success = cpReflink(target, file);
+        if (!success) {
+            this.reflinks.put(device, false);
+            Files.deleteIfExists(file);
+        }
+        return success;
+    }
+
+    /**
+     * Tests whether reflinks from the given file's device to the given directory work, by reflinking the file into a
+     * temporary file and deleting it again. This doesn't copy any data.
+     */
+    private static boolean probeReflink(@NonNull Path source, @NonNull Path dir) {
+        try {
+            Path probe = Files.createTempFile(dir, "probe", ".tmp");
+            try {
+                return cpReflink(source, probe);
+            } finally {
+                Files.deleteIfExists(probe);
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static boolean cpReflink(@NonNull Path target, @NonNull Path file) {
+        try {
+            Process process = new ProcessBuilder("cp", "--reflink=always", target.toString(), file.toString())
+                    .redirectErrorStream(true)
+                    .redirectOutput(ProcessBuilder.Redirect.to(new File("/dev/null")))
+                    .start();
+            return process.waitFor() == 0;
+        } catch (IOException e) { //cp isn't available
+            return false;
+        } catch (InterruptedException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private boolean hardlink(@NonNull Path target, @NonNull Path file) throws IOException {
+        if (!device(target).equals(this.repoDevice)) {
+            return false;
+        }
+        try {
+            Files.createLink(file, target);
+            return true;
+        } catch (UnsupportedOperationException | IOException e) {
+            Files.deleteIfExists(file);
+            return false;
+        }
+    }
+
+    private static Object device(@NonNull Path path) throws IOException {
+        try {
+            return Files.getAttribute(path, "unix:dev");
+        } catch (UnsupportedOperationException | IllegalArgumentException e) {
+            return Files.getFileStore(path).name();
+        }
+    }
+
+    /**
+     * Writes a file, unless it already exists with the same contents.
+     */
+    public void write(@NonNull File file, @NonNull byte[] data) throws IOException {
+        Path path = file.toPath();
+        this.desired.add(path);
+        if (Files.isRegularFile(path, LinkOption.NOFOLLOW_LINKS) && Files.size(path) == data.length && Arrays.equals(Files.readAllBytes(path), data)) {
+            return;
+        }
+
+        Path tmp = path.resolveSibling(path.getFileName() + ".tmp");
+        Files.write(tmp, data);
+        Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Deletes everything which wasn't written during this run.
+     *
+     * @return the number of deleted entries
+     */
+    public int finish() throws IOException {
+        if (!this.sync) {
+            return 0;
+        }
+
+        int deleted = 0;
+        for (File dir : new File[]{this.repoDir, this.infoDir, this.iconDir}) {
+            List<Path> paths;
+            try (Stream<Path> stream = Files.walk(dir.toPath())) {
+                paths = stream.sorted(Comparator.reverseOrder()).collect(Collectors.toList()); //children before their parents
+            }
+            for (Path path : paths) {
+                if (Files.isDirectory(path, LinkOption.NOFOLLOW_LINKS)) {
+                    if (!path.equals(dir.toPath())) {
+                        try (Stream<Path> children = Files.list(path)) {
+                            if (!children.findAny().isPresent()) {
+                                Files.delete(path);
+                                deleted++;
+                            }
+                        }
+                    }
+                } else if (!this.desired.contains(path)) {
+                    Files.delete(path);
+                    deleted++;
+                }
+            }
+        }
+        return deleted;
+    }
+
+    /**
+     * The ways that ROMs can be placed in the {@code repo} tree.
+     */
+    public enum Mode {
+        /**
+         * ROMs are symlinked to their original location.
+         */
+        SYMLINK,
+        /**
+         * ROMs are materialized as real files, so that the repository doesn't depend on the original location being
+         * available.
+         * <p>
+         * A reflink is used if the filesystem supports it, otherwise a hardlink if the ROM is on the same device,
+         * otherwise the ROM is copied.
+         */
+        MATERIALIZE;
+    }
+}
@@ -0,0 +1,472 @@
+/*
+ * Adapted from the Wizardry License
+ *
+ * Copyright (c) 2019-2019 DaPorkchop_ and contributors
+ *
+ * Permission is hereby granted to any persons and/or organizations using this software to copy, modify, merge, publish, and distribute it. Said persons and/or organizations are not allowed to use the software or any derivatives of the work for commercial use or any other means to generate income, nor are they allowed to claim this software as their own.
+ *
+ * The persons and/or organizations are also disallowed from sub-licensing and/or trademarking this software without explicit permission from DaPorkchop_.
+ *
+ * Any persons and/or organizations using this software must disclose their source code and have it publicly available, include this license, provide sufficient credit to the original authors of the project (IE: DaPorkchop_), as well as provide a link to the original project.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON INFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ */
+
+package net.daporkchop.romrenamer;
+
+import lombok.AllArgsConstructor;
+import lombok.NonNull;
+import net.daporkchop.lib.common.util.PorkUtil;
+import net.daporkchop.lib.encoding.Hexadecimal;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.IntPredicate;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+
+/**
+ * A single binary file describing every ROM in the repository, which can be queried without parsing any manifests.
+ * <p>
+ * The file consists of a header, an array of fixed-width records (one per ROM), four secondary indexes (arrays of
+ * record numbers sorted by gamecode, hash, name and makercode, respectively) and a heap containing all strings. All
+ * lookups are done directly on the memory-mapped file.
+ * <p>
+ * Record layout:
+ * <pre>
+ * 0x00 int      gamecode (the 4 characters after the platform prefix)
+ * 0x04 short    makercode
+ * 0x06 byte     unitcode
+ * 0x07 byte     flags
+ * 0x08 short    version
+ * 0x0C byte[32] SHA-256 hash
+ * 0x2C int      heap offset of the name
+ * 0x30 int[8]   heap offsets of the titles, indexed by {@link Main2.TitleLanguage} (or -1 if absent)
+ * </pre>
+ *
+ * @author DaPorkchop_
+ */
+public final class RomCatalog implements AutoCloseable {
+    private static final int MAGIC   = 0x52524354; //"RRCT"
+    private static final int VERSION = 1;
+
+    private static final int HEADER_SIZE = 4 * 4;
+    public static final  int RECORD_SIZE = 0x50;
+
+    private static final int OFF_GAMECODE = 0x00;
+    private static final int OFF_MAKER    = 0x04;
+    private static final int OFF_UNIT     = 0x06;
+    private static final int OFF_FLAGS    = 0x07;
+    private static final int OFF_VERSION  = 0x08;
+    private static final int OFF_HASH     = 0x0C;
+    private static final int OFF_NAME     = 0x2C;
+    private static final int OFF_TITLES   = 0x30;
+
+    private static final int HASH_SIZE   = 32;
+    private static final int TITLE_COUNT = Main2.TitleLanguage.values().length;
+
+    private static final int FLAG_TWL           = 1 << 0;
+    private static final int FLAG_ANIMATED_ICON = 1 << 1;
+
+    private static final int INDEX_GAMECODE = 0;
+    private static final int INDEX_HASH     = 1;
+    private static final int INDEX_NAME     = 2;
+    private static final int INDEX_MAKER    = 3;
+
+    public static RomCatalog open(@NonNull File file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            return new RomCatalog(channel.map(FileChannel.MapMode.READ_ONLY, 0L, channel.size()), true);
+        }
+    }
+
+    public static RomCatalog wrap(@NonNull byte[] data) throws IOException {
+        return new RomCatalog(ByteBuffer.wrap(data), false);
+    }
+
+    private final ByteBuffer buffer;
+    private final boolean    mapped;
+    private final int        size;
+
+    private RomCatalog(@NonNull ByteBuffer buffer, boolean mapped) throws IOException {
+        this.buffer = buffer;
+        this.mapped = mapped;
+
+        if (buffer.capacity() < HEADER_SIZE || buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION) {
+            if (mapped) {
+                PorkUtil.release(buffer);
+            }
+            throw new IOException("Not a ROM catalog!");
+        }
+        this.size = buffer.getInt(8);
+    }
+
+    public int size() {
+        return this.size;
+    }
+
+    public Entry get(int record) {
+        if (record < 0 || record >= this.size) {
+            throw new IndexOutOfBoundsException(String.valueOf(record));
+        }
+        return new Entry(record);
+    }
+
+    public Stream<Entry> entries() {
+        return IntStream.range(0, this.size).mapToObj(Entry::new);
+    }
+
+    /**
+     * Finds all ROMs with the given gamecode.
+     *
+     * @param gamecode either the full gamecode (e.g. {@code NTR-ABCE}) or just the 4 characters after the platform
+     *                 prefix, in which case ROMs for all platforms are returned
+     */
+    public List<Entry> byGamecode(@NonNull String gamecode) {
+        String prefix = hasPlatform(gamecode) ? gamecode.substring(0, 4) : null;
+        int code = packAscii(stripPlatform(gamecode), 4);
+        List<Entry> entries = this.range(INDEX_GAMECODE, record -> Integer.compareUnsigned(this.buffer.getInt(this.recordOffset(record) + OFF_GAMECODE), code) < 0,
+                record -> Integer.compareUnsigned(this.buffer.getInt(this.recordOffset(record) + OFF_GAMECODE), code) <= 0);
+        if (prefix != null) {
+            String p = prefix;
+            entries.removeIf(entry -> !entry.gamecode().startsWith(p));
+        }
+        return entries;
+    }
+
+    /**
+     * Finds the ROM with the given hash.
+     *
+     * @param hash the hex-encoded SHA-256 hash
+     * @return the ROM, or {@code null} if there is no ROM with the given hash
+     */
+    public Entry byHash(@NonNull String hash) {
+        byte[] key = Hexadecimal.decode(hash);
+        List<Entry> entries = this.range(INDEX_HASH, record -> this.compareHash(record, key) < 0, record -> this.compareHash(record, key) <= 0);
+        return entries.isEmpty() ? null : entries.get(0);
+    }
+
+    /**
+     * Finds all ROMs whose name starts with the given prefix.
+     */
+    public List<Entry> byNamePrefix(@NonNull String prefix) {
+        int first = this.lowerBound(INDEX_NAME, record -> this.name(record).compareTo(prefix) < 0);
+        List<Entry> entries = new ArrayList<>();
+        for (int i = first; i < this.size; i++) {
+            int record = this.indexEntry(INDEX_NAME, i);
+            if (!this.name(record).startsWith(prefix)) {
+                break;
+            }
+            entries.add(new Entry(record));
+        }
+        return entries;
+    }
+
+    /**
+     * Finds all ROMs with the given makercode.
+     */
+    public List<Entry> byMaker(@NonNull String makercode) {
+        int code = packAscii(makercode, 2);
+        return this.range(INDEX_MAKER, record -> (this.buffer.getShort(this.recordOffset(record) + OFF_MAKER) & 0xFFFF) < code,
+                record -> (this.buffer.getShort(this.recordOffset(record) + OFF_MAKER) & 0xFFFF) <= code);
+    }
+
+    @Override
+    public void close() {
+        if (this.mapped) {
+            PorkUtil.release(this.buffer);
+        }
+    }
+
+    private int recordOffset(int record) {
+        return HEADER_SIZE + record * RECORD_SIZE;
+    }
+
+    private int indexEntry(int index, int i) {
+        return this.buffer.getInt(HEADER_SIZE + this.size * RECORD_SIZE + (index * this.size + i) * 4);
+    }
+
+    /**
+     * Gets the position of the first entry in the given index for which {@code before} returns {@code false}.
+     */
+    private int lowerBound(int index, @NonNull IntPredicate before) {
+        int low = 0;
+        int high = this.size;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (before.test(this.indexEntry(index, mid))) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    private List<Entry> range(int index, @NonNull IntPredicate before, @NonNull IntPredicate beforeOrEqual) {
+        List<Entry> entries = new ArrayList<>();
+        for (int i = this.lowerBound(index, before), end = this.lowerBound(index, beforeOrEqual); i < end; i++) {
+            entries.add(new Entry(this.indexEntry(index, i)));
+        }
+        return entries;
+    }
+
+    private int compareHash(int record, @NonNull byte[] key) {
+        int offset = this.recordOffset(record) + OFF_HASH;
+        for (int i = 0; i < HASH_SIZE; i++) {
+            int d = (this.buffer.get(offset + i) & 0xFF) - (i < key.length ? key[i] & 0xFF : 0);
+            if (d != 0) {
+                return d;
+            }
+        }
+        return 0;
+    }
+
+    private String name(int record) {
+        return this.string(this.buffer.getInt(this.recordOffset(record) + OFF_NAME));
+    }
+
+    private String string(int offset) {
+        if (offset < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[this.buffer.getShort(offset) & 0xFFFF];
+        ByteBuffer duplicate = this.buffer.duplicate();
+        duplicate.position(offset + 2);
+        duplicate.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Packs a code into an integer, padding it with NULs if it's shorter than the given length.
+     * <p>
+     * {@link RomHeader} strips trailing NULs from codes, so this gives the raw bytes from the ROM header back.
+     */
+    private static int packAscii(@NonNull String s, int length) {
+        if (s.length() > length) {
+            throw new IllegalArgumentException(String.format("Expected at most %d characters: \"%s\"", length, s));
+        }
+        int packed = 0;
+        for (int i = 0; i < length; i++) {
+            packed = (packed << 8) | (i < s.length() ? s.charAt(i) & 0xFF : 0);
+        }
+        return packed;
+    }
+
+    /**
+     * Unpacks a code packed by {@link #packAscii(String, int)}, stripping trailing NULs again.
+     */
+    private static String unpackAscii(int packed, int length) {
+        char[] arr = new char[length];
+        for (int i = length - 1; i >= 0; i--, packed >>>= 8) {
+            arr[i] = (char) (packed & 0xFF);
+        }
+        int end = length;
+        while (end > 0 && arr[end - 1] == 0) {
+            end--;
+        }
+        return new String(arr, 0, end);
+    }
+
+    private static boolean hasPlatform(@NonNull String gamecode) {
+        return gamecode.length() >= 4 && gamecode.charAt(3) == '-';
+    }
+
+    /**
+     * @return the gamecode without its platform prefix (e.g. {@code NTR-}), if it has one
+     */
+    private static String stripPlatform(@NonNull String gamecode) {
+        return hasPlatform(gamecode) ? gamecode.substring(4) : gamecode;
+    }
+
+    /**
+     * A view of a single record in the catalog.
+     */
+    public final class Entry {
+        private final int record;
+        private final int offset;
+
+        private Entry(int record) {
+            this.record = record;
+            this.offset = RomCatalog.this.recordOffset(record);
+        }
+
+        public int record() {
+            return this.record;
+        }
+
+        public String gamecode() {
+            return ((this.flags() & FLAG_TWL) != 0 ? "TWL-" : "NTR-") + unpackAscii(RomCatalog.this.buffer.getInt(this.offset + OFF_GAMECODE), 4);
+        }
+
+        public String makercode() {
+            return unpackAscii(RomCatalog.this.buffer.getShort(this.offset + OFF_MAKER), 2);
+        }
+
+        public int unitcode() {
+            return RomCatalog.this.buffer.get(this.offset + OFF_UNIT) & 0xFF;
+        }
+
+        public int version() {
+            return RomCatalog.this.buffer.getShort(this.offset + OFF_VERSION) & 0xFFFF;
+        }
+
+        public boolean animatedIcon() {
+            return (this.flags() & FLAG_ANIMATED_ICON) != 0;
+        }
+
+        public String hash() {
+            byte[] hash = new byte[HASH_SIZE];
+            ByteBuffer duplicate = RomCatalog.this.buffer.duplicate();
+            duplicate.position(this.offset + OFF_HASH);
+            duplicate.get(hash);
+            return Hexadecimal.encode(hash);
+        }
+
+        public String name() {
+            return RomCatalog.this.name(this.record);
+        }
+
+        /**
+         * @return the title in the given language, or {@code null} if the ROM has no title in that language
+         */
+        public String title(@NonNull Main2.TitleLanguage language) {
+            return RomCatalog.this.string(RomCatalog.this.buffer.getInt(this.offset + OFF_TITLES + language.ordinal() * 4));
+        }
+
+        private int flags() {
+            return RomCatalog.this.buffer.get(this.offset + OFF_FLAGS) & 0xFF;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s (%s v%d, %s)", this.name(), this.gamecode(), this.version(), this.hash());
+        }
+    }
+
+    /**
+     * Collects records and serializes them into a catalog.
+     * <p>
+     * Records may be added from any number of threads.
+     */
+    public static final class Builder {
+        private final List<Record> records = new ArrayList<>();
+
+        public synchronized Builder add(@NonNull String gamecode, @NonNull String makercode, int unitcode, int version, boolean animatedIcon,
+                                        @NonNull byte[] hash, @NonNull String name, @NonNull Map<Main2.TitleLanguage, String> titles) {
+            if (hash.length != HASH_SIZE) {
+                throw new IllegalArgumentException(String.format("Invalid hash length: %d", hash.length));
+            }
+            String[] titleArr = new String[TITLE_COUNT];
+            titles.forEach((language, title) -> titleArr[language.ordinal()] = title);
+            this.records.add(new Record(gamecode, makercode, unitcode, version, animatedIcon, hash, name, titleArr));
+            return this;
+        }
+
+        public synchronized byte[] build() {
+            //sort the records by hash so that the output doesn't depend on the order in which they were added
+            List<Record> records = new ArrayList<>(this.records);
+            records.sort((a, b) -> compareBytes(a.hash, b.hash));
+            int size = records.size();
+
+            //lay out the string heap, deduplicating identical strings
+            int heapOffset = HEADER_SIZE + size * RECORD_SIZE + 4 * size * 4;
+            Map<String, Integer> stringOffsets = new HashMap<>();
+            List<byte[]> strings = new ArrayList<>();
+            int heapSize = 0;
+            int[][] recordStrings = new int[size][];
+            for (int i = 0; i < size; i++) {
+                Record record = records.get(i);
+                int[] offsets = recordStrings[i] = new int[1 + TITLE_COUNT];
+                for (int j = 0; j <= TITLE_COUNT; j++) {
+                    String s = j == 0 ? record.name : record.titles[j - 1];
+                    if (s == null) {
+                        offsets[j] = -1;
+                        continue;
+                    }
+                    Integer offset = stringOffsets.get(s);
+                    if (offset == null) {
+                        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+                        if (bytes.length > 0xFFFF) {
+                            throw new IllegalArgumentException("String too long!");
+                        }
+                        stringOffsets.put(s, offset = heapOffset + heapSize);
+                        strings.add(bytes);
+                        heapSize += 2 + bytes.length;
+                    }
+                    offsets[j] = offset;
+                }
+            }
+
+            ByteBuffer buffer = ByteBuffer.allocate(heapOffset + heapSize);
+            buffer.putInt(MAGIC).putInt(VERSION).putInt(size).putInt(heapOffset);
+
+            for (int i = 0; i < size; i++) {
+                Record record = records.get(i);
+                buffer.putInt(packAscii(stripPlatform(record.gamecode), 4))
+                        .putShort((short) packAscii(record.makercode, 2))
+                        .put((byte) record.unitcode)
+                        .put((byte) ((record.gamecode.startsWith("TWL-") ? FLAG_TWL : 0) | (record.animatedIcon ? FLAG_ANIMATED_ICON : 0)))
+                        .putShort((short) record.version)
+                        .putShort((short) 0)
+                        .put(record.hash);
+                for (int offset : recordStrings[i]) {
+                    buffer.putInt(offset);
+                }
+            }
+
+            Integer[] order = new Integer[size];
+            Arrays.setAll(order, i -> i);
+            List<Comparator<Integer>> indexes = Arrays.asList(
+                    //sorted the same way as they're searched, by the packed (and therefore padded) code
+                    Comparator.comparingLong(i -> packAscii(stripPlatform(records.get(i).gamecode), 4) & 0xFFFFFFFFL),
+                    (a, b) -> compareBytes(records.get(a).hash, records.get(b).hash),
+                    Comparator.comparing(i -> records.get(i).name),
+                    Comparator.comparingInt(i -> packAscii(records.get(i).makercode, 2)));
+            for (Comparator<Integer> comparator : indexes) {
+                Integer[] sorted = order.clone();
+                Arrays.sort(sorted, comparator.thenComparing(Comparator.naturalOrder()));
+                for (int record : sorted) {
+                    buffer.putInt(record);
+                }
+            }
+
+            for (byte[] bytes : strings) {
+                buffer.putShort((short) bytes.length).put(bytes);
+            }
+            return buffer.array();
+        }
+
+        private static int compareBytes(@NonNull byte[] a, @NonNull byte[] b) {
+            for (int i = 0; i < a.length && i < b.length; i++) {
+                int d = (a[i] & 0xFF) - (b[i] & 0xFF);
+                if (d != 0) {
+                    return d;
+                }
+            }
+            return a.length - b.length;
+        }
+
+        @AllArgsConstructor
+        private static final class Record {
+            private final String   gamecode;
+            private final String   makercode;
+            private final int      unitcode;
+            private final int      version;
+            private final boolean  animatedIcon;
+            private final byte[]   hash;
+            private final String   name;
+            private final String[] titles;
+        }
+    }
+}
@@ -0,0 +1,249 @@
+/*
+ * Adapted from the Wizardry License
+ *
+ * Copyright (c) 2019-2019 DaPorkchop_ and contributors
+ *
+ * Permission is hereby granted to any persons and/or organizations using this software to copy, modify, merge, publish, and distribute it. Said persons and/or organizations are not allowed to use the software or any derivatives of the work for commercial use or any other means to generate income, nor are they allowed to claim this software as their own.
+ *
+ * The persons and/or organizations are also disallowed from sub-licensing and/or trademarking this software without explicit permission from DaPorkchop_.
+ *
+ * Any persons and/or organizations using this software must disclose their source code and have it publicly available, include this license, provide sufficient credit to the original authors of the project (IE: DaPorkchop_), as well as provide a link to the original project.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON INFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ */
+
+package net.daporkchop.romrenamer;
+
+import lombok.NonNull;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.zip.CRC32;
+
+/**
+ * Computes any number of digests of a file while only reading it once.
+ * <p>
+ * The file is read in large blocks using positional reads into two alternating buffers. While one block is being
+ * read, the previous one is fed to all requested digests in parallel.
+ *
+ * @author DaPorkchop_
+ */
+public final class RomHasher {
+    public static final int BLOCK_SIZE = Integer.getInteger("romrenamer.hashBlockSize", 1 << 21);
+
+    private static final ExecutorService DIGEST_POOL = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), r -> {
+        Thread thread = new Thread(r, "digest worker");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private static final ThreadLocal<ByteBuffer[]> BUFFER_CACHE = ThreadLocal.withInitial(() -> new ByteBuffer[]{
+            ByteBuffer.allocateDirect(BLOCK_SIZE),
+            ByteBuffer.allocateDirect(BLOCK_SIZE)
+    });
+
+    public static Map<Algorithm, byte[]> hash(@NonNull FileChannel channel, @NonNull Algorithm... algorithms) throws IOException {
+        return hash(channel, 0L, channel.size(), algorithms);
+    }
+
+    /**
+     * Hashes a region of a file.
+     *
+     * @param offset     the offset of the first byte to hash
+     * @param length     the number of bytes to hash
+     * @param algorithms the algorithms to hash with
+     * @return the digests, keyed by algorithm
+     */
+    public static Map<Algorithm, byte[]> hash(@NonNull FileChannel channel, long offset, long length, @NonNull Algorithm... algorithms) throws IOException {
+        return hash(channel, offset, length, null, algorithms);
+    }
+
+    /**
+     * Hashes a region of a file, while also copying it to another channel.
+     *
+     * @param offset     the offset of the first byte to hash
+     * @param length     the number of bytes to hash
+     * @param copy       the channel to write every hashed byte to, or {@code null}
+     * @param algorithms the algorithms to hash with
+     * @return the digests, keyed by algorithm
+     */
+    public static Map<Algorithm, byte[]> hash(@NonNull FileChannel channel, long offset, long length, WritableByteChannel copy, @NonNull Algorithm... algorithms) throws IOException {
+        Hasher[] hashers = new Hasher[algorithms.length];
+        for (int i = 0; i < algorithms.length; i++) {
+            hashers[i] = algorithms[i].create();
+        }
+
+        ByteBuffer[] buffers = BUFFER_CACHE.get();
+        CompletableFuture<Void> pending = CompletableFuture.completedFuture(null);
+        for (long pos = offset, end = offset + length, block = 0L; pos < end; block++) {
+            //read the next block while the previous one is still being digested
+            ByteBuffer buffer = buffers[(int) (block & 1L)];
+            buffer.clear().limit((int) Math.min(buffer.capacity(), end - pos));
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer, pos + buffer.position()) < 0) {
+                    throw new EOFException(String.format("Reached end of file after %d/%d bytes!", pos + buffer.position() - offset, length));
+                }
+            }
+            pos += buffer.position();
+            buffer.flip();
+            if (copy != null) {
+                for (ByteBuffer src = buffer.duplicate(); src.hasRemaining(); ) {
+                    copy.write(src);
+                }
+            }
+
+            pending.join();
+            pending = digest(hashers, buffer);
+        }
+        pending.join();
+
+        Map<Algorithm, byte[]> digests = new EnumMap<>(Algorithm.class);
+        for (int i = 0; i < algorithms.length; i++) {
+            digests.put(algorithms[i], hashers[i].digest());
+        }
+        return digests;
+    }
+
+    /**
+     * Hashes the contents of a buffer, e.g. a mapped region of a file.
+     */
+    public static Map<Algorithm, byte[]> hash(@NonNull ByteBuffer data, @NonNull Algorithm... algorithms) {
+        Session session = new Session(algorithms);
+        session.update(data);
+        return session.finish();
+    }
+
+    /**
+     * Starts hashing data which is supplied incrementally, e.g. while it's being decompressed.
+     */
+    public static Session session(@NonNull Algorithm... algorithms) {
+        return new Session(algorithms);
+    }
+
+    private static CompletableFuture<Void> digest(@NonNull Hasher[] hashers, @NonNull ByteBuffer buffer) {
+        CompletableFuture<?>[] futures = new CompletableFuture[hashers.length];
+        for (int i = 0; i < hashers.length; i++) {
+            Hasher hasher = hashers[i];
+            ByteBuffer duplicate = buffer.duplicate();
+            futures[i] = CompletableFuture.runAsync(() -> hasher.update(duplicate), DIGEST_POOL);
+        }
+        return CompletableFuture.allOf(futures);
+    }
+
+    /**
+     * Feeds data to multiple digests, updating all of them in parallel.
+     */
+    public static final class Session {
+        private final Algorithm[] algorithms;
+        private final Hasher[]    hashers;
+
+        private Session(@NonNull Algorithm... algorithms) {
+            this.algorithms = algorithms.clone();
+            this.hashers = new Hasher[algorithms.length];
+            for (int i = 0; i < algorithms.length; i++) {
+                this.hashers[i] = algorithms[i].create();
+            }
+        }
+
+        /**
+         * Updates all digests with the remaining contents of the given buffer. The buffer's position is not changed.
+         */
+        public void update(@NonNull ByteBuffer buffer) {
+            digest(this.hashers, buffer).join();
+        }
+
+        public Map<Algorithm, byte[]> finish() {
+            Map<Algorithm, byte[]> digests = new EnumMap<>(Algorithm.class);
+            for (int i = 0; i < this.algorithms.length; i++) {
+                digests.put(this.algorithms[i], this.hashers[i].digest());
+            }
+            return digests;
+        }
+    }
+
+    public enum Algorithm {
+        CRC32("crc32") {
+            @Override
+            public Hasher create() {
+                CRC32 crc = new CRC32();
+                return new Hasher() {
+                    @Override
+                    public void update(@NonNull ByteBuffer buffer) {
+                        crc.update(buffer);
+                    }
+
+                    @Override
+                    public byte[] digest() {
+                        int value = (int) crc.getValue();
+                        return new byte[]{(byte) (value >>> 24), (byte) (value >>> 16), (byte) (value >>> 8), (byte) value};
+                    }
+                };
+            }
+        },
+        MD5("md5") {
+            @Override
+            public Hasher create() {
+                return messageDigest("MD5");
+            }
+        },
+        SHA1("sha1") {
+            @Override
+            public Hasher create() {
+                return messageDigest("SHA-1");
+            }
+        },
+        SHA256("sha256") {
+            @Override
+            public Hasher create() {
+                return messageDigest("SHA-256");
+            }
+        };
+
+        private static Hasher messageDigest(@NonNull String alg) {
+            try {
+                MessageDigest digest = MessageDigest.getInstance(alg);
+                return new Hasher() {
+                    @Override
+                    public void update(@NonNull ByteBuffer buffer) {
+                        digest.update(buffer);
+                    }
+
+                    @Override
+                    public byte[] digest() {
+                        return digest.digest();
+                    }
+                };
+            } catch (NoSuchAlgorithmException e) {
+                throw new RuntimeException(e);
+            }
+        }
+
+        /**
+         * The name used for this algorithm in manifests.
+         */
+        public final String key;
+
+        Algorithm(@NonNull String key) {
+            this.key = key;
+        }
+
+        public abstract Hasher create();
+    }
+
+    public interface Hasher {
+        void update(@NonNull ByteBuffer buffer);
+
+        byte[] digest();
+    }
+}
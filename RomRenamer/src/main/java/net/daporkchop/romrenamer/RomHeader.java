@@ -0,0 +1,213 @@
+/*
+ * Adapted from the Wizardry License
+ *
+ * Copyright (c) 2019-2019 DaPorkchop_ and contributors
+ *
+ * Permission is hereby granted to any persons and/or organizations using this software to copy, modify, merge, publish, and distribute it. Said persons and/or organizations are not allowed to use the software or any derivatives of the work for commercial use or any other means to generate income, nor are they allowed to claim this software as their own.
+ *
+ * The persons and/or organizations are also disallowed from sub-licensing and/or trademarking this software without explicit permission from DaPorkchop_.
+ *
+ * Any persons and/or organizations using this software must disclose their source code and have it publicly available, include this license, provide sufficient credit to the original authors of the project (IE: DaPorkchop_), as well as provide a link to the original project.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON INFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ */
+
+package net.daporkchop.romrenamer;
+
+import lombok.NonNull;
+import net.daporkchop.lib.nds.header.RomIcon;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Reads the header and icon/title block of an NDS ROM using plain positional reads, without mapping anything.
+ * <p>
+ * Both regions are read into a buffer which is reused by every call to {@link #read(SeekableByteChannel)} on the same thread,
+ * and all fields are only decoded when they are accessed. An instance is therefore only valid until the next call to
+ * {@link #read(SeekableByteChannel)} on the same thread, anything that needs to outlive it must be copied.
+ *
+ * @author DaPorkchop_
+ */
+public final class RomHeader {
+    public static final int HEADER_SIZE      = 0x200;
+    /**
+     * The number of bytes of the header that are actually read, which also covers the DSi-specific used ROM size.
+     */
+    public static final int HEADER_READ_SIZE = 0x220;
+    public static final int ICON_TITLE_SIZE  = 0x2340 + 0x80;
+
+    private static final ThreadLocal<RomHeader> CACHE = ThreadLocal.withInitial(RomHeader::new);
+
+    /**
+     * Reads the header of the given ROM, which may be a plain file or e.g. a ROM in a {@link ChunkStore}.
+     * <p>
+     * Note that this changes the channel's position.
+     *
+     * @return a header instance owned by the current thread
+     */
+    public static RomHeader read(@NonNull SeekableByteChannel channel) throws IOException {
+        return read(channel, true);
+    }
+
+    /**
+     * Reads the header of the given ROM, which may be a plain file or e.g. a ROM in a {@link ChunkStore}.
+     * <p>
+     * Note that this changes the channel's position.
+     *
+     * @param iconTitle whether to read the icon/title block as well. If {@code false}, the returned header has no
+     *                  icon/title block
+     * @return a header instance owned by the current thread
+     */
+    public static RomHeader read(@NonNull SeekableByteChannel channel, boolean iconTitle) throws IOException {
+        RomHeader header = CACHE.get();
+        long size = channel.size();
+
+        ByteBuffer buffer = header.header;
+        buffer.clear().limit((int) Math.min(HEADER_READ_SIZE, size));
+        if (size < HEADER_SIZE || !readFully(channel, buffer, 0L)) {
+            throw new IOException(String.format("ROM is too small: %d bytes", size));
+        }
+        buffer.flip();
+
+        //the icon/title block is optional and may be cut off in trimmed roms
+        long iconOffset = buffer.getInt(0x068) & 0xFFFFFFFFL;
+        ByteBuffer iconTitleBuffer = header.iconTitleBuffer;
+        iconTitleBuffer.clear();
+        if (iconTitle && iconOffset != 0L && iconOffset < size) {
+            iconTitleBuffer.limit((int) Math.min(ICON_TITLE_SIZE, size - iconOffset));
+            readFully(channel, iconTitleBuffer, iconOffset);
+            iconTitleBuffer.flip();
+        } else {
+            iconTitleBuffer.limit(0);
+        }
+        return header;
+    }
+
+    /**
+     * Loads a header from data which has already been read.
+     *
+     * @param header    the start of the ROM. Must contain at least {@link #HEADER_SIZE} bytes
+     * @param iconTitle the icon/title block, or an empty buffer if it isn't available
+     * @return a header instance owned by the current thread
+     */
+    public static RomHeader load(@NonNull ByteBuffer header, @NonNull ByteBuffer iconTitle) throws IOException {
+        if (header.remaining() < HEADER_SIZE) {
+            throw new IOException(String.format("ROM is too small: %d bytes", header.remaining()));
+        }
+        RomHeader instance = CACHE.get();
+        ByteBuffer buffer = instance.header;
+        buffer.clear();
+        buffer.put((ByteBuffer) header.duplicate().limit(header.position() + Math.min(header.remaining(), HEADER_READ_SIZE))).flip();
+        ByteBuffer iconTitleBuffer = instance.iconTitleBuffer;
+        iconTitleBuffer.clear();
+        iconTitleBuffer.put((ByteBuffer) iconTitle.duplicate().limit(iconTitle.position() + Math.min(iconTitle.remaining(), ICON_TITLE_SIZE))).flip();
+        return instance;
+    }
+
+    private static boolean readFully(@NonNull SeekableByteChannel channel, @NonNull ByteBuffer buffer, long position) throws IOException {
+        for (channel.position(position); buffer.hasRemaining(); ) {
+            if (channel.read(buffer) < 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private final ByteBuffer header          = ByteBuffer.allocateDirect(HEADER_READ_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+    private final ByteBuffer iconTitleBuffer = ByteBuffer.allocateDirect(ICON_TITLE_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+
+    private RomHeader() {
+    }
+
+    public String name() {
+        return this.ascii(0x000, 12).trim();
+    }
+
+    /**
+     * @return the gamecode, prefixed with the platform code (either {@code NTR-} or {@code TWL-})
+     */
+    public String gamecode() {
+        return (this.unitcode() == 0x02 ? "TWL-" : "NTR-") + this.ascii(0x00C, 4);
+    }
+
+    /**
+     * @return the destination/language code, i.e. the last character of the gamecode, read straight from the header so
+     * that it's available even if the gamecode is cut short by NULs
+     */
+    public char destination() {
+        return (char) (this.header.get(0x00F) & 0xFF);
+    }
+
+    public String makercode() {
+        return this.ascii(0x010, 2);
+    }
+
+    public int unitcode() {
+        return this.header.get(0x012) & 0xFF;
+    }
+
+    public int version() {
+        return this.header.get(0x01E) & 0xFF;
+    }
+
+    public long iconOffset() {
+        return this.header.getInt(0x068) & 0xFFFFFFFFL;
+    }
+
+    /**
+     * @return the number of bytes actually used by the ROM, including the DSi area (if any)
+     */
+    public long usedRomSize() {
+        if ((this.unitcode() & 0x02) != 0 && this.header.limit() >= 0x214) {
+            return this.header.getInt(0x210) & 0xFFFFFFFFL;
+        }
+        return this.header.getInt(0x080) & 0xFFFFFFFFL;
+    }
+
+    /**
+     * @return a read-only view of the header
+     */
+    public ByteBuffer header() {
+        return this.header.asReadOnlyBuffer().order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    /**
+     * @return a read-only view of the icon/title block, which is empty if the ROM doesn't have one
+     */
+    public ByteBuffer iconTitle() {
+        return this.iconTitleBuffer.asReadOnlyBuffer().order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    public boolean hasIconTitle() {
+        return this.iconTitleBuffer.limit() > 0;
+    }
+
+    public int iconVersion() {
+        return this.iconTitleBuffer.limit() >= 2 ? this.iconTitleBuffer.getShort(0) & 0xFFFF : 0;
+    }
+
+    public RomIcon icon() {
+        return new RomIcon(this.iconTitle());
+    }
+
+    public Main2.Title title(@NonNull Main2.TitleLanguage language) {
+        return Main2.readTitle(this.iconTitleBuffer, 0, language, new char[0x100 >> 1]);
+    }
+
+    private String ascii(int offset, int length) {
+        byte[] bytes = new byte[length];
+        for (int i = 0; i < length; i++) {
+            bytes[i] = this.header.get(offset + i);
+        }
+        int end = length;
+        while (end > 0 && bytes[end - 1] == 0) {
+            end--;
+        }
+        return new String(bytes, 0, end, StandardCharsets.US_ASCII);
+    }
+}
@@ -0,0 +1,195 @@
+/*
+ * Adapted from the Wizardry License
+ *
+ * Copyright (c) 2019-2019 DaPorkchop_ and contributors
+ *
+ * Permission is hereby granted to any persons and/or organizations using this software to copy, modify, merge, publish, and distribute it. Said persons and/or organizations are not allowed to use the software or any derivatives of the work for commercial use or any other means to generate income, nor are they allowed to claim this software as their own.
+ *
+ * The persons and/or organizations are also disallowed from sub-licensing and/or trademarking this software without explicit permission from DaPorkchop_.
+ *
+ * Any persons and/or organizations using this software must disclose their source code and have it publicly available, include this license, provide sufficient credit to the original authors of the project (IE: DaPorkchop_), as well as provide a link to the original project.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON INFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ */
+
+package net.daporkchop.romrenamer;
+
+import lombok.NonNull;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Determines the part of a ROM file which is actually used, so that trimmed and untrimmed dumps of the same ROM can
+ * be hashed identically.
+ * <p>
+ * Everything after the used ROM area (as given in the header) is expected to be {@code 0xFF} padding, optionally
+ * preceded by the 0x88 byte RSA signature used for download play. If anything else is found there, the file isn't a
+ * plain padded ROM and must be hashed as a whole.
+ *
+ * @author DaPorkchop_
+ */
+public final class RomPadding {
+    public static final int SIGNATURE_SIZE = 0x88;
+    public static final int SAMPLE_COUNT   = 16;
+    public static final int SAMPLE_SIZE    = 4096;
+
+    private static final ThreadLocal<ByteBuffer> BUFFER_CACHE = ThreadLocal.withInitial(() -> ByteBuffer.allocateDirect(RomHasher.BLOCK_SIZE));
+
+    /**
+     * Gets the length of the canonical part of a ROM.
+     *
+     * @return the number of bytes at the start of the file which should be hashed, or {@code -1} if the data after the
+     * used ROM area isn't padding
+     */
+    public static long canonicalLength(@NonNull FileChannel channel, @NonNull RomHeader header, @NonNull Check check) throws IOException {
+        long size = channel.size();
+        long used = header.usedRomSize();
+        if (used <= 0L || used > size) {
+            return -1L;
+        }
+
+        long end = used;
+        if (size - used >= SIGNATURE_SIZE && isSignature(channel, used)) {
+            end += SIGNATURE_SIZE;
+        }
+        return check.isPadding(channel, end, size) ? used : -1L;
+    }
+
+    private static boolean isSignature(@NonNull FileChannel channel, long position) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(2);
+        return read(channel, buffer, position) && buffer.get(0) == 'a' && buffer.get(1) == 'c';
+    }
+
+    private static boolean read(@NonNull FileChannel channel, @NonNull ByteBuffer buffer, long position) throws IOException {
+        for (int start = buffer.position(); buffer.hasRemaining(); ) {
+            if (channel.read(buffer, position + buffer.position() - start) < 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Checks whether the given byte range of a file consists entirely of {@code 0xFF}.
+     */
+    private static boolean isFF(@NonNull FileChannel channel, long from, long to) throws IOException {
+        ByteBuffer buffer = BUFFER_CACHE.get();
+        for (long pos = from; pos < to; ) {
+            buffer.clear().limit((int) Math.min(buffer.capacity(), to - pos));
+            if (!read(channel, buffer, pos)) {
+                return false;
+            }
+            int length = buffer.position();
+            pos += length;
+
+            //compare 8 bytes at a time
+            int i = 0;
+            for (; i + 8 <= length; i += 8) {
+                if (buffer.getLong(i) != -1L) {
+                    return false;
+                }
+            }
+            for (; i < length; i++) {
+                if (buffer.get(i) != (byte) 0xFF) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Checks the padding of a ROM whose contents are only available as a sequence of blocks, e.g. while it's being
+     * decompressed.
+     */
+    public static final class Tracker {
+        private final long used;
+        private long    paddingStart = -1L;
+        private boolean valid        = true;
+
+        /**
+         * @param used the size of the used ROM area, as given by the header
+         */
+        public Tracker(long used) {
+            this.used = used;
+        }
+
+        /**
+         * Checks the part of the given block that comes after the used ROM area. Blocks must be given in order.
+         *
+         * @param offset the offset of the block in the ROM
+         */
+        public void update(@NonNull ByteBuffer block, long offset) {
+            int start = (int) Math.max(this.used - offset, 0L);
+            for (int i = block.position() + start, end = block.limit(); i < end && this.valid; i++) {
+                long pos = offset + i - block.position();
+                if (this.paddingStart < 0L) {
+                    //decide whether there's a signature based on its magic number
+                    boolean signature = block.get(i) == 'a' && (i + 1 >= end || block.get(i + 1) == 'c');
+                    this.paddingStart = signature ? this.used + SIGNATURE_SIZE : this.used;
+                }
+                if (pos >= this.paddingStart && block.get(i) != (byte) 0xFF) {
+                    this.valid = false;
+                }
+            }
+        }
+
+        /**
+         * @param size the total size of the ROM
+         * @return the number of bytes at the start of the ROM which should be hashed, or {@code -1} if the data after the
+         * used ROM area isn't padding
+         */
+        public long canonicalLength(long size) {
+            return this.valid && this.used > 0L && this.used <= size ? this.used : -1L;
+        }
+    }
+
+    /**
+     * The ways that the padding may be checked.
+     */
+    public enum Check {
+        /**
+         * The padding isn't checked at all.
+         */
+        NONE {
+            @Override
+            public boolean isPadding(@NonNull FileChannel channel, long from, long to) {
+                return true;
+            }
+        },
+        /**
+         * A few evenly spaced blocks and the end of the padding are checked.
+         */
+        SAMPLE {
+            @Override
+            public boolean isPadding(@NonNull FileChannel channel, long from, long to) throws IOException {
+                long length = to - from;
+                if (length <= (long) SAMPLE_COUNT * SAMPLE_SIZE) {
+                    return isFF(channel, from, to);
+                }
+                long step = (length - SAMPLE_SIZE) / (SAMPLE_COUNT - 1);
+                for (int i = 0; i < SAMPLE_COUNT; i++) {
+                    long pos = from + i * step;
+                    if (!isFF(channel, pos, Math.min(pos + SAMPLE_SIZE, to))) {
+                        return false;
+                    }
+                }
+                return isFF(channel, to - SAMPLE_SIZE, to);
+            }
+        },
+        /**
+         * The whole padding is checked.
+         */
+        FULL {
+            @Override
+            public boolean isPadding(@NonNull FileChannel channel, long from, long to) throws IOException {
+                return isFF(channel, from, to);
+            }
+        };
+
+        public abstract boolean isPadding(@NonNull FileChannel channel, long from, long to) throws IOException;
+    }
+}
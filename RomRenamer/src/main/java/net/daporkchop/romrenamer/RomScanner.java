@@ -0,0 +1,459 @@
+/*
+ * Adapted from the Wizardry License
+ *
+ * Copyright (c) 2019-2019 DaPorkchop_ and contributors
+ *
+ * Permission is hereby granted to any persons and/or organizations using this software to copy, modify, merge, publish, and distribute it. Said persons and/or organizations are not allowed to use the software or any derivatives of the work for commercial use or any other means to generate income, nor are they allowed to claim this software as their own.
+ *
+ * The persons and/or organizations are also disallowed from sub-licensing and/or trademarking this software without explicit permission from DaPorkchop_.
+ *
+ * Any persons and/or organizations using this software must disclose their source code and have it publicly available, include this license, provide sufficient credit to the original authors of the project (IE: DaPorkchop_), as well as provide a link to the original project.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON INFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ */
+
+package net.daporkchop.romrenamer;
+
+import lombok.AccessLevel;
+import lombok.Getter;
+import lombok.NonNull;
+import lombok.experimental.Accessors;
+import net.daporkchop.common.io.IOScheduler;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Reads every ROM exactly once and publishes the results to any number of {@link Listener}s, so that enabling more
+ * features doesn't mean more passes over the library.
+ * <p>
+ * For every ROM (either a plain file or an entry in a zip archive), the header and icon/title block (unless disabled
+ * with {@link Builder#headerOnly()}) are read into a pooled buffer. If hashing is enabled, the rest of the ROM is
+ * streamed through the hashers in the same pass, unless the digests are already in the {@link HashCache}.
+ *
+ * @author DaPorkchop_
+ */
+public final class RomScanner {
+    private final List<Listener>        listeners;
+    private final Filter                filter;
+    private final RomHasher.Algorithm[] algorithms;
+    private final boolean               canonical;
+    private final boolean               headerOnly;
+    private final RomPadding.Check      paddingCheck;
+    private final HashCache             hashCache;
+    private final Stager                stager;
+    private final IngestTelemetry       telemetry;
+
+    /**
+     * Buffers for the header and icon/title block of ROMs which have been read, but not yet published.
+     */
+    private final Queue<ByteBuffer[]> bufferPool = new ConcurrentLinkedQueue<>();
+
+    private RomScanner(@NonNull Builder builder) {
+        this.listeners = new ArrayList<>(builder.listeners);
+        this.filter = builder.filter;
+        this.algorithms = builder.algorithms;
+        this.canonical = builder.canonical;
+        this.headerOnly = builder.headerOnly;
+        this.paddingCheck = builder.paddingCheck;
+        this.hashCache = builder.hashCache;
+        this.stager = builder.stager;
+        this.telemetry = builder.telemetry;
+    }
+
+    /**
+     * Scans all of the given files, reading them on the scheduler's lanes and publishing the results on its CPU pool.
+     */
+    public void scan(@NonNull Collection<Path> paths, @NonNull IOScheduler scheduler) {
+        //digesting is done on RomHasher's own pool, so the lanes only ever wait for the disk
+        scheduler.forEach(paths, this::read, results -> results.forEach(this::publish));
+    }
+
+    /**
+     * Scans a single file on the current thread.
+     */
+    public void scan(@NonNull Path path) throws IOException {
+        this.read(path).forEach(this::publish);
+    }
+
+    private List<Result> read(@NonNull Path path) throws IOException {
+        if (path.getFileName().toString().toLowerCase().endsWith(".zip")) {
+            return this.readArchive(path);
+        }
+
+        long time = System.nanoTime();
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            time = this.time(path, IngestTelemetry.Phase.OPEN, time);
+            long size = channel.size();
+            RomHeader header = RomHeader.read(channel, !this.headerOnly);
+            time = this.time(path, IngestTelemetry.Phase.HEADER, time);
+            if (this.rejected(path, size)) {
+                return Collections.emptyList();
+            }
+
+            Map<RomHasher.Algorithm, byte[]> digests = null;
+            Path staged = null;
+            if (this.algorithms.length != 0) {
+                HashCache.FileIdentity identity = this.hashCache != null ? HashCache.FileIdentity.of(path) : null;
+                digests = this.hashCache != null ? this.hashCache.get(path, identity, this.algorithms) : null;
+                if (digests == null) {
+                    time = System.nanoTime();
+                    long length = size;
+                    if (this.canonical) {
+                        long canonicalLength = RomPadding.canonicalLength(channel, header, this.paddingCheck);
+                        if (canonicalLength < 0L) {
+                            System.err.printf("Alert: rom \"%s\" has non-padding data after the used rom area, hashing the entire file\n", path);
+                        } else {
+                            length = canonicalLength;
+                        }
+                    }
+                    staged = this.stager != null ? this.stager.stage(path) : null;
+                    if (staged != null) {
+                        digests = this.hashAndCopy(channel, length, staged);
+                    } else {
+                        digests = RomHasher.hash(channel, 0L, length, this.algorithms);
+                    }
+                    this.time(path, IngestTelemetry.Phase.HASH, time);
+                    this.hashed(length);
+                    if (this.hashCache != null) {
+                        this.hashCache.put(path, identity, digests);
+                    }
+                }
+            }
+            return Collections.singletonList(new Result(path, path, null, size, digests, staged, this.buffers(header.header(), header.iconTitle())));
+        }
+    }
+
+    private List<Result> readArchive(@NonNull Path path) throws IOException {
+        long time = System.nanoTime();
+        try (ZipArchive archive = ZipArchive.open(path)) {
+            this.time(path, IngestTelemetry.Phase.OPEN, time);
+            HashCache.FileIdentity identity = this.hashCache != null ? HashCache.FileIdentity.of(path) : null;
+            List<Result> results = new ArrayList<>();
+            for (ZipArchive.Entry entry : archive.entries()) {
+                Path entryPath = archive.entryPath(entry);
+                if (!entry.name().toLowerCase().endsWith(".nds") || this.rejected(entryPath, entry.size())) {
+                    continue;
+                }
+
+                Map<RomHasher.Algorithm, byte[]> digests = this.algorithms.length != 0 && this.hashCache != null
+                        ? this.hashCache.get(entryPath, identity, this.algorithms)
+                        : null;
+                RomStreamScanner scanner;
+                time = System.nanoTime();
+                if (digests == null && this.algorithms.length != 0) {
+                    //the header is read as part of the stream, so it's counted towards hashing
+                    archive.read(entry, scanner = new RomStreamScanner(this.canonical, !this.headerOnly, this.algorithms));
+                    digests = scanner.digests();
+                    if (digests == null) {
+                        System.err.printf("Alert: rom \"%s\" has non-padding data after the used rom area, hashing the entire file\n", entryPath);
+                        this.hashed(entry.size());
+                        archive.read(entry, scanner = new RomStreamScanner(false, !this.headerOnly, this.algorithms));
+                        digests = scanner.digests();
+                    }
+                    this.time(entryPath, IngestTelemetry.Phase.HASH, time);
+                    this.hashed(entry.size());
+                    if (!this.canonical && digests.containsKey(RomHasher.Algorithm.CRC32)
+                        && ByteBuffer.wrap(digests.get(RomHasher.Algorithm.CRC32)).getInt() != entry.crc32()) {
+                        this.skip(entryPath, "doesn't match the CRC32 stored in the archive!");
+                        continue;
+                    }
+                    if (this.hashCache != null) {
+                        this.hashCache.put(entryPath, identity, digests);
+                    }
+                } else {
+                    archive.read(entry, scanner = new RomStreamScanner(this.canonical, !this.headerOnly));
+                    this.time(entryPath, IngestTelemetry.Phase.HEADER, time);
+                }
+
+                RomHeader header = scanner.header();
+                results.add(new Result(entryPath, path, entry, entry.size(), digests, null, this.buffers(header.header(), header.iconTitle())));
+            }
+            return results;
+        }
+    }
+
+    /**
+     * Hashes the first {@code length} bytes of a file while copying the whole file to the given staging file.
+     */
+    private Map<RomHasher.Algorithm, byte[]> hashAndCopy(@NonNull FileChannel channel, long length, @NonNull Path staged) throws IOException {
+        try (FileChannel copy = FileChannel.open(staged, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            Map<RomHasher.Algorithm, byte[]> digests = RomHasher.hash(channel, 0L, length, copy, this.algorithms);
+            //the padding isn't hashed when hashing canonically, but is still part of the file
+            for (long pos = length, size = channel.size(); pos < size; ) {
+                pos += channel.transferTo(pos, size - pos, copy);
+            }
+            return digests;
+        } catch (IOException | RuntimeException e) {
+            Files.deleteIfExists(staged);
+            throw e;
+        }
+    }
+
+    private long time(@NonNull Path path, @NonNull IngestTelemetry.Phase phase, long start) {
+        return this.telemetry != null ? this.telemetry.time(path, phase, start) : System.nanoTime();
+    }
+
+    private void hashed(long bytes) {
+        if (this.telemetry != null) {
+            this.telemetry.hashed(bytes);
+        }
+    }
+
+    private boolean rejected(@NonNull Path path, long size) {
+        String reason = this.filter != null ? this.filter.reject(path, size) : null;
+        if (reason != null) {
+            this.skip(path, reason);
+            return true;
+        }
+        return false;
+    }
+
+    private void skip(@NonNull Path path, @NonNull String reason) {
+        for (Listener listener : this.listeners) {
+            listener.skipped(path, reason);
+        }
+    }
+
+    /**
+     * Copies the given header and icon/title block into pooled buffers.
+     */
+    private ByteBuffer[] buffers(@NonNull ByteBuffer header, @NonNull ByteBuffer iconTitle) {
+        ByteBuffer[] buffers = this.bufferPool.poll();
+        if (buffers == null) {
+            buffers = new ByteBuffer[]{
+                    ByteBuffer.allocate(RomHeader.HEADER_READ_SIZE).order(ByteOrder.LITTLE_ENDIAN),
+                    ByteBuffer.allocate(RomHeader.ICON_TITLE_SIZE).order(ByteOrder.LITTLE_ENDIAN)
+            };
+        }
+        buffers[0].clear();
+        buffers[0].put(header).flip();
+        buffers[1].clear();
+        buffers[1].put(iconTitle).flip();
+        return buffers;
+    }
+
+    private void publish(@NonNull Result result) {
+        try {
+            result.header = RomHeader.load(result.buffers[0], result.buffers[1]);
+            for (Listener listener : this.listeners) {
+                listener.accept(result);
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        } finally {
+            result.header = null;
+            this.bufferPool.add(result.buffers);
+        }
+    }
+
+    /**
+     * A single scanned ROM.
+     * <p>
+     * Results are only valid while they're being published, listeners must copy anything that they need to keep.
+     */
+    @Getter
+    @Accessors(fluent = true)
+    public static final class Result {
+        /**
+         * The path of the ROM. For ROMs in an archive, this is the path of the archive followed by {@code !} and the
+         * entry's name.
+         */
+        @NonNull
+        private final Path                             path;
+        /**
+         * The file which contains the ROM: either the ROM itself or the archive.
+         */
+        @NonNull
+        private final Path                             file;
+        /**
+         * The archive entry, or {@code null} if the ROM isn't in an archive.
+         */
+        private final ZipArchive.Entry                 entry;
+        private final long                             size;
+        /**
+         * The ROM's digests, or {@code null} if hashing is disabled.
+         */
+        private final Map<RomHasher.Algorithm, byte[]> digests;
+        /**
+         * A copy of the ROM which was made while hashing it (see {@link Stager}), or {@code null}. The listener which
+         * uses it is responsible for moving or deleting it.
+         */
+        private final Path                             staged;
+
+        /**
+         * The ROM's header, as a thread-owned instance (see {@link RomHeader}).
+         */
+        private RomHeader header;
+
+        @Getter(AccessLevel.NONE)
+        private final ByteBuffer[] buffers;
+
+        private Result(@NonNull Path path, @NonNull Path file, ZipArchive.Entry entry, long size, Map<RomHasher.Algorithm, byte[]> digests, Path staged, @NonNull ByteBuffer[] buffers) {
+            this.path = path;
+            this.file = file;
+            this.entry = entry;
+            this.size = size;
+            this.digests = digests;
+            this.staged = staged;
+            this.buffers = buffers;
+        }
+
+        /**
+         * Reads the ROM's contents again, e.g. to copy it somewhere else.
+         */
+        public void read(@NonNull ZipArchive.BlockConsumer consumer) throws IOException {
+            if (this.entry != null) {
+                try (ZipArchive archive = ZipArchive.open(this.file)) {
+                    archive.read(this.entry, consumer);
+                }
+                return;
+            }
+
+            try (FileChannel channel = FileChannel.open(this.file, StandardOpenOption.READ)) {
+                ByteBuffer buffer = ByteBuffer.allocate(RomHasher.BLOCK_SIZE);
+                for (long pos = 0L; pos < this.size; ) {
+                    buffer.clear().limit((int) Math.min(buffer.capacity(), this.size - pos));
+                    while (buffer.hasRemaining()) {
+                        if (channel.read(buffer, pos + buffer.position()) < 0) {
+                            throw new EOFException();
+                        }
+                    }
+                    buffer.flip();
+                    int length = buffer.remaining();
+                    if (!consumer.accept(buffer, pos)) {
+                        return;
+                    }
+                    pos += length;
+                }
+            }
+        }
+    }
+
+    /**
+     * Receives the results of a {@link RomScanner}. Results may be published from multiple threads at once.
+     */
+    public interface Listener {
+        void accept(@NonNull Result result) throws IOException;
+
+        /**
+         * Called when a ROM was skipped without being published.
+         *
+         * @param reason a description of why the ROM was skipped, e.g. {@code is not a power of 2!}
+         */
+        default void skipped(@NonNull Path path, @NonNull String reason) {
+        }
+    }
+
+    /**
+     * Decides whether a ROM should be scanned before anything other than its header is read.
+     */
+    @FunctionalInterface
+    public interface Filter {
+        /**
+         * @return the reason why the ROM should be skipped, or {@code null} if it should be scanned
+         */
+        String reject(@NonNull Path path, long size);
+    }
+
+    /**
+     * Provides files that plain ROMs are copied to while they're being hashed.
+     */
+    @FunctionalInterface
+    public interface Stager {
+        /**
+         * @return the file to copy the ROM to, or {@code null} if it shouldn't be copied
+         */
+        Path stage(@NonNull Path path) throws IOException;
+    }
+
+    /**
+     * Configures a {@link RomScanner}. By default, ROMs aren't hashed.
+     */
+    public static final class Builder {
+        private final List<Listener> listeners = new ArrayList<>();
+
+        private Filter                filter;
+        private RomHasher.Algorithm[] algorithms   = new RomHasher.Algorithm[0];
+        private boolean               canonical;
+        private boolean               headerOnly;
+        private RomPadding.Check      paddingCheck = RomPadding.Check.FULL;
+        private HashCache             hashCache;
+        private Stager                stager;
+        private IngestTelemetry       telemetry;
+
+        public Builder listener(@NonNull Listener listener) {
+            this.listeners.add(listener);
+            return this;
+        }
+
+        public Builder filter(@NonNull Filter filter) {
+            this.filter = filter;
+            return this;
+        }
+
+        /**
+         * Hashes every ROM with the given algorithms.
+         *
+         * @param hashCache the cache to use for digests, may be {@code null}
+         */
+        public Builder hash(HashCache hashCache, @NonNull RomHasher.Algorithm... algorithms) {
+            this.hashCache = hashCache;
+            this.algorithms = algorithms.clone();
+            return this;
+        }
+
+        /**
+         * Only hashes the used part of every ROM, see {@link RomPadding}.
+         */
+        public Builder canonical(@NonNull RomPadding.Check paddingCheck) {
+            this.canonical = true;
+            this.paddingCheck = paddingCheck;
+            return this;
+        }
+
+        /**
+         * Only reads the header of every ROM, skipping the icon/title block. Published headers won't have an
+         * icon/title block.
+         */
+        public Builder headerOnly() {
+            this.headerOnly = true;
+            return this;
+        }
+
+        /**
+         * Copies plain ROMs to the files given by the stager while they're being hashed, so that they only have to be
+         * read once. ROMs whose digests are cached are not copied.
+         */
+        public Builder stage(@NonNull Stager stager) {
+            this.stager = stager;
+            return this;
+        }
+
+        /**
+         * Records the time spent opening, reading and hashing every ROM.
+         */
+        public Builder telemetry(@NonNull IngestTelemetry telemetry) {
+            this.telemetry = telemetry;
+            return this;
+        }
+
+        public RomScanner build() {
+            return new RomScanner(this);
+        }
+    }
+}
@@ -0,0 +1,136 @@
+/*
+ * Adapted from the Wizardry License
+ *
+ * Copyright (c) 2019-2019 DaPorkchop_ and contributors
+ *
+ * Permission is hereby granted to any persons and/or organizations using this software to copy, modify, merge, publish, and distribute it. Said persons and/or organizations are not allowed to use the software or any derivatives of the work for commercial use or any other means to generate income, nor are they allowed to claim this software as their own.
+ *
+ * The persons and/or organizations are also disallowed from sub-licensing and/or trademarking this software without explicit permission from DaPorkchop_.
+ *
+ * Any persons and/or organizations using this software must disclose their source code and have it publicly available, include this license, provide sufficient credit to the original authors of the project (IE: DaPorkchop_), as well as provide a link to the original project.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON INFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ */
+
+package net.daporkchop.romrenamer;
+
+import lombok.Getter;
+import lombok.NonNull;
+import lombok.experimental.Accessors;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Map;
+
+/**
+ * Extracts the header and icon/title block of a ROM and hashes it in a single pass over its contents, which are
+ * supplied as a sequence of blocks.
+ *
+ * @author DaPorkchop_
+ */
+@Accessors(fluent = true)
+public final class RomStreamScanner implements ZipArchive.BlockConsumer {
+    private final ByteBuffer header    = ByteBuffer.allocate(RomHeader.HEADER_READ_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+    private final ByteBuffer iconTitle = ByteBuffer.allocate(RomHeader.ICON_TITLE_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+
+    private final RomHasher.Session  session;
+    private final boolean            canonical;
+    private final boolean            readIconTitle;
+    private       RomPadding.Tracker tracker;
+
+    private long iconOffset = -1L;
+    private long hashEnd    = Long.MAX_VALUE;
+    @Getter
+    private long size       = 0L;
+
+    /**
+     * @param algorithms the algorithms to hash with. If empty, the ROM isn't hashed and reading stops as soon as the
+     *                   icon/title block has been read
+     * @param canonical  whether to only hash the used part of the ROM, see {@link RomPadding}
+     */
+    public RomStreamScanner(boolean canonical, @NonNull RomHasher.Algorithm... algorithms) {
+        this(canonical, true, algorithms);
+    }
+
+    /**
+     * @param algorithms    the algorithms to hash with. If empty, the ROM isn't hashed and reading stops as soon as
+     *                      everything that's needed has been read
+     * @param canonical     whether to only hash the used part of the ROM, see {@link RomPadding}
+     * @param readIconTitle whether to extract the icon/title block. If {@code false}, the header has no icon/title block
+     */
+    public RomStreamScanner(boolean canonical, boolean readIconTitle, @NonNull RomHasher.Algorithm... algorithms) {
+        this.session = algorithms.length == 0 ? null : RomHasher.session(algorithms);
+        this.canonical = canonical;
+        this.readIconTitle = readIconTitle;
+    }
+
+    @Override
+    public boolean accept(@NonNull ByteBuffer block, long offset) throws IOException {
+        int length = block.remaining();
+        this.size = offset + length;
+
+        if (this.header.hasRemaining()) {
+            copy(block, offset, this.header, 0L);
+            if (!this.header.hasRemaining()) {
+                //the header is complete, we now know where everything else is
+                RomHeader header = RomHeader.load((ByteBuffer) this.header.duplicate().flip(), ByteBuffer.allocate(0));
+                this.iconOffset = this.readIconTitle ? header.iconOffset() : 0L;
+                if (this.canonical) {
+                    this.hashEnd = header.usedRomSize();
+                    this.tracker = new RomPadding.Tracker(header.usedRomSize());
+                }
+            }
+        }
+        if (this.iconOffset > 0L && this.iconTitle.hasRemaining()) {
+            copy(block, offset, this.iconTitle, this.iconOffset);
+        }
+
+        if (this.session == null) {
+            return this.header.hasRemaining() || (this.iconOffset > 0L && this.iconTitle.hasRemaining());
+        }
+
+        if (offset < this.hashEnd) {
+            ByteBuffer hashed = block.duplicate();
+            hashed.limit((int) Math.min(block.limit(), block.position() + this.hashEnd - offset));
+            this.session.update(hashed);
+        }
+        if (this.tracker != null) {
+            this.tracker.update(block, offset);
+        }
+        return true;
+    }
+
+    /**
+     * @return the header, as a thread-owned instance (see {@link RomHeader})
+     */
+    public RomHeader header() throws IOException {
+        return RomHeader.load((ByteBuffer) this.header.duplicate().flip(), (ByteBuffer) this.iconTitle.duplicate().flip());
+    }
+
+    /**
+     * @return the digests, or {@code null} if the ROM is not canonically hashable and has to be hashed again as a whole
+     */
+    public Map<RomHasher.Algorithm, byte[]> digests() {
+        if (this.tracker != null && this.tracker.canonicalLength(this.size) < 0L) {
+            return null;
+        }
+        return this.session.finish();
+    }
+
+    /**
+     * Copies the part of a block which overlaps with the region covered by the given buffer.
+     *
+     * @param regionOffset the offset in the ROM that the start of the buffer corresponds to
+     */
+    private static void copy(@NonNull ByteBuffer block, long blockOffset, @NonNull ByteBuffer dst, long regionOffset) {
+        long from = Math.max(blockOffset, regionOffset + dst.position());
+        long to = Math.min(blockOffset + block.remaining(), regionOffset + dst.limit());
+        if (from < to) {
+            ByteBuffer src = block.duplicate();
+            src.position(block.position() + (int) (from - blockOffset)).limit(block.position() + (int) (to - blockOffset));
+            dst.put(src);
+        }
+    }
+}
@@ -0,0 +1,201 @@
+/*
+ * Adapted from the Wizardry License
+ *
+ * Copyright (c) 2019-2019 DaPorkchop_ and contributors
+ *
+ * Permission is hereby granted to any persons and/or organizations using this software to copy, modify, merge, publish, and distribute it. Said persons and/or organizations are not allowed to use the software or any derivatives of the work for commercial use or any other means to generate income, nor are they allowed to claim this software as their own.
+ *
+ * The persons and/or organizations are also disallowed from sub-licensing and/or trademarking this software without explicit permission from DaPorkchop_.
+ *
+ * Any persons and/or organizations using this software must disclose their source code and have it publicly available, include this license, provide sufficient credit to the original authors of the project (IE: DaPorkchop_), as well as provide a link to the original project.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON INFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ */
+
+package net.daporkchop.romrenamer;
+
+import lombok.AllArgsConstructor;
+import lombok.NonNull;
+import net.daporkchop.common.io.IOScheduler;
+import net.daporkchop.common.io.RateLimiter;
+import net.daporkchop.lib.common.util.PorkUtil;
+import net.daporkchop.lib.encoding.Hexadecimal;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Verifies that every ROM in the repository written by {@link Main2} still matches the hash in its name, and reports
+ * mismatches and dangling links.
+ * <p>
+ * Every file that has been verified is appended to {@link #PROGRESS}, so an interrupted scrub continues where it left
+ * off when it's restarted. The progress file is deleted once a scrub has completed.
+ * <p>
+ * The settings of {@link Main2} (in particular {@code romrenamer.canonicalHash}) must be the same as the ones the
+ * repository was written with.
+ *
+ * @author DaPorkchop_
+ */
+public class Scrub {
+    public static final File REPO     = new File(Main2.DST, "repo");
+    public static final File PROGRESS = new File(Main2.DST, "scrub.progress");
+
+    /**
+     * The size of the regions of a ROM which are mapped at once.
+     */
+    public static final long WINDOW_SIZE = 1L << 26;
+
+    public static final IOScheduler IO_SCHEDULER = IOScheduler.fromProperties("romrenamer.scrub");
+    public static final RateLimiter RATE_LIMITER = RateLimiter.fromProperties("romrenamer.scrub");
+
+    public static void main(String... args) throws IOException {
+        Path repo = REPO.toPath();
+        Set<String> done = PROGRESS.exists()
+                ? new HashSet<>(Files.readAllLines(PROGRESS.toPath(), StandardCharsets.UTF_8))
+                : new HashSet<>();
+
+        List<Path> paths;
+        try (Stream<Path> stream = Files.walk(repo)) {
+            paths = stream.filter(path -> path.toString().endsWith(".nds") || path.toString().endsWith(".zip"))
+                    .filter(path -> !done.contains(repo.relativize(path).toString()))
+                    .collect(Collectors.toList());
+        }
+        System.out.printf("Scrubbing %d files (%d already verified)\n", paths.size(), done.size());
+
+        //links whose target is gone can't be scheduled, as their device is unknown
+        List<Path> existing = new ArrayList<>(paths.size());
+        int dangling = 0;
+        for (Path path : paths) {
+            if (Files.exists(path)) {
+                existing.add(path);
+            } else {
+                System.err.printf("Alert: \"%s\" is a dangling link to \"%s\"\n", path, Files.isSymbolicLink(path) ? Files.readSymbolicLink(path) : null);
+                dangling++;
+            }
+        }
+
+        AtomicLong mismatches = new AtomicLong();
+        try (BufferedWriter progress = Files.newBufferedWriter(PROGRESS.toPath(), StandardCharsets.UTF_8, StandardOpenOption.CREATE, StandardOpenOption.APPEND)) {
+            IO_SCHEDULER.forEach(existing, Scrub::verify, result -> {
+                if (!result.valid) {
+                    System.err.printf("Alert: \"%s\" doesn't match its hash! (%s)\n", result.path, result.message);
+                    mismatches.incrementAndGet();
+                }
+                try {
+                    synchronized (progress) {
+                        progress.write(repo.relativize(result.path).toString());
+                        progress.newLine();
+                        progress.flush();
+                    }
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+            });
+        }
+
+        Files.delete(PROGRESS.toPath());
+        System.out.printf("Done! %d mismatches, %d dangling links\n", mismatches.get(), dangling);
+    }
+
+    private static Result verify(@NonNull Path path) throws IOException {
+        String name = path.getFileName().toString();
+        String expected = name.substring(0, name.lastIndexOf('.'));
+
+        if (name.endsWith(".zip")) {
+            //the link doesn't say which entry it refers to, so any entry with the right hash will do
+            try (ZipArchive archive = ZipArchive.open(path.toRealPath())) {
+                for (ZipArchive.Entry entry : archive.entries()) {
+                    if (entry.name().toLowerCase().endsWith(".nds") && expected.equals(hashEntry(archive, entry))) {
+                        return new Result(path, true, null);
+                    }
+                }
+            }
+            return new Result(path, false, "no entry in the archive has this hash");
+        }
+
+        String actual;
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            actual = hashFile(channel);
+        }
+        return new Result(path, expected.equals(actual), actual);
+    }
+
+    /**
+     * Hashes a ROM the same way as {@link Main2} does, reading it through a sequence of mappings.
+     */
+    private static String hashFile(@NonNull FileChannel channel) throws IOException {
+        long size = channel.size();
+        long length = size;
+        if (Main2.CANONICAL_HASH) {
+            long canonicalLength = RomPadding.canonicalLength(channel, RomHeader.read(channel), Main2.PADDING_CHECK);
+            if (canonicalLength >= 0L) {
+                length = canonicalLength;
+            }
+            if (Main2.PADDING_CHECK == RomPadding.Check.FULL) {
+                //the padding has already been read
+                RATE_LIMITER.acquire(size - length);
+            }
+        }
+
+        RomHasher.Session session = RomHasher.session(RomHasher.Algorithm.SHA256);
+        for (long window = 0L; window < length; window += WINDOW_SIZE) {
+            int windowSize = (int) Math.min(WINDOW_SIZE, length - window);
+            MappedByteBuffer map = channel.map(FileChannel.MapMode.READ_ONLY, window, windowSize);
+            try {
+                for (int pos = 0; pos < windowSize; pos += RomHasher.BLOCK_SIZE) {
+                    ByteBuffer block = map.duplicate();
+                    block.position(pos).limit(Math.min(pos + RomHasher.BLOCK_SIZE, windowSize));
+                    RATE_LIMITER.acquire(block.remaining());
+                    session.update(block);
+                }
+            } finally {
+                PorkUtil.release(map);
+            }
+        }
+        return Hexadecimal.encode(session.finish().get(RomHasher.Algorithm.SHA256));
+    }
+
+    private static String hashEntry(@NonNull ZipArchive archive, @NonNull ZipArchive.Entry entry) throws IOException {
+        RomStreamScanner scanner = new RomStreamScanner(Main2.CANONICAL_HASH, RomHasher.Algorithm.SHA256);
+        archive.read(entry, limited(scanner));
+        Map<RomHasher.Algorithm, byte[]> digests = scanner.digests();
+        if (digests == null) {
+            scanner = new RomStreamScanner(false, RomHasher.Algorithm.SHA256);
+            archive.read(entry, limited(scanner));
+            digests = scanner.digests();
+        }
+        return Hexadecimal.encode(digests.get(RomHasher.Algorithm.SHA256));
+    }
+
+    private static ZipArchive.BlockConsumer limited(@NonNull ZipArchive.BlockConsumer consumer) {
+        return (block, offset) -> {
+            RATE_LIMITER.acquire(block.remaining());
+            return consumer.accept(block, offset);
+        };
+    }
+
+    @AllArgsConstructor
+    private static final class Result {
+        @NonNull
+        private final Path    path;
+        private final boolean valid;
+        private final String  message;
+    }
+}
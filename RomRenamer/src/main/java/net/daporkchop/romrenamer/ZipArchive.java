@@ -0,0 +1,311 @@
+/*
+ * Adapted from the Wizardry License
+ *
+ * Copyright (c) 2019-2019 DaPorkchop_ and contributors
+ *
+ * Permission is hereby granted to any persons and/or organizations using this software to copy, modify, merge, publish, and distribute it. Said persons and/or organizations are not allowed to use the software or any derivatives of the work for commercial use or any other means to generate income, nor are they allowed to claim this software as their own.
+ *
+ * The persons and/or organizations are also disallowed from sub-licensing and/or trademarking this software without explicit permission from DaPorkchop_.
+ *
+ * Any persons and/or organizations using this software must disclose their source code and have it publicly available, include this license, provide sufficient credit to the original authors of the project (IE: DaPorkchop_), as well as provide a link to the original project.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON INFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ */
+
+package net.daporkchop.romrenamer;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import lombok.NonNull;
+import lombok.experimental.Accessors;
+import net.daporkchop.lib.common.util.PorkUtil;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * A minimal read-only zip archive reader, which allows the contents of entries to be streamed block by block.
+ * <p>
+ * Only the central directory is parsed up front. Stored entries are served as slices of a read-only mapping of the
+ * archive, deflated entries are inflated straight from positional reads of the archive.
+ *
+ * @author DaPorkchop_
+ */
+@Accessors(fluent = true)
+public final class ZipArchive implements AutoCloseable {
+    private static final int SIG_LOCAL_HEADER   = 0x04034B50;
+    private static final int SIG_CENTRAL_HEADER = 0x02014B50;
+    private static final int SIG_EOCD           = 0x06054B50;
+    private static final int SIG_ZIP64_EOCD     = 0x06064B50;
+    private static final int SIG_ZIP64_LOCATOR  = 0x07064B50;
+
+    private static final int EOCD_SIZE        = 22;
+    private static final int MAX_COMMENT_SIZE = 0xFFFF;
+
+    public static final int METHOD_STORED   = 0;
+    public static final int METHOD_DEFLATED = 8;
+
+    private static final Charset CP437 = Charset.isSupported("IBM437") ? Charset.forName("IBM437") : StandardCharsets.ISO_8859_1;
+
+    public static ZipArchive open(@NonNull Path path) throws IOException {
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.READ);
+        try {
+            return new ZipArchive(path, channel);
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    @Getter
+    private final Path        path;
+    private final FileChannel channel;
+    @Getter
+    private final List<Entry> entries;
+
+    private ZipArchive(@NonNull Path path, @NonNull FileChannel channel) throws IOException {
+        this.path = path;
+        this.channel = channel;
+
+        //find the end of central directory record, which is followed by a comment of unknown length
+        long size = channel.size();
+        int tailSize = (int) Math.min(size, EOCD_SIZE + MAX_COMMENT_SIZE);
+        ByteBuffer tail = this.read(size - tailSize, tailSize);
+        int eocd = -1;
+        for (int i = tailSize - EOCD_SIZE; i >= 0; i--) {
+            if (tail.getInt(i) == SIG_EOCD) {
+                eocd = i;
+                break;
+            }
+        }
+        if (eocd < 0) {
+            throw new IOException(String.format("\"%s\" is not a zip archive!", path));
+        }
+
+        long count = tail.getShort(eocd + 10) & 0xFFFFL;
+        long cdSize = tail.getInt(eocd + 12) & 0xFFFFFFFFL;
+        long cdOffset = tail.getInt(eocd + 16) & 0xFFFFFFFFL;
+        if (eocd >= 20 && tail.getInt(eocd - 20) == SIG_ZIP64_LOCATOR) {
+            ByteBuffer zip64 = this.read(tail.getLong(eocd - 20 + 8), 56);
+            if (zip64.getInt(0) != SIG_ZIP64_EOCD) {
+                throw new IOException(String.format("\"%s\" has an invalid zip64 end of central directory record!", path));
+            }
+            count = zip64.getLong(32);
+            cdSize = zip64.getLong(40);
+            cdOffset = zip64.getLong(48);
+        }
+        if (cdSize > Integer.MAX_VALUE) {
+            throw new IOException(String.format("\"%s\" has a central directory which is too large: %d bytes", path, cdSize));
+        }
+
+        ByteBuffer cd = this.read(cdOffset, (int) cdSize);
+        List<Entry> entries = new ArrayList<>((int) Math.min(count, 1 << 16));
+        for (long i = 0L; i < count; i++) {
+            int base = cd.position();
+            if (cd.getInt(base) != SIG_CENTRAL_HEADER) {
+                throw new IOException(String.format("\"%s\" has an invalid central directory entry at offset %d!", path, cdOffset + base));
+            }
+            int flags = cd.getShort(base + 8) & 0xFFFF;
+            int method = cd.getShort(base + 10) & 0xFFFF;
+            int crc = cd.getInt(base + 16);
+            long compressedSize = cd.getInt(base + 20) & 0xFFFFFFFFL;
+            long uncompressedSize = cd.getInt(base + 24) & 0xFFFFFFFFL;
+            int nameLength = cd.getShort(base + 28) & 0xFFFF;
+            int extraLength = cd.getShort(base + 30) & 0xFFFF;
+            int commentLength = cd.getShort(base + 32) & 0xFFFF;
+            long localHeaderOffset = cd.getInt(base + 42) & 0xFFFFFFFFL;
+
+            byte[] nameBytes = new byte[nameLength];
+            cd.position(base + 46);
+            cd.get(nameBytes);
+            String name = new String(nameBytes, (flags & (1 << 11)) != 0 ? StandardCharsets.UTF_8 : CP437);
+
+            //zip64 extended information, only the fields which overflowed in the regular header are present
+            for (int extra = base + 46 + nameLength, extraEnd = extra + extraLength; extra + 4 <= extraEnd; ) {
+                int id = cd.getShort(extra) & 0xFFFF;
+                int length = cd.getShort(extra + 2) & 0xFFFF;
+                if (id == 0x0001) {
+                    int field = extra + 4;
+                    if (uncompressedSize == 0xFFFFFFFFL) {
+                        uncompressedSize = cd.getLong(field);
+                        field += 8;
+                    }
+                    if (compressedSize == 0xFFFFFFFFL) {
+                        compressedSize = cd.getLong(field);
+                        field += 8;
+                    }
+                    if (localHeaderOffset == 0xFFFFFFFFL) {
+                        localHeaderOffset = cd.getLong(field);
+                    }
+                }
+                extra += 4 + length;
+            }
+            cd.position(base + 46 + nameLength + extraLength + commentLength);
+
+            if (!name.endsWith("/")) {
+                entries.add(new Entry(name, method, (flags & 1) != 0, crc, compressedSize, uncompressedSize, localHeaderOffset));
+            }
+        }
+        this.entries = Collections.unmodifiableList(entries);
+    }
+
+    /**
+     * @return a path that uniquely identifies the given entry, for use in e.g. log messages and caches
+     */
+    public Path entryPath(@NonNull Entry entry) {
+        return Paths.get(this.path.toString() + '!', entry.name);
+    }
+
+    /**
+     * Streams the contents of an entry to the given consumer, one block at a time.
+     * <p>
+     * The blocks passed to the consumer are only valid until it returns.
+     */
+    public void read(@NonNull Entry entry, @NonNull BlockConsumer consumer) throws IOException {
+        if (entry.encrypted) {
+            throw new IOException(String.format("Entry \"%s\" in \"%s\" is encrypted!", entry.name, this.path));
+        }
+
+        ByteBuffer localHeader = this.read(entry.localHeaderOffset, 30);
+        if (localHeader.getInt(0) != SIG_LOCAL_HEADER) {
+            throw new IOException(String.format("Entry \"%s\" in \"%s\" has an invalid local header!", entry.name, this.path));
+        }
+        long dataOffset = entry.localHeaderOffset + 30L + (localHeader.getShort(26) & 0xFFFF) + (localHeader.getShort(28) & 0xFFFF);
+
+        switch (entry.method) {
+            case METHOD_STORED:
+                this.readStored(entry, dataOffset, consumer);
+                break;
+            case METHOD_DEFLATED:
+                this.readDeflated(entry, dataOffset, consumer);
+                break;
+            default:
+                throw new IOException(String.format("Entry \"%s\" in \"%s\" uses unsupported compression method %d!", entry.name, this.path, entry.method));
+        }
+    }
+
+    private void readStored(@NonNull Entry entry, long dataOffset, @NonNull BlockConsumer consumer) throws IOException {
+        MappedByteBuffer map = this.channel.map(FileChannel.MapMode.READ_ONLY, dataOffset, entry.size);
+        try {
+            for (long pos = 0L; pos < entry.size; pos += RomHasher.BLOCK_SIZE) {
+                ByteBuffer block = map.duplicate();
+                block.position((int) pos).limit((int) Math.min(pos + RomHasher.BLOCK_SIZE, entry.size));
+                if (!consumer.accept(block, pos)) {
+                    return;
+                }
+            }
+        } finally {
+            PorkUtil.release(map);
+        }
+    }
+
+    private void readDeflated(@NonNull Entry entry, long dataOffset, @NonNull BlockConsumer consumer) throws IOException {
+        Inflater inflater = new Inflater(true);
+        try {
+            byte[] in = new byte[1 << 16];
+            byte[] out = new byte[RomHasher.BLOCK_SIZE];
+            int filled = 0;
+            long inPos = dataOffset;
+            long inEnd = dataOffset + entry.compressedSize;
+            long outPos = 0L;
+            boolean paddedInput = false;
+
+            while (!inflater.finished()) {
+                if (inflater.needsInput()) {
+                    if (inPos < inEnd) {
+                        ByteBuffer buffer = ByteBuffer.wrap(in, 0, (int) Math.min(in.length, inEnd - inPos));
+                        readFully(this.channel, buffer, inPos);
+                        inflater.setInput(in, 0, buffer.position());
+                        inPos += buffer.position();
+                    } else if (!paddedInput) {
+                        //raw inflation sometimes needs an extra dummy byte after the end of the input
+                        inflater.setInput(new byte[1]);
+                        paddedInput = true;
+                    } else {
+                        throw new EOFException(String.format("Entry \"%s\" in \"%s\" is truncated!", entry.name, this.path));
+                    }
+                } else if (inflater.needsDictionary()) {
+                    throw new IOException(String.format("Entry \"%s\" in \"%s\" requires a preset dictionary!", entry.name, this.path));
+                }
+
+                filled += inflater.inflate(out, filled, out.length - filled);
+                if (filled == out.length || (inflater.finished() && filled > 0)) {
+                    if (!consumer.accept(ByteBuffer.wrap(out, 0, filled), outPos)) {
+                        return;
+                    }
+                    outPos += filled;
+                    filled = 0;
+                }
+            }
+
+            if (outPos != entry.size) {
+                throw new IOException(String.format("Entry \"%s\" in \"%s\" inflated to %d bytes, expected %d!", entry.name, this.path, outPos, entry.size));
+            }
+        } catch (DataFormatException e) {
+            throw new IOException(String.format("Entry \"%s\" in \"%s\" is corrupt!", entry.name, this.path), e);
+        } finally {
+            inflater.end();
+        }
+    }
+
+    private ByteBuffer read(long position, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length).order(ByteOrder.LITTLE_ENDIAN);
+        readFully(this.channel, buffer, position);
+        buffer.clear();
+        return buffer;
+    }
+
+    private static void readFully(@NonNull FileChannel channel, @NonNull ByteBuffer buffer, long position) throws IOException {
+        for (int start = buffer.position(); buffer.hasRemaining(); ) {
+            if (channel.read(buffer, position + buffer.position() - start) < 0) {
+                throw new EOFException();
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        this.channel.close();
+    }
+
+    @AllArgsConstructor
+    @Getter
+    @Accessors(fluent = true)
+    public static final class Entry {
+        @NonNull
+        private final String  name;
+        private final int     method;
+        private final boolean encrypted;
+        private final int     crc32;
+        private final long    compressedSize;
+        private final long    size;
+        private final long    localHeaderOffset;
+    }
+
+    @FunctionalInterface
+    public interface BlockConsumer {
+        /**
+         * Accepts a block of data.
+         *
+         * @param block  the data. The consumer may modify the buffer's position and limit
+         * @param offset the offset of the block's first byte in the entry
+         * @return whether more blocks should be read
+         */
+        boolean accept(@NonNull ByteBuffer block, long offset) throws IOException;
+    }
+}
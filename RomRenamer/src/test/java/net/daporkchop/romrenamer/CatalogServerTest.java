@@ -0,0 +1,189 @@
+/*
+ * Adapted from the Wizardry License
+ *
+ * Copyright (c) 2019-2019 DaPorkchop_ and contributors
+ *
+ * Permission is hereby granted to any persons and/or organizations using this software to copy, modify, merge, publish, and distribute it. Said persons and/or organizations are not allowed to use the software or any derivatives of the work for commercial use or any other means to generate income, nor are they allowed to claim this software as their own.
+ *
+ * The persons and/or organizations are also disallowed from sub-licensing and/or trademarking this software without explicit permission from DaPorkchop_.
+ *
+ * Any persons and/or organizations using this software must disclose their source code and have it publicly available, include this license, provide sufficient credit to the original authors of the project (IE: DaPorkchop_), as well as provide a link to the original project.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON INFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ */
+
+package net.daporkchop.romrenamer;
+
+import io.netty.channel.Channel;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.util.concurrent.DefaultEventExecutorGroup;
+import io.netty.util.concurrent.EventExecutorGroup;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Random;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.*;
+
+/**
+ * Serves a small fixture repository and checks every route.
+ *
+ * @author DaPorkchop_
+ */
+public class CatalogServerTest {
+    private static final String ROM_HASH  = "0123456789abcdef0123456789abcdef0123456789abcdef0123456789abcdef";
+    private static final String ICON_HASH = "fedcba9876543210fedcba9876543210fedcba9876543210fedcba9876543210";
+
+    private static final byte[] MANIFEST = "{\"name\":\"Foo\"}".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] ICON     = {(byte) 0x89, 'P', 'N', 'G', 1, 2, 3, 4};
+    private static final byte[] ROM      = new byte[1 << 16];
+
+    static {
+        new Random(0L).nextBytes(ROM);
+    }
+
+    private Path               root;
+    private EventLoopGroup     boss;
+    private EventLoopGroup     workers;
+    private EventExecutorGroup io;
+    private Channel            channel;
+    private int                port;
+
+    @Before
+    public void setup() throws Exception {
+        this.root = Files.createTempDirectory("catalogserver");
+        RepoLayout repo = new RepoLayout(this.root.toFile());
+        write(new File(repo.titleDir("Foo"), "manifest.json"), MANIFEST);
+        write(new File(repo.titleDir("Bar"), "manifest.json"), "{\"name\":\"Bar\"}".getBytes(StandardCharsets.UTF_8));
+        write(repo.iconFile(ICON_HASH, ".png"), ICON);
+        write(repo.romFile(ROM_HASH, ".nds"), ROM);
+
+        this.boss = new NioEventLoopGroup(1);
+        this.workers = new NioEventLoopGroup(1);
+        this.io = new DefaultEventExecutorGroup(2);
+        this.channel = CatalogServer.start(repo, this.boss, this.workers, this.io, 0).sync().channel();
+        this.port = ((InetSocketAddress) this.channel.localAddress()).getPort();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        this.channel.close().sync();
+        this.boss.shutdownGracefully().sync();
+        this.workers.shutdownGracefully().sync();
+        this.io.shutdownGracefully().sync();
+        try (Stream<Path> stream = Files.walk(this.root)) {
+            stream.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+        }
+    }
+
+    @Test
+    public void titles() throws IOException {
+        HttpURLConnection connection = this.get("/titles");
+        assertEquals(200, connection.getResponseCode());
+        assertEquals("application/json", connection.getContentType());
+        assertEquals("[\"Bar\",\"Foo\"]", new String(read(connection), StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void manifest() throws IOException {
+        HttpURLConnection connection = this.get("/titles/Foo/manifest.json");
+        assertEquals(200, connection.getResponseCode());
+        assertArrayEquals(MANIFEST, read(connection));
+        String etag = connection.getHeaderField("ETag");
+        assertNotNull(etag);
+
+        connection = this.get("/titles/Foo/manifest.json");
+        connection.setRequestProperty("If-None-Match", etag);
+        assertEquals(304, connection.getResponseCode());
+    }
+
+    @Test
+    public void icon() throws IOException {
+        HttpURLConnection connection = this.get("/icons/" + ICON_HASH + ".png");
+        assertEquals(200, connection.getResponseCode());
+        assertEquals("image/png", connection.getContentType());
+        assertArrayEquals(ICON, read(connection));
+    }
+
+    @Test
+    public void rom() throws IOException {
+        HttpURLConnection connection = this.get("/roms/" + ROM_HASH);
+        assertEquals(200, connection.getResponseCode());
+        assertEquals("bytes", connection.getHeaderField("Accept-Ranges"));
+        assertEquals('"' + ROM_HASH + '"', connection.getHeaderField("ETag"));
+        assertArrayEquals(ROM, read(connection));
+    }
+
+    @Test
+    public void romRange() throws IOException {
+        HttpURLConnection connection = this.get("/roms/" + ROM_HASH);
+        connection.setRequestProperty("Range", "bytes=100-199");
+        assertEquals(206, connection.getResponseCode());
+        assertEquals("bytes 100-199/" + ROM.length, connection.getHeaderField("Content-Range"));
+        assertArrayEquals(Arrays.copyOfRange(ROM, 100, 200), read(connection));
+
+        connection = this.get("/roms/" + ROM_HASH);
+        connection.setRequestProperty("Range", "bytes=-16");
+        assertEquals(206, connection.getResponseCode());
+        assertArrayEquals(Arrays.copyOfRange(ROM, ROM.length - 16, ROM.length), read(connection));
+
+        connection = this.get("/roms/" + ROM_HASH);
+        connection.setRequestProperty("Range", "bytes=" + ROM.length + '-');
+        assertEquals(416, connection.getResponseCode());
+    }
+
+    @Test
+    public void romNotModified() throws IOException {
+        HttpURLConnection connection = this.get("/roms/" + ROM_HASH);
+        connection.setRequestProperty("If-None-Match", '"' + ROM_HASH + '"');
+        assertEquals(304, connection.getResponseCode());
+    }
+
+    @Test
+    public void notFound() throws IOException {
+        assertEquals(404, this.get("/roms/" + ICON_HASH).getResponseCode());
+        assertEquals(404, this.get("/titles/Baz/manifest.json").getResponseCode());
+        assertEquals(404, this.get("/icons/" + ROM_HASH + ".png").getResponseCode());
+        assertEquals(404, this.get("/titles/../manifest.json").getResponseCode());
+        assertEquals(404, this.get("/nothing").getResponseCode());
+    }
+
+    private HttpURLConnection get(String path) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL("http", "127.0.0.1", this.port, path).openConnection();
+        connection.setConnectTimeout(5000);
+        connection.setReadTimeout(5000);
+        return connection;
+    }
+
+    private static byte[] read(HttpURLConnection connection) throws IOException {
+        try (InputStream in = connection.getInputStream()) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[4096];
+            for (int i; (i = in.read(buffer)) >= 0; ) {
+                out.write(buffer, 0, i);
+            }
+            return out.toByteArray();
+        }
+    }
+
+    private static void write(File file, byte[] data) throws IOException {
+        Files.createDirectories(file.getParentFile().toPath());
+        Files.write(file.toPath(), data);
+    }
+}
@@ -0,0 +1,171 @@
+/*
+ * Adapted from the Wizardry License
+ *
+ * Copyright (c) 2019-2019 DaPorkchop_ and contributors
+ *
+ * Permission is hereby granted to any persons and/or organizations using this software to copy, modify, merge, publish, and distribute it. Said persons and/or organizations are not allowed to use the software or any derivatives of the work for commercial use or any other means to generate income, nor are they allowed to claim this software as their own.
+ *
+ * The persons and/or organizations are also disallowed from sub-licensing and/or trademarking this software without explicit permission from DaPorkchop_.
+ *
+ * Any persons and/or organizations using this software must disclose their source code and have it publicly available, include this license, provide sufficient credit to the original authors of the project (IE: DaPorkchop_), as well as provide a link to the original project.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON INFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ */
+
+package net.daporkchop.romrenamer;
+
+import org.junit.Test;
+
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks that {@link Main1#NORMALIZER} gives the same results as the regex chain which it replaced.
+ *
+ * @author DaPorkchop_
+ */
+public class NameNormalizerTest {
+    private static final Pattern PATTERN_STRIP_NDS_EXTENSION = Pattern.compile("^(.*?)\\.nds$");
+    private static final Pattern PATTERN_STRIP_NUMBER_PREFIX = Pattern.compile("^[0-9]{4} - (.*?)$");
+    private static final Pattern PATTERN_FIND_STRIP_BRACES   = Pattern.compile("\\(([^)]*?)\\)");
+    private static final Pattern PATTERN_FIX_SUFFIXES        = Pattern.compile("^(.*?), (A|The)");
+    private static final Pattern PATTERN_FIND_SUFFIX_FOREIGN = Pattern.compile("^(.*?), (Le|Die|De)($| )");
+    private static final Pattern PATTERN_STRIP_VERSION       = Pattern.compile(" (V|v)ersion");
+
+    private static final String[] NAMES = {
+            //plain names and the number prefix
+            "0001 - Foo.nds",
+            "1234 - Legend of Foo (Europe) (En,Fr,De).nds",
+            "Legend of Foo (Europe).nds",
+            "123 - Foo.nds",
+            "12345 - Foo.nds",
+            "0001 -Foo.nds",
+            "0001 - .nds",
+            "0001 - (Europe).nds",
+            //the extension
+            "0001 - Foo.NDS",
+            "0001 - Foo.nds.zip",
+            "0001 - Foo.nds.nds",
+            ".nds",
+            //underscores and whitespace
+            "0001_-_Foo_Bar_(USA).nds",
+            "_0001 - Foo_.nds",
+            "  0001 - Foo  .nds",
+            "0001 - Foo__Bar.nds",
+            "___.nds",
+            //tags in parentheses
+            "0001 - Foo (DSi Enhanced) (USA).nds",
+            "0001 - Foo (dsi enhanced).nds",
+            "0001 - Foo (USA) (DSi Enhanced).nds",
+            "0001 - Foo (DSi Enhanced) (DSi Enhanced).nds",
+            "0001 - Foo (USA) Bar (Rev 1).nds",
+            "0001 - Foo (USA.nds",
+            "0001 - Foo USA).nds",
+            "0001 - Foo ((USA)).nds",
+            "0001 - Foo ().nds",
+            "0001 - (USA) Foo.nds",
+            //articles
+            "0001 - Legend of Foo, The (Europe).nds",
+            "0001 - Legend of Foo, The - Bar (Europe).nds",
+            "0001 - Foo, A (USA).nds",
+            "0001 - Foo, An (USA).nds",
+            "0001 - Foo, Theory (USA).nds",
+            "0001 - Foo, The, A.nds",
+            "0001 - Foo,The.nds",
+            "0001 - , The.nds",
+            "0001 - Foo, the.nds",
+            //rejected articles
+            "0001 - Foo, Die (Germany).nds",
+            "0001 - Foo, Le (France).nds",
+            "0001 - Foo, De (Netherlands).nds",
+            "0001 - Foo, Der (Germany).nds",
+            "0001 - Foo, Die Bar.nds",
+            "0001 - Foo, Dies.nds",
+            "0001 - Foo, The, Die.nds",
+            //stripped strings
+            "0001 - Pokemon - Black Version (USA).nds",
+            "0001 - Pokemon - White version (Europe).nds",
+            "0001 - Foo VERSION.nds",
+            "0001 - Foo Version Version.nds",
+            "0001 - Foo Versions.nds",
+            "0001 - Foo, The Version.nds",
+            "0001 - Version.nds",
+            //all of the above
+            "0042_-_Pokemon_-_Black_Version_(DSi_Enhanced)_(USA).nds",
+            "0042 - Legend of Foo, The - Black Version (DSi Enhanced) (USA).nds",
+            "0042 - Foo, A Version (DSi Enhanced).nds",
+    };
+
+    /**
+     * The regex chain that Main1 used before {@link NameNormalizer}, as a single method.
+     *
+     * @return the normalized name, or {@code null} if the name was rejected
+     */
+    private static String legacy(String name) {
+        Matcher matcher = PATTERN_STRIP_NDS_EXTENSION.matcher(name);
+        if (!matcher.find()) {
+            return null;
+        }
+        name = matcher.group(1);
+        if (name.indexOf('_') != -1) {
+            name = name.replace('_', ' ');
+        }
+        name = name.trim();
+        if (name.isEmpty()) {
+            return null;
+        }
+
+        matcher = PATTERN_STRIP_NUMBER_PREFIX.matcher(name);
+        if (!matcher.find()) {
+            return null;
+        }
+        name = matcher.group(1);
+
+        boolean dsiEnhanced = false;
+        matcher = PATTERN_FIND_STRIP_BRACES.matcher(name);
+        while (matcher.find()) {
+            if ("DSi Enhanced".equalsIgnoreCase(matcher.group(1))) {
+                dsiEnhanced = true;
+            }
+        }
+        name = matcher.replaceAll("").trim();
+
+        matcher = PATTERN_FIX_SUFFIXES.matcher(name);
+        if (matcher.find()) {
+            name = String.format("%s %s", matcher.group(2), matcher.group(1));
+        }
+        if (PATTERN_FIND_SUFFIX_FOREIGN.matcher(name).find()) {
+            return null;
+        }
+
+        matcher = PATTERN_STRIP_VERSION.matcher(name);
+        if (matcher.find()) {
+            name = matcher.replaceAll("");
+        }
+        if (dsiEnhanced) {
+            name += " (DSi Enhanced)";
+        }
+        return name;
+    }
+
+    @Test
+    public void matchesLegacy() {
+        for (String name : NAMES) {
+            assertEquals(name, legacy(name), Main1.NORMALIZER.normalize(name));
+        }
+    }
+
+    @Test
+    public void examples() {
+        assertEquals("The Legend of Foo", Main1.NORMALIZER.normalize("0001 - Legend of Foo, The (Europe) (En,Fr).nds"));
+        assertEquals("A Foo", Main1.NORMALIZER.normalize("0001 - Foo, A (USA).nds"));
+        assertEquals("Foo Bar", Main1.NORMALIZER.normalize("0001_-_Foo_Bar_(USA).nds"));
+        assertEquals("Pokemon - Black (DSi Enhanced)", Main1.NORMALIZER.normalize("0042 - Pokemon - Black Version (DSi Enhanced) (USA).nds"));
+        assertNull(Main1.NORMALIZER.normalize("0001 - Foo, Die (Germany).nds"));
+        assertNull(Main1.NORMALIZER.normalize("Foo (USA).nds"));
+        assertNull(Main1.NORMALIZER.normalize("0001 - Foo.zip"));
+    }
+}